@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Polls the update service for a set of (target, channel) pairs in the
+ * background. Each pair is checked on its own jittered schedule so many
+ * watchers do not poll in lockstep. The last known version per pair is
+ * persisted; a new version is reported to the listener and, with a build
+ * store, its installer is prefetched into the store once the off-peak
+ * window is open. Prefetches run on their own thread so a long download
+ * never holds up polling. Concurrent checks of the same pair share one
+ * request, and polls during a prefetch join it instead of starting another.
+ * Has no JavaFX dependency.
+ */
+public class ChannelWatcher {
+    static final double DEFAULT_JITTER = 0.1;
+
+    private final UpdateServiceClient client;
+    private final LocalBuildStore store;
+    private final OffPeakWindow offPeakWindow;
+    private final long intervalMillis;
+    private final double jitter;
+    private final Path stateFile;
+    private final Properties state = new Properties();
+    private final List<TargetPlatform> targets = new ArrayList<>();
+    private final List<String> channels = new ArrayList<>();
+    private final SingleFlight<String, CompletableFuture<Update>> checks = new SingleFlight<>();
+    private final SingleFlight<String, Update> prefetches = new SingleFlight<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService prefetchExecutor;
+    private volatile DownloadJob prefetchJob;
+    private volatile Consumer<Update> listener;
+
+    /**
+     * Creates a watcher. A null store disables prefetching; a null window
+     * allows prefetching at any time.
+     */
+    public ChannelWatcher(UpdateServiceClient client, LocalBuildStore store, OffPeakWindow offPeakWindow,
+                          long intervalMillis, double jitter, Path stateFile) {
+        if (client == null) {
+            throw new IllegalArgumentException("Update service client cannot be null");
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        if (jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+
+        this.client = client;
+        this.store = store;
+        this.offPeakWindow = offPeakWindow != null ? offPeakWindow : OffPeakWindow.always();
+        this.intervalMillis = intervalMillis;
+        this.jitter = jitter;
+        this.stateFile = stateFile;
+        this.scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "channel-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.prefetchExecutor = Executors.newFixedThreadPool(1, r -> {
+            Thread thread = new Thread(r, "channel-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        EngineManagement.registerExecutor("channelWatcher", scheduler);
+        EngineManagement.registerExecutor("channelPrefetch", prefetchExecutor);
+        loadState();
+    }
+
+    /**
+     * Gets the default file the last known versions are kept in.
+     */
+    public static Path getDefaultStateFile() {
+        return Paths.get(System.getProperty("user.home"), ".chrome-downloader", "watcher.properties");
+    }
+
+    public void setListener(Consumer<Update> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a (target, channel) pair to watch. Must be called before {@link #start()}.
+     */
+    public void watch(TargetPlatform target, String channel) {
+        if (target == null || channel == null) {
+            throw new IllegalArgumentException("Target and channel cannot be null");
+        }
+        targets.add(target);
+        channels.add(channel);
+    }
+
+    /**
+     * Schedules the first check of every pair at a random point within one jitter span.
+     */
+    public void start() {
+        long spread = Math.max(1, (long) (intervalMillis * jitter));
+        for (int i = 0; i < targets.size(); i++) {
+            schedule(targets.get(i), channels.get(i), ThreadLocalRandom.current().nextLong(spread));
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        prefetchExecutor.shutdownNow();
+        DownloadJob job = prefetchJob;
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * Gets the last known version of a pair, or null.
+     */
+    public String getLastKnownVersion(TargetPlatform target, String channel) {
+        synchronized (state) {
+            return state.getProperty(key(target, channel));
+        }
+    }
+
+    /**
+     * Checks a pair now. A check of the same pair that is still running is
+     * joined instead of sending another request. The future completes once
+     * the installer of a new version has been prefetched, if it is due.
+     */
+    public CompletableFuture<Update> check(TargetPlatform target, String channel) {
+        return poll(target, channel).thenCompose(Function.identity());
+    }
+
+    /**
+     * Asks the service for a pair on the scheduler. The result is the update,
+     * which is still pending while a prefetch started by the poll runs.
+     */
+    private CompletableFuture<CompletableFuture<Update>> poll(TargetPlatform target, String channel) {
+        return checks.submit(key(target, channel), () -> runCheck(target, channel), scheduler);
+    }
+
+    private void schedule(TargetPlatform target, String channel, long delayMillis) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        scheduler.schedule(() -> {
+            poll(target, channel).whenComplete((update, error) -> {
+                if (error != null) {
+                    System.err.println("Watch check failed for " + target + " " + channel + ": " + error.getMessage());
+                }
+                schedule(target, channel, nextDelay());
+            });
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the interval randomized by up to the jitter fraction either way.
+     */
+    long nextDelay() {
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, (long) (intervalMillis * factor));
+    }
+
+    private CompletableFuture<Update> runCheck(TargetPlatform target, String channel) throws Exception {
+        List<DownloadLink> links = client.fetchLinks(channel, target);
+        String key = key(target, channel);
+        String version = links.get(0).getVersion();
+        String previous;
+        boolean pending;
+
+        synchronized (state) {
+            previous = state.getProperty(key);
+            boolean changed = version != null && !version.equals(previous);
+            if (changed) {
+                state.setProperty(key, version);
+                if (store != null) {
+                    state.setProperty(key + ".pending", "true");
+                }
+                saveState();
+            }
+            pending = Boolean.parseBoolean(state.getProperty(key + ".pending"));
+        }
+
+        if (pending && store != null && offPeakWindow.isOpen()) {
+            return prefetches.submit(key, () -> runPrefetch(target, channel, previous, version, links),
+                prefetchExecutor);
+        }
+        return CompletableFuture.completedFuture(report(new Update(target, channel, previous, version, false, links)));
+    }
+
+    private Update runPrefetch(TargetPlatform target, String channel, String previous, String version,
+                               List<DownloadLink> links) {
+        boolean prefetched = prefetch(target, channel, links);
+        if (prefetched) {
+            String key = key(target, channel);
+            synchronized (state) {
+                // A poll during the download may have found a newer version that is still due
+                if (version == null || version.equals(state.getProperty(key))) {
+                    state.remove(key + ".pending");
+                    saveState();
+                }
+            }
+        }
+        return report(new Update(target, channel, previous, version, prefetched, links));
+    }
+
+    private Update report(Update update) {
+        Consumer<Update> current = listener;
+        if (current != null && (update.isNewVersion() || update.isPrefetched())) {
+            current.accept(update);
+        }
+        return update;
+    }
+
+    /**
+     * Downloads the installer from the first mirror that works into the
+     * store, verifying it against the manifest hash. Mirrors are tried
+     * healthiest first; an internal mirror from a rewrite rule falls back to
+     * its upstream URL within the same attempt. A failed download is kept
+     * with its chunk manifest, so the next attempt from that URL resumes it.
+     */
+    private boolean prefetch(TargetPlatform target, String channel, List<DownloadLink> links) {
+        DownloadLink first = links.get(0);
+        if (store.find(target, channel, first.getVersion()) != null) {
+            return true;
+        }
+
+        Path partial = store.getRoot().resolve(key(target, channel) + ".prefetch");
+        Set<String> tried = new HashSet<>();
+        for (DownloadLink link : MirrorHealth.getDefault().order(links)) {
+            if (prefetchExecutor.isShutdown()) {
+                return false;
+            }
+            if (tried.contains(link.getUrl())) {
+                continue;
+            }
+            DownloadJob job = new DownloadJob(link.getUrl(), partial.toFile(), client.getProxySettings());
+            job.setExpectedSha256(link.getSha256());
+            job.setChannel(channel);
+            job.setMirrorFallback(link);
+            prefetchJob = job;
+            try {
+                Files.createDirectories(store.getRoot());
+                job.run();
+                if (job.isCancelled()) {
+                    return false;
+                }
+                Path named = partial.resolveSibling(link.getFileName());
+                Files.move(partial, named, StandardCopyOption.REPLACE_EXISTING);
+                try {
+                    store.add(target, channel, link.getVersion(), link.getFingerprint(), named);
+                } finally {
+                    Files.deleteIfExists(named);
+                }
+                return true;
+            } catch (Exception e) {
+                System.err.println("Prefetch from " + job.getUrl() + " failed: " + e.getMessage());
+            } finally {
+                prefetchJob = null;
+                tried.add(link.getUrl());
+                // After a mirror miss the job went on with the upstream URL
+                tried.add(job.getUrl());
+            }
+        }
+        return false;
+    }
+
+    private static String key(TargetPlatform target, String channel) {
+        return target.getId() + "." + channel;
+    }
+
+    private void loadState() {
+        if (stateFile == null || !Files.isRegularFile(stateFile)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(stateFile)) {
+            state.load(in);
+        } catch (IOException e) {
+            System.err.println("Failed to read watcher state " + stateFile + ": " + e.getMessage());
+        }
+    }
+
+    private void saveState() {
+        if (stateFile == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(stateFile.toAbsolutePath().getParent());
+            Path temp = Files.createTempFile(stateFile.toAbsolutePath().getParent(), "watcher", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                state.store(out, null);
+            }
+            Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save watcher state " + stateFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The outcome of one check of a (target, channel) pair.
+     */
+    public static class Update {
+        private final TargetPlatform target;
+        private final String channel;
+        private final String previousVersion;
+        private final String version;
+        private final boolean prefetched;
+        private final List<DownloadLink> links;
+
+        Update(TargetPlatform target, String channel, String previousVersion, String version,
+               boolean prefetched, List<DownloadLink> links) {
+            this.target = target;
+            this.channel = channel;
+            this.previousVersion = previousVersion;
+            this.version = version;
+            this.prefetched = prefetched;
+            this.links = Collections.unmodifiableList(links);
+        }
+
+        public TargetPlatform getTarget() { return target; }
+        public String getChannel() { return channel; }
+        public String getPreviousVersion() { return previousVersion; }
+        public String getVersion() { return version; }
+        public boolean isPrefetched() { return prefetched; }
+        public List<DownloadLink> getLinks() { return links; }
+
+        public boolean isNewVersion() {
+            return version != null && !version.equals(previousVersion);
+        }
+    }
+}
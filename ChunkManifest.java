@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.IntStream;
+
+/**
+ * SHA-256 hashes of the fixed-size chunks of a file being downloaded,
+ * combined into a Merkle tree and kept in a sidecar file next to it. The
+ * hashes are taken from the bytes as they are written, so a resumed
+ * download can verify the partial file chunk by chunk, in parallel, and
+ * fetch only the chunks that are missing or fail their hash. The root hash
+ * stored in the sidecar detects a damaged sidecar. Has no JavaFX dependency.
+ */
+public class ChunkManifest {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final String SUFFIX = ".chunks";
+
+    private static final long SAVE_INTERVAL_MILLIS = 1000;
+    private static final byte[] EMPTY_LEAF = new byte[32];
+
+    private final Path sidecar;
+    private final String url;
+    private final String validator;
+    private final long size;
+    private final int chunkSize;
+    private final byte[][] leaves;
+    private long lastSave;
+
+    private ChunkManifest(Path sidecar, String url, String validator, long size, int chunkSize) {
+        this.sidecar = sidecar;
+        this.url = url;
+        this.validator = validator;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.leaves = new byte[(int) ((size + chunkSize - 1) / chunkSize)][];
+    }
+
+    /**
+     * Starts an empty manifest for a file of known size.
+     */
+    public static ChunkManifest create(Path file, String url, String validator, long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("File size must be positive");
+        }
+        return new ChunkManifest(sidecarFor(file), url, validator, size, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Loads the manifest kept next to a partial file, or returns null if
+     * there is none, it belongs to another URL or it is damaged.
+     */
+    public static ChunkManifest load(Path file, String url) {
+        Path sidecar = sidecarFor(file);
+        if (!Files.isRegularFile(sidecar) || !Files.isRegularFile(file)) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(sidecar)) {
+            properties.load(in);
+            if (!url.equals(properties.getProperty("url"))) {
+                return null;
+            }
+            ChunkManifest manifest = new ChunkManifest(sidecar, url, properties.getProperty("validator"),
+                Long.parseLong(properties.getProperty("size")), Integer.parseInt(properties.getProperty("chunkSize")));
+            for (int i = 0; i < manifest.leaves.length; i++) {
+                String hash = properties.getProperty("chunk." + i);
+                if (hash != null) {
+                    manifest.leaves[i] = HexFormat.of().parseHex(hash);
+                }
+            }
+            if (!manifest.getRootHash().equals(properties.getProperty("root"))) {
+                System.err.println("Chunk manifest " + sidecar + " is damaged, ignoring it");
+                return null;
+            }
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to read chunk manifest " + sidecar + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Copies the manifest for the same file served from another URL, such
+     * as the upstream of a mirror. Its validator is unknown there, so
+     * ranges are requested without If-Range; the recorded hashes still
+     * check what is kept.
+     */
+    public synchronized ChunkManifest forUrl(String otherUrl) {
+        ChunkManifest copy = new ChunkManifest(sidecar, otherUrl, null, size, chunkSize);
+        System.arraycopy(leaves, 0, copy.leaves, 0, leaves.length);
+        return copy;
+    }
+
+    public static Path sidecarFor(Path file) {
+        return file.resolveSibling(file.getFileName() + SUFFIX);
+    }
+
+    public String getUrl() { return url; }
+    public String getValidator() { return validator; }
+    public long getSize() { return size; }
+    public int getChunkSize() { return chunkSize; }
+
+    public int getChunkCount() {
+        return leaves.length;
+    }
+
+    /**
+     * Gets the number of bytes in chunks with a recorded hash.
+     */
+    public synchronized long getRecordedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i] != null) {
+                bytes += chunkEnd(i) - (long) i * chunkSize;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the Merkle root over all chunks, with missing chunks as empty leaves.
+     */
+    public synchronized String getRootHash() {
+        List<byte[]> level = new ArrayList<>();
+        for (byte[] leaf : leaves) {
+            level.add(leaf != null ? leaf : EMPTY_LEAF);
+        }
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    parents.add(level.get(i));
+                    continue;
+                }
+                MessageDigest digest = Metalink.newSha256();
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                parents.add(digest.digest());
+            }
+            level = parents;
+        }
+        return HexFormat.of().formatHex(level.isEmpty() ? EMPTY_LEAF : level.get(0));
+    }
+
+    /**
+     * Hashes the bytes of a sequential writer starting at a position. Only
+     * chunks the writer covers from their first byte get a hash; the rest
+     * stay missing and are fetched again on resume.
+     */
+    public Tracker track(long position) {
+        return new Tracker(position);
+    }
+
+    /**
+     * Verifies the recorded chunks of the file in parallel and forgets
+     * those that do not match. Returns the number of bytes that did.
+     */
+    public long verify(Path file) throws IOException {
+        boolean[] mismatched = new boolean[leaves.length];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            IntStream.range(0, leaves.length).parallel().forEach(i -> {
+                byte[] expected;
+                synchronized (this) {
+                    expected = leaves[i];
+                }
+                if (expected == null) {
+                    return;
+                }
+                long start = (long) i * chunkSize;
+                long end = chunkEnd(i);
+                if (end > fileSize) {
+                    mismatched[i] = true;
+                    return;
+                }
+                try {
+                    mismatched[i] = !Arrays.equals(expected, hashRange(channel, start, end));
+                } catch (IOException e) {
+                    mismatched[i] = true;
+                }
+            });
+        }
+
+        int failed = 0;
+        synchronized (this) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (mismatched[i]) {
+                    leaves[i] = null;
+                    failed++;
+                }
+            }
+        }
+        if (failed > 0) {
+            System.err.println(failed + " chunk(s) of " + file.getFileName() + " failed verification");
+        }
+        return getRecordedBytes();
+    }
+
+    /**
+     * Gets the byte ranges of the chunks without a hash, adjacent chunks merged.
+     */
+    public synchronized List<long[]> missingRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        BitSet present = new BitSet(leaves.length);
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i] != null) {
+                present.set(i);
+            }
+        }
+        int start = present.nextClearBit(0);
+        while (start < leaves.length) {
+            int next = present.nextSetBit(start);
+            int end = next < 0 ? leaves.length : next;
+            ranges.add(new long[] {(long) start * chunkSize, chunkEnd(end - 1)});
+            start = present.nextClearBit(end);
+        }
+        return ranges;
+    }
+
+    public boolean isComplete() {
+        return missingRanges().isEmpty();
+    }
+
+    /**
+     * Writes the sidecar, replacing the previous one atomically.
+     */
+    public synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        if (validator != null) {
+            properties.setProperty("validator", validator);
+        }
+        properties.setProperty("size", Long.toString(size));
+        properties.setProperty("chunkSize", Integer.toString(chunkSize));
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i] != null) {
+                properties.setProperty("chunk." + i, HexFormat.of().formatHex(leaves[i]));
+            }
+        }
+        properties.setProperty("root", getRootHash());
+
+        Path dir = sidecar.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, "chunks", ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, null);
+        }
+        Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSave = System.currentTimeMillis();
+    }
+
+    public void delete() {
+        try {
+            Files.deleteIfExists(sidecar);
+        } catch (IOException e) {
+            System.err.println("Failed to delete chunk manifest " + sidecar + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void record(int index, byte[] hash) {
+        leaves[index] = hash;
+        if (System.currentTimeMillis() - lastSave >= SAVE_INTERVAL_MILLIS) {
+            try {
+                save();
+            } catch (IOException e) {
+                System.err.println("Failed to save chunk manifest " + sidecar + ": " + e.getMessage());
+                lastSave = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private long chunkEnd(int index) {
+        return Math.min(size, (long) (index + 1) * chunkSize);
+    }
+
+    private byte[] hashRange(FileChannel channel, long start, long end) throws IOException {
+        MessageDigest digest = Metalink.newSha256();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(256 * 1024, end - start));
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File ends at byte " + position);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Hashes what one sequential writer writes. Not thread-safe; use one per writer.
+     */
+    public final class Tracker {
+        private long position;
+        private MessageDigest digest;
+
+        private Tracker(long position) {
+            this.position = position;
+            if (position % chunkSize == 0) {
+                digest = Metalink.newSha256();
+            }
+        }
+
+        /**
+         * Hashes the remaining bytes of a buffer, which are about to be
+         * written at the tracker's position. Does not move the buffer.
+         */
+        public void update(ByteBuffer written) {
+            ByteBuffer bytes = written.duplicate();
+            while (bytes.hasRemaining() && position < size) {
+                int index = (int) (position / chunkSize);
+                long end = chunkEnd(index);
+                int length = (int) Math.min(bytes.remaining(), end - position);
+                if (digest != null) {
+                    ByteBuffer slice = bytes.duplicate();
+                    slice.limit(slice.position() + length);
+                    digest.update(slice);
+                }
+                bytes.position(bytes.position() + length);
+                position += length;
+                if (position == end) {
+                    if (digest != null) {
+                        record(index, digest.digest());
+                    }
+                    digest = Metalink.newSha256();
+                }
+            }
+        }
+    }
+}
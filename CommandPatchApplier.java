@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies patches with an external command such as
+ * {@code zucchini -apply {base} {patch} {output}}. The placeholders are
+ * replaced by the file paths; the command must exit with status 0.
+ */
+public class CommandPatchApplier implements PatchApplier {
+    /** System property holding the command template. */
+    public static final String COMMAND_PROPERTY = "chromedownloader.patchCommand";
+
+    private static final long TIMEOUT_MINUTES = 10;
+    private static final int MAX_LOG_BYTES = 4096;
+
+    private final List<String> command;
+
+    public CommandPatchApplier(String commandTemplate) {
+        if (commandTemplate == null || commandTemplate.trim().isEmpty()) {
+            throw new IllegalArgumentException("Patch command cannot be null or empty");
+        }
+        if (!commandTemplate.contains("{base}") || !commandTemplate.contains("{patch}")
+                || !commandTemplate.contains("{output}")) {
+            throw new IllegalArgumentException("Patch command must contain {base}, {patch} and {output}");
+        }
+        this.command = List.of(commandTemplate.trim().split("\\s+"));
+    }
+
+    /**
+     * Gets the applier configured by the system property, or null if none is set.
+     */
+    public static PatchApplier fromSystemProperty() {
+        String template = System.getProperty(COMMAND_PROPERTY);
+        return template != null && !template.trim().isEmpty() ? new CommandPatchApplier(template) : null;
+    }
+
+    @Override
+    public void apply(Path base, Path patch, Path output) throws IOException {
+        List<String> args = new ArrayList<>();
+        for (String part : command) {
+            args.add(part.replace("{base}", base.toString())
+                .replace("{patch}", patch.toString())
+                .replace("{output}", output.toString()));
+        }
+
+        // Output goes to a file, so neither a full pipe nor a tool that keeps it open can block the timeout
+        Path log = Files.createTempFile(output.toAbsolutePath().getParent(), "patch", ".log");
+        try {
+            Process process = new ProcessBuilder(args).redirectErrorStream(true)
+                .redirectOutput(log.toFile()).start();
+            try {
+                if (!process.waitFor(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                    process.destroyForcibly();
+                    throw new IOException("Patch command timed out: " + args.get(0));
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new IOException("Patch command interrupted", e);
+            }
+            if (process.exitValue() != 0) {
+                throw new IOException("Patch command failed with status " + process.exitValue() + ": "
+                    + readTail(log));
+            }
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    /**
+     * Gets the end of the tool's output for the error message.
+     */
+    private static String readTail(Path log) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            long start = Math.max(0, channel.size() - MAX_LOG_BYTES);
+            ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - start));
+            int read;
+            do {
+                read = channel.read(buffer, start + buffer.position());
+            } while (read > 0 && buffer.hasRemaining());
+            return new String(buffer.array(), 0, buffer.position()).trim();
+        }
+    }
+}
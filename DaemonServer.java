@@ -0,0 +1,891 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP/JSON control API for a long-running instance, on the JDK's
+ * built-in server with one virtual thread per request. Listens on the
+ * loopback address only. Every request needs a loopback Host header and
+ * {@code Authorization: Bearer <token>}, with the token from
+ * {@code ~/.chrome-downloader/daemon.token}; POST bodies must be sent as
+ * {@code application/json}. So a web page in a local browser can neither
+ * post a download nor read the API through DNS rebinding.
+ *
+ *   GET    /api/channels?target=win-x64&amp;channels=Stable,Beta   links per channel
+ *   GET    /api/downloads                                   all downloads
+ *   POST   /api/downloads {"url": ...} or {"target": ..., "channel": ...}, with "copyTo": [paths]
+ *   GET    /api/downloads/{id}                              one download
+ *   DELETE /api/downloads/{id}                              cancel it
+ *   GET    /api/downloads/{id}/events                       progress as server-sent events
+ *   GET    /api/store                                       builds in the build store
+ *   GET    /metrics                                         Prometheus text format
+ */
+public class DaemonServer {
+    public static final int DEFAULT_PORT = 8479;
+
+    private static final int MAX_FINISHED = 100;
+    private static final long SSE_PROGRESS_INTERVAL_MILLIS = 250;
+    private static final long SSE_HEARTBEAT_SECONDS = 15;
+
+    private final Path downloadDir;
+    private final ProxySettings proxySettings;
+    private final Semaphore slots;
+    private final LocalBuildStore store;
+    private final Map<Long, Entry> downloads = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private Path tokenFile = getDefaultTokenFile();
+    private volatile byte[] token;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public DaemonServer(Path downloadDir, ProxySettings proxySettings, int concurrency, LocalBuildStore store) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        this.downloadDir = downloadDir;
+        this.proxySettings = proxySettings != null ? proxySettings : new ProxySettings();
+        this.slots = new Semaphore(concurrency, true);
+        this.store = store;
+    }
+
+    /**
+     * Gets the default file the API token is kept in.
+     */
+    public static Path getDefaultTokenFile() {
+        return Paths.get(System.getProperty("user.home"), ".chrome-downloader", "daemon.token");
+    }
+
+    /**
+     * Sets the file the API token is read from, or created in. Must be
+     * called before {@link #start(int)}.
+     */
+    public void setTokenFile(Path tokenFile) {
+        if (tokenFile == null) {
+            throw new IllegalArgumentException("Token file cannot be null");
+        }
+        this.tokenFile = tokenFile;
+    }
+
+    public Path getTokenFile() {
+        return tokenFile;
+    }
+
+    /**
+     * Gets the bearer token clients must send, once the server started.
+     */
+    public String getToken() {
+        byte[] current = token;
+        return current != null ? new String(current, StandardCharsets.US_ASCII) : null;
+    }
+
+    /**
+     * Starts listening on the loopback address; port 0 picks a free port.
+     */
+    public synchronized void start(int port) throws IOException {
+        if (server != null) {
+            return;
+        }
+        token = loadOrCreateToken(tokenFile).getBytes(StandardCharsets.US_ASCII);
+        Files.createDirectories(downloadDir);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 64);
+        server.createContext("/api/", this::handleApi);
+        server.createContext("/metrics", this::handleMetrics);
+        server.setExecutor(executor);
+        server.start();
+        EngineManagement.start();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            for (Entry entry : downloads.values()) {
+                entry.job.cancel();
+            }
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getBaseUrl() {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + getPort();
+    }
+
+    /**
+     * Reads the token from the file, or creates one readable only by the
+     * owner where the file system supports it.
+     */
+    private static String loadOrCreateToken(Path file) throws IOException {
+        if (Files.isRegularFile(file)) {
+            String existing = Files.readString(file, StandardCharsets.US_ASCII).trim();
+            if (!existing.isEmpty()) {
+                return existing;
+            }
+        }
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String created = HexFormat.of().formatHex(random);
+
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, "token", ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the user profile directory protects it
+            }
+            Files.writeString(temp, created + "\n", StandardCharsets.US_ASCII);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return created;
+    }
+
+    /**
+     * Sends an error and returns false unless the request names a loopback
+     * host and carries the token.
+     */
+    private boolean authorize(HttpExchange exchange) throws IOException {
+        if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+            sendError(exchange, 403, "Host not allowed");
+            return false;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] presented = authorization != null && authorization.startsWith("Bearer ")
+            ? authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        if (!MessageDigest.isEqual(presented, token)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            sendError(exchange, 401, "Missing or invalid token");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks that a Host header names the loopback interface, by literal
+     * address or as localhost, so a rebound DNS name is refused.
+     */
+    static boolean isLoopbackHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        String name = host.trim().toLowerCase(Locale.ROOT);
+        if (name.startsWith("[")) {
+            int end = name.indexOf(']');
+            return end > 0 && name.substring(1, end).equals("::1");
+        }
+        int colon = name.indexOf(':');
+        if (colon >= 0) {
+            name = name.substring(0, colon);
+        }
+        return name.equals("localhost") || name.matches("127(\\.\\d{1,3}){3}");
+    }
+
+    private void handleApi(HttpExchange exchange) throws IOException {
+        try {
+            if (!authorize(exchange)) {
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+            switch (path[0]) {
+                case "channels":
+                    requireMethod(method, "GET");
+                    sendJson(exchange, 200, fetchChannels(query(exchange)));
+                    break;
+                case "store":
+                    requireMethod(method, "GET");
+                    sendJson(exchange, 200, listStore());
+                    break;
+                case "downloads":
+                    handleDownloads(exchange, method, path);
+                    break;
+                default:
+                    sendError(exchange, 404, "Not found");
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (MethodNotAllowedException e) {
+            sendError(exchange, 405, e.getMessage());
+        } catch (UnsupportedMediaTypeException e) {
+            sendError(exchange, 415, e.getMessage());
+        } catch (Exception e) {
+            sendError(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleDownloads(HttpExchange exchange, String method, String[] path) throws Exception {
+        if (path.length == 1) {
+            if (method.equals("POST")) {
+                requireJson(exchange);
+                Entry entry = enqueue(parseObject(readBody(exchange)));
+                sendJson(exchange, 202, describe(entry));
+                return;
+            }
+            requireMethod(method, "GET");
+            List<Object> list = new ArrayList<>();
+            for (Entry entry : downloads.values()) {
+                list.add(describe(entry));
+            }
+            sendJson(exchange, 200, list);
+            return;
+        }
+
+        Entry entry;
+        try {
+            entry = downloads.get(Long.parseLong(path[1]));
+        } catch (NumberFormatException e) {
+            entry = null;
+        }
+        if (entry == null) {
+            sendError(exchange, 404, "No such download: " + path[1]);
+        } else if (path.length == 3 && path[2].equals("events")) {
+            requireMethod(method, "GET");
+            streamEvents(exchange, entry);
+        } else if (path.length > 2) {
+            sendError(exchange, 404, "Not found");
+        } else if (method.equals("DELETE")) {
+            entry.job.cancel();
+            sendJson(exchange, 200, describe(entry));
+        } else {
+            requireMethod(method, "GET");
+            sendJson(exchange, 200, describe(entry));
+        }
+    }
+
+    /**
+     * Fetches the links of the requested channels for one target, each with
+     * the same logic as the UI's fetch.
+     */
+    private Map<String, Object> fetchChannels(Map<String, String> query) {
+        TargetPlatform target = parseTarget(query.getOrDefault("target", TargetPlatform.fromHost().getId()));
+        List<String> channels = HeadlessMain.parseChannels(query.get("channels"));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("target", target.getId());
+        Map<String, Object> byChannel = new LinkedHashMap<>();
+        for (String channel : channels) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            try {
+                List<Object> links = new ArrayList<>();
+                for (DownloadLink link : new FetchLinksJob(channel, proxySettings, target).call()) {
+                    Map<String, Object> json = new LinkedHashMap<>();
+                    json.put("url", link.getUrl());
+                    json.put("version", link.getVersion());
+                    json.put("size", link.getManifestSize());
+                    json.put("sha256", link.getSha256());
+                    links.add(json);
+                }
+                item.put("links", links);
+            } catch (Exception e) {
+                item.put("error", String.valueOf(e.getMessage()));
+            }
+            byChannel.put(channel, item);
+        }
+        result.put("channels", byChannel);
+        return result;
+    }
+
+    private List<Object> listStore() {
+        List<Object> builds = new ArrayList<>();
+        if (store == null) {
+            return builds;
+        }
+        for (TargetPlatform target : TargetPlatform.values()) {
+            for (String channel : MatrixFetch.CHANNELS) {
+                for (LocalBuildStore.Build build : store.list(target, channel)) {
+                    Map<String, Object> json = new LinkedHashMap<>();
+                    json.put("target", target.getId());
+                    json.put("channel", channel);
+                    json.put("version", build.getVersion());
+                    json.put("sha256", build.getSha256());
+                    json.put("file", build.getFile().toString());
+                    builds.add(json);
+                }
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * Queues a download of a URL, or of the first link of a target and
+     * channel. It starts once one of the download slots is free.
+     */
+    private Entry enqueue(Map<String, Object> request) throws Exception {
+        String url = text(request, "url");
+        String sha256 = text(request, "sha256");
+        String channel = text(request, "channel");
+        List<File> copyTargets = parseCopyTargets(request.get("copyTo"));
+        DownloadLink link = null;
+        if (url == null) {
+            if (channel == null) {
+                throw new IllegalArgumentException("Either url or target and channel are required");
+            }
+            String targetId = text(request, "target");
+            TargetPlatform target = parseTarget(targetId != null ? targetId : TargetPlatform.fromHost().getId());
+            link = new FetchLinksJob(channel, proxySettings, target).call().get(0);
+            url = link.getUrl();
+            sha256 = link.getSha256();
+        } else if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            throw new IllegalArgumentException("Invalid URL: " + url);
+        }
+
+        String name = text(request, "file");
+        if (name == null) {
+            name = url.substring(url.lastIndexOf('/') + 1);
+        }
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid file name: " + name);
+        }
+
+        DownloadJob job = new DownloadJob(url, new File(downloadDir.toFile(), name), proxySettings, null);
+        job.setExpectedSha256(sha256);
+        job.setChannel(channel);
+        job.setMirrorFallback(link);
+        job.setCopyTargets(copyTargets);
+        Entry entry = new Entry(nextId.incrementAndGet(), job);
+        job.addListener(new DownloadListener() {
+            @Override
+            public void onCopyFinished(File destination, Throwable error) {
+                entry.copyResults.put(destination.getAbsolutePath(),
+                    error != null ? String.valueOf(error.getMessage()) : "");
+            }
+        });
+        downloads.put(entry.id, entry);
+        pruneFinished();
+
+        executor.execute(() -> {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                job.cancel();
+                return;
+            }
+            try {
+                if (!job.isCancelled()) {
+                    job.run();
+                }
+            } catch (Exception e) {
+                System.err.println("Download " + entry.id + " failed: " + e.getMessage());
+            } finally {
+                slots.release();
+            }
+        });
+        return entry;
+    }
+
+    /**
+     * Gets a member of a request that must be a single value, or null.
+     */
+    private static String text(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        if (value instanceof List) {
+            throw new IllegalArgumentException(name + " must not be an array");
+        }
+        return (String) value;
+    }
+
+    /**
+     * Parses copyTo, an array of absolute paths (or a single one) the
+     * download is also written to. The paths are used as given, so they can
+     * point at shares outside the download directory.
+     */
+    private static List<File> parseCopyTargets(Object value) {
+        List<File> targets = new ArrayList<>();
+        if (value == null) {
+            return targets;
+        }
+        List<?> paths = value instanceof List ? (List<?>) value : List.of(value);
+        for (Object path : paths) {
+            if (path == null || !Paths.get(path.toString()).isAbsolute()) {
+                throw new IllegalArgumentException("copyTo paths must be absolute: " + path);
+            }
+            targets.add(new File(path.toString()));
+        }
+        return targets;
+    }
+
+    private void pruneFinished() {
+        int excess = -MAX_FINISHED;
+        for (Entry entry : downloads.values()) {
+            if (isFinal(entry.job.getState())) {
+                excess++;
+            }
+        }
+        // Ids ascend, so the oldest finished downloads go first
+        for (Entry entry : downloads.values()) {
+            if (excess <= 0) {
+                break;
+            }
+            if (isFinal(entry.job.getState())) {
+                downloads.remove(entry.id);
+                excess--;
+            }
+        }
+    }
+
+    private static boolean isFinal(DownloadJob.State state) {
+        return state == DownloadJob.State.SUCCEEDED || state == DownloadJob.State.FAILED
+            || state == DownloadJob.State.CANCELLED;
+    }
+
+    private static Map<String, Object> describe(Entry entry) {
+        DownloadJob job = entry.job;
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("id", entry.id);
+        json.put("url", job.getUrl());
+        json.put("file", job.getOutputFile().getAbsolutePath());
+        json.put("channel", job.getChannel());
+        json.put("state", job.getState().name());
+        json.put("bytesDone", job.getBytesDone());
+        json.put("totalBytes", job.getTotalBytes());
+        json.put("bytesPerSecond", Math.round(job.getBytesPerSecond()));
+        json.put("retries", job.getRetries());
+        json.put("message", job.getMessage());
+        json.put("error", job.getError() != null ? job.getError().getMessage() : null);
+        List<Object> copies = new ArrayList<>();
+        for (File target : job.getCopyTargets()) {
+            String result = entry.copyResults.get(target.getAbsolutePath());
+            Map<String, Object> copy = new LinkedHashMap<>();
+            copy.put("path", target.getAbsolutePath());
+            copy.put("state", result == null ? "PENDING" : result.isEmpty() ? "DONE" : "FAILED");
+            copy.put("error", result == null || result.isEmpty() ? null : result);
+            copies.add(copy);
+        }
+        json.put("copyTo", copies);
+        return json;
+    }
+
+    /**
+     * Streams state changes, status messages and (at most four times a
+     * second) progress of a download as server-sent events, until it ends.
+     */
+    private void streamEvents(HttpExchange exchange, Entry entry) throws IOException {
+        BlockingQueue<String[]> events = new LinkedBlockingQueue<>();
+        DownloadListener listener = new DownloadListener() {
+            private long lastProgress;
+
+            @Override
+            public void onStateChanged(DownloadJob.State state) {
+                events.add(new String[] {"state", json(describe(entry))});
+            }
+
+            @Override
+            public void onMessage(String message) {
+                events.add(new String[] {"message", json(message)});
+            }
+
+            @Override
+            public void onProgress(long bytesDone, long totalBytes, double bytesPerSecond) {
+                long now = System.currentTimeMillis();
+                if (now - lastProgress >= SSE_PROGRESS_INTERVAL_MILLIS) {
+                    lastProgress = now;
+                    events.add(new String[] {"progress", json(describe(entry))});
+                }
+            }
+        };
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        entry.job.addListener(listener);
+        try {
+            writeEvent(out, "state", json(describe(entry)));
+            while (!isFinal(entry.job.getState())) {
+                String[] event = events.poll(SSE_HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if (event == null) {
+                    out.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } else {
+                    writeEvent(out, event[0], event[1]);
+                }
+            }
+            String[] event;
+            while ((event = events.poll()) != null) {
+                writeEvent(out, event[0], event[1]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            entry.job.removeListener(listener);
+        }
+    }
+
+    private static void writeEvent(OutputStream out, String name, String data) throws IOException {
+        out.write(("event: " + name + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Writes the engine counters and latencies, and the state of the
+     * daemon's downloads, in the Prometheus text exposition format.
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!authorize(exchange)) {
+                return;
+            }
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, Long> counter : EngineMetrics.get().getCounters().entrySet()) {
+                String name = "chromedownloader_" + metricName(counter.getKey()) + "_total";
+                text.append("# TYPE ").append(name).append(" counter\n");
+                text.append(name).append(' ').append(counter.getValue()).append('\n');
+            }
+            for (Map.Entry<String, LatencyStats> latency : EngineMetrics.get().getLatencies().entrySet()) {
+                String name = "chromedownloader_" + metricName(latency.getKey()) + "_seconds";
+                LatencyStats stats = latency.getValue();
+                text.append("# TYPE ").append(name).append(" summary\n");
+                for (double quantile : new double[] {0.5, 0.9, 0.99}) {
+                    text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(stats.percentile(quantile * 100) / 1000).append('\n');
+                }
+                text.append(name).append("_sum ").append(stats.getSumMillis() / 1000).append('\n');
+                text.append(name).append("_count ").append(stats.getCount()).append('\n');
+            }
+
+            Map<DownloadJob.State, Integer> states = new LinkedHashMap<>();
+            for (DownloadJob.State state : DownloadJob.State.values()) {
+                states.put(state, 0);
+            }
+            double bytesPerSecond = 0;
+            for (Entry entry : downloads.values()) {
+                states.merge(entry.job.getState(), 1, Integer::sum);
+                if (entry.job.getState() == DownloadJob.State.RUNNING) {
+                    bytesPerSecond += entry.job.getBytesPerSecond();
+                }
+            }
+            text.append("# TYPE chromedownloader_daemon_downloads gauge\n");
+            states.forEach((state, count) -> text.append("chromedownloader_daemon_downloads{state=\"")
+                .append(state.name().toLowerCase(Locale.ROOT)).append("\"} ").append(count).append('\n'));
+            text.append("# TYPE chromedownloader_daemon_throughput_bytes_per_second gauge\n");
+            text.append("chromedownloader_daemon_throughput_bytes_per_second ")
+                .append(Math.round(bytesPerSecond)).append('\n');
+
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String metricName(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    private static TargetPlatform parseTarget(String id) {
+        TargetPlatform target = TargetPlatform.fromString(id);
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown target: " + id);
+        }
+        return target;
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!method.equals(expected)) {
+            throw new MethodNotAllowedException("Method not allowed: " + method);
+        }
+    }
+
+    /**
+     * Refuses bodies that are not declared as JSON. A browser can only send
+     * those cross-origin after a CORS preflight, which this server never allows.
+     */
+    private static void requireJson(HttpExchange exchange) {
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        String mediaType = type != null ? type.split(";", 2)[0].trim().toLowerCase(Locale.ROOT) : "";
+        if (!mediaType.equals("application/json")) {
+            throw new UnsupportedMediaTypeException("Content-Type must be application/json");
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> query = new LinkedHashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            query.put(name, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(64 * 1024);
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, Object value) throws IOException {
+        byte[] body = json(value).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", message);
+        sendJson(exchange, status, error);
+    }
+
+    /**
+     * Writes maps, lists, strings, numbers, booleans and null as JSON.
+     */
+    static String json(Object value) {
+        StringBuilder out = new StringBuilder();
+        appendJson(out, value);
+        return out.toString();
+    }
+
+    private static void appendJson(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendJson(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                appendJson(out, entry.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (List<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendJson(out, item);
+            }
+            out.append(']');
+        } else {
+            String text = value.toString();
+            out.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '"': out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            out.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.append(c);
+                        }
+                }
+            }
+            out.append('"');
+        }
+    }
+
+    /**
+     * Parses a flat JSON object whose values are strings, numbers, booleans,
+     * null or arrays of those, which is all the API accepts. Values are
+     * returned as text, arrays as lists of text.
+     */
+    static Map<String, Object> parseObject(String text) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        int[] pos = {skipSpace(text, 0)};
+        expect(text, pos, '{');
+        if (peek(text, pos) == '}') {
+            pos[0]++;
+            return object;
+        }
+        while (true) {
+            String name = parseString(text, pos);
+            expect(text, pos, ':');
+            if (peek(text, pos) == '[') {
+                object.put(name, parseArray(text, pos));
+            } else {
+                object.put(name, parseValue(text, pos));
+            }
+            char c = peek(text, pos);
+            pos[0]++;
+            if (c == '}') {
+                return object;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException("Invalid JSON: expected , or } at " + (pos[0] - 1));
+            }
+        }
+    }
+
+    private static List<String> parseArray(String text, int[] pos) {
+        List<String> array = new ArrayList<>();
+        expect(text, pos, '[');
+        if (peek(text, pos) == ']') {
+            pos[0]++;
+            return array;
+        }
+        while (true) {
+            array.add(parseValue(text, pos));
+            char c = peek(text, pos);
+            pos[0]++;
+            if (c == ']') {
+                return array;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException("Invalid JSON: expected , or ] at " + (pos[0] - 1));
+            }
+        }
+    }
+
+    private static String parseValue(String text, int[] pos) {
+        if (peek(text, pos) == '"') {
+            return parseString(text, pos);
+        }
+        int start = pos[0];
+        while (pos[0] < text.length() && ",}] \t\r\n".indexOf(text.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        String value = text.substring(start, pos[0]);
+        if (value.equals("null")) {
+            return null;
+        }
+        if (!value.matches("true|false|-?[0-9][0-9.eE+-]*")) {
+            throw new IllegalArgumentException("Invalid JSON value: " + value);
+        }
+        return value;
+    }
+
+    private static String parseString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (pos[0] < text.length()) {
+            char c = text.charAt(pos[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\' && pos[0] < text.length()) {
+                char escaped = text.charAt(pos[0]++);
+                switch (escaped) {
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'u':
+                        if (pos[0] + 4 > text.length()) {
+                            throw new IllegalArgumentException("Invalid JSON escape");
+                        }
+                        value.append((char) Integer.parseInt(text.substring(pos[0], pos[0] + 4), 16));
+                        pos[0] += 4;
+                        break;
+                    default: value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Invalid JSON: unterminated string");
+    }
+
+    private static void expect(String text, int[] pos, char expected) {
+        if (peek(text, pos) != expected) {
+            throw new IllegalArgumentException("Invalid JSON: expected " + expected + " at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static char peek(String text, int[] pos) {
+        pos[0] = skipSpace(text, pos[0]);
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Invalid JSON: unexpected end");
+        }
+        return text.charAt(pos[0]);
+    }
+
+    private static int skipSpace(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static class Entry {
+        private final long id;
+        private final DownloadJob job;
+        // Copy destination to "" once complete, or to the error that stopped it
+        private final Map<String, String> copyResults = new ConcurrentHashMap<>();
+
+        Entry(long id, DownloadJob job) {
+            this.id = id;
+            this.job = job;
+        }
+    }
+
+    /**
+     * A request used a method the resource does not support; answered with 405.
+     */
+    private static class MethodNotAllowedException extends RuntimeException {
+        MethodNotAllowedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A request body was not declared as JSON; answered with 415.
+     */
+    private static class UnsupportedMediaTypeException extends RuntimeException {
+        UnsupportedMediaTypeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A differential package offered by the update service: a patch that turns
+ * the advertised prior build into the new one. Mirrors the namediff,
+ * sizediff and hashdiff_sha256 attributes of a manifest package together
+ * with the codebasediff URLs.
+ */
+public class DeltaPackage {
+    private final List<String> urls;
+    private final long size;
+    private final String sha256;
+    private final String baseVersion;
+    private final String baseFingerprint;
+
+    public DeltaPackage(List<String> urls, long size, String sha256, String baseVersion, String baseFingerprint) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("Delta URLs cannot be null or empty");
+        }
+
+        this.urls = Collections.unmodifiableList(urls);
+        this.size = size;
+        this.sha256 = sha256 != null && !sha256.isEmpty() ? sha256 : null;
+        this.baseVersion = baseVersion;
+        this.baseFingerprint = baseFingerprint;
+    }
+
+    public List<String> getUrls() { return urls; }
+    public long getSize() { return size; }
+    public String getSha256() { return sha256; }
+    public String getBaseVersion() { return baseVersion; }
+    public String getBaseFingerprint() { return baseFingerprint; }
+
+    @Override
+    public String toString() {
+        return "delta from " + baseVersion + " (" + size + " bytes)";
+    }
+}
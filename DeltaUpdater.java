@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Downloads differential packages and reconstructs the new build from the
+ * prior build held in the {@link LocalBuildStore}. Every step is verified
+ * (patch hash, then the manifest hash of the result) and any failure makes
+ * {@link #tryApply} return false so the caller downloads the full package.
+ * Has no JavaFX dependency.
+ */
+public class DeltaUpdater {
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final LocalBuildStore store;
+    private final PatchApplier patchApplier;
+    private final TargetPlatform target;
+    private final String versionLabel;
+
+    public DeltaUpdater(LocalBuildStore store, PatchApplier patchApplier, TargetPlatform target, String versionLabel) {
+        if (store == null) {
+            throw new IllegalArgumentException("Build store cannot be null");
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("Target platform cannot be null");
+        }
+
+        this.store = store;
+        this.patchApplier = patchApplier;
+        this.target = target;
+        this.versionLabel = versionLabel;
+    }
+
+    /**
+     * Gets the stored build to advertise as the prior version, or null.
+     */
+    public LocalBuildStore.Build getPriorBuild() {
+        return store.latest(target, versionLabel);
+    }
+
+    /**
+     * Checks whether a link can be reconstructed from a delta: it has one,
+     * the base build is stored, a patch applier is configured and the
+     * result can be verified against the manifest hash.
+     */
+    public boolean canApply(DownloadLink link) {
+        DeltaPackage delta = link.getDelta();
+        return delta != null && patchApplier != null && link.getSha256() != null
+            && store.find(target, versionLabel, delta.getBaseVersion()) != null;
+    }
+
+    /**
+     * Downloads the link's delta and writes the reconstructed build to
+     * {@code output}. Returns false, leaving {@code output} untouched, if
+     * the delta cannot be used.
+     */
+    public boolean tryApply(DownloadLink link, Path output, ProxySettings proxySettings, BooleanSupplier cancelled) {
+        if (!canApply(link)) {
+            return false;
+        }
+
+        DeltaPackage delta = link.getDelta();
+        LocalBuildStore.Build base = store.find(target, versionLabel, delta.getBaseVersion());
+        Path dir = output.toAbsolutePath().getParent();
+        Path patch = null;
+        Path result = null;
+        try {
+            patch = Files.createTempFile(dir, "delta", ".patch");
+            result = Files.createTempFile(dir, "delta", ".tmp");
+
+            if (!downloadPatch(delta, patch, proxySettings, cancelled)) {
+                return false;
+            }
+            if (delta.getSha256() != null && !delta.getSha256().equalsIgnoreCase(LocalBuildStore.sha256Hex(patch))) {
+                System.err.println("Delta hash mismatch for " + link.getFileName());
+                return false;
+            }
+
+            patchApplier.apply(base.getFile(), patch, result);
+            if (!link.getSha256().equalsIgnoreCase(LocalBuildStore.sha256Hex(result))) {
+                System.err.println("Patched build does not match the manifest hash: " + link.getFileName());
+                return false;
+            }
+
+            Files.move(result, output, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Delta update failed, falling back to full package: " + e.getMessage());
+            return false;
+        } finally {
+            deleteQuietly(patch);
+            deleteQuietly(result);
+        }
+    }
+
+    /**
+     * Stores a completed download as the prior build for the next update.
+     * A file that does not match the manifest hash is not stored.
+     */
+    public void record(DownloadLink link, Path file) {
+        if (link.getVersion() == null || link.getVersion().isEmpty()) {
+            return;
+        }
+        try {
+            if (link.getSha256() != null && !link.getSha256().equalsIgnoreCase(LocalBuildStore.sha256Hex(file))) {
+                System.err.println("Not storing " + file.getFileName() + ": hash does not match the manifest");
+                return;
+            }
+            store.add(target, versionLabel, link.getVersion(), link.getFingerprint(), file);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Failed to store build " + link.getVersion() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Downloads the patch from the first delta URL that works.
+     */
+    private boolean downloadPatch(DeltaPackage delta, Path patch, ProxySettings proxySettings,
+                                  BooleanSupplier cancelled) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
+        SocketHttpClient httpClient = new SocketHttpClient(TIMEOUT_MILLIS, TIMEOUT_MILLIS);
+
+        for (String url : delta.getUrls()) {
+            SocketHttpClient.Response response = null;
+            try {
+                response = httpClient.get(url, headers, proxySettings);
+                if (response.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    System.err.println("Delta download from " + url + " failed: HTTP " + response.getResponseCode());
+                    continue;
+                }
+                try (InputStream in = response.getInputStream();
+                     OutputStream out = Files.newOutputStream(patch)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        if (cancelled.getAsBoolean()) {
+                            return false;
+                        }
+                        out.write(buffer, 0, read);
+                    }
+                }
+                if (delta.getSize() <= 0 || Files.size(patch) == delta.getSize()) {
+                    return true;
+                }
+                System.err.println("Delta download from " + url + " has the wrong size");
+            } catch (IOException e) {
+                System.err.println("Delta download from " + url + " failed: " + e.getMessage());
+            } finally {
+                if (response != null) {
+                    response.disconnect();
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            file.toFile().deleteOnExit();
+        }
+    }
+}
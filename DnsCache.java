@@ -0,0 +1,132 @@
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Application-level resolver cache with explicit positive and negative TTLs.
+ * Also remembers which address of a host last won a connection race, so
+ * later connections try that address first.
+ */
+public class DnsCache {
+    private static final long POSITIVE_TTL_MILLIS = 60 * 1000;
+    private static final long NEGATIVE_TTL_MILLIS = 10 * 1000;
+
+    private static final DnsCache DEFAULT = new DnsCache(POSITIVE_TTL_MILLIS, NEGATIVE_TTL_MILLIS);
+
+    private final long positiveTtlMillis;
+    private final long negativeTtlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public DnsCache(long positiveTtlMillis, long negativeTtlMillis) {
+        this.positiveTtlMillis = positiveTtlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    public static DnsCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Resolves all addresses of a host, from the cache while the entry is fresh.
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        String key = host.toLowerCase();
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+
+        if (entry == null || entry.expiresAt < now) {
+            EngineMetrics.get().increment(EngineMetrics.DNS_CACHE_MISSES);
+            long start = System.nanoTime();
+            try {
+                entry = new Entry(InetAddress.getAllByName(host), null, now + positiveTtlMillis);
+            } catch (UnknownHostException e) {
+                entry = new Entry(null, e, now + negativeTtlMillis);
+            }
+            EngineMetrics.get().recordLatency(EngineMetrics.DNS_RESOLVE, (System.nanoTime() - start) / 1_000_000.0);
+            entries.put(key, entry);
+        } else {
+            EngineMetrics.get().increment(EngineMetrics.DNS_CACHE_HITS);
+        }
+
+        if (entry.error != null) {
+            throw entry.error;
+        }
+        return entry.addresses.clone();
+    }
+
+    /**
+     * Resolves a host to the address that last won a connection race, or
+     * the first address in RFC 8305 order if there is none yet.
+     */
+    public InetAddress resolvePreferred(String host) throws UnknownHostException {
+        return orderForConnect(host).get(0);
+    }
+
+    /**
+     * Gets a host's addresses in connection-attempt order: the last winner
+     * first, then alternating address families as in RFC 8305 section 4.
+     */
+    public List<InetAddress> orderForConnect(String host) throws UnknownHostException {
+        InetAddress[] addresses = resolve(host);
+        Entry entry = entries.get(host.toLowerCase());
+        InetAddress preferred = entry != null ? entry.preferred : null;
+        return interleave(addresses, preferred);
+    }
+
+    /**
+     * Remembers the address a connection to the host succeeded on.
+     */
+    public void markPreferred(String host, InetAddress address) {
+        Entry entry = entries.get(host.toLowerCase());
+        if (entry != null) {
+            entry.preferred = address;
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    static List<InetAddress> interleave(InetAddress[] addresses, InetAddress preferred) {
+        LinkedList<InetAddress> v6 = new LinkedList<>();
+        LinkedList<InetAddress> v4 = new LinkedList<>();
+        for (InetAddress address : addresses) {
+            if (address.equals(preferred)) {
+                continue;
+            }
+            (address instanceof Inet6Address ? v6 : v4).add(address);
+        }
+
+        List<InetAddress> ordered = new ArrayList<>();
+        boolean preferV6 = preferred != null ? preferred instanceof Inet6Address : !v6.isEmpty();
+        if (preferred != null) {
+            ordered.add(preferred);
+            preferV6 = !preferV6;
+        }
+        while (!v6.isEmpty() || !v4.isEmpty()) {
+            LinkedList<InetAddress> first = preferV6 ? v6 : v4;
+            LinkedList<InetAddress> second = preferV6 ? v4 : v6;
+            if (!first.isEmpty()) ordered.add(first.poll());
+            if (!second.isEmpty()) ordered.add(second.poll());
+        }
+        return ordered;
+    }
+
+    private static final class Entry {
+        private final InetAddress[] addresses;
+        private final UnknownHostException error;
+        private final long expiresAt;
+        private volatile InetAddress preferred;
+
+        Entry(InetAddress[] addresses, UnknownHostException error, long expiresAt) {
+            this.addresses = addresses;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
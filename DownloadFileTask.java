@@ -1,284 +1,96 @@
 import javafx.concurrent.Task;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.Proxy;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
 import java.io.File;
-import java.net.SocketTimeoutException;
-import java.net.ConnectException;
-import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
- * Task for downloading files with progress tracking and proxy support.
+ * JavaFX adapter that runs a {@link DownloadJob} as a task, so its progress
+ * and messages can be bound to controls.
  */
 public class DownloadFileTask extends Task<Void> {
-    private final String url;
-    private final File outputFile;
-    private final ProxySettings proxySettings;
-    private HttpURLConnection connection;
-    private ReadableByteChannel rbc;
-    private FileOutputStream fos;
+    private final DownloadJob job;
     
     public DownloadFileTask(String url, File outputFile) {
         this(url, outputFile, new ProxySettings());
     }
     
     public DownloadFileTask(String url, File outputFile, ProxySettings proxySettings) {
-        if (url == null || url.trim().isEmpty()) {
-            throw new IllegalArgumentException("URL cannot be null or empty");
-        }
-        if (outputFile == null) {
-            throw new IllegalArgumentException("Output file cannot be null");
-        }
-        
-        this.url = url;
-        this.outputFile = outputFile;
-        this.proxySettings = proxySettings != null ? proxySettings : new ProxySettings();
-        this.connection = null;
-        this.rbc = null;
-        this.fos = null;
+        this(url, outputFile, proxySettings, null);
     }
-
-    @Override
-    protected Void call() throws Exception {
-        try {
-            return downloadFile();
-        } catch (Exception e) {
-            String cleanMessage = cleanErrorMessage(e.getMessage());
-            throw new IOException(cleanMessage, e);
-        }
+    
+    /**
+     * Creates a download that continues from a speculatively buffered first
+     * segment. The task takes ownership of the segment's temporary file.
+     */
+    public DownloadFileTask(String url, File outputFile, ProxySettings proxySettings,
+                            Future<PrefetchedSegment> prefetchedSegment) {
+        this.job = new DownloadJob(url, outputFile, proxySettings, prefetchedSegment);
     }
     
-    private Void downloadFile() throws Exception {
-        Proxy proxy = proxySettings.createProxy();
-        
-        if (proxySettings.isUseProxy()) {
-            try {
-                URI uri = new URI(this.url);
-                connection = (HttpURLConnection) uri.toURL().openConnection(proxy);
-                
-                if (proxySettings.hasAuthentication()) {
-                    String authHeader = "Basic " + proxySettings.getProxyAuthorization();
-                    connection.setRequestProperty("Proxy-Authorization", authHeader);
-                }
-            } catch (URISyntaxException e) {
-                throw new IOException(I18n.format("error.invalidURL", url), e);
-            }
-        } else {
-            try {
-                connection = (HttpURLConnection) new URI(url).toURL().openConnection();
-            } catch (URISyntaxException e) {
-                throw new IOException(I18n.format("error.invalidURL", url), e);
-            }
-        }
-        
-        connection.setConnectTimeout(30000);
-        connection.setReadTimeout(30000);
-        connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
-        
-        int responseCode;
-        try {
-            updateMessage(I18n.format("status.connecting", url));
-            responseCode = connection.getResponseCode();
-        } catch (SocketTimeoutException e) {
-            if (proxySettings.isUseProxy()) {
-                throw new IOException(I18n.get("error.proxyTimeout"), e);
-            } else {
-                throw new IOException(I18n.get("error.connectionTimeout"), e);
-            }
-        } catch (ConnectException e) {
-            if (proxySettings.isUseProxy()) {
-                throw new IOException(I18n.format("error.connectToProxy", 
-                    proxySettings.getProxyHost(), proxySettings.getProxyPort()), e);
-            } else {
-                throw new IOException(I18n.get("error.cannotConnect"), e);
-            }
-        }
-        
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            String errorMsg = connection.getResponseMessage();
-            connection.disconnect();
-            if (proxySettings.isUseProxy()) {
-                throw new IOException(I18n.format("error.httpViaProxy", responseCode, errorMsg));
-            } else {
-                throw new IOException(I18n.format("error.http", responseCode, errorMsg));
-            }
-        }
-        
-        int fileSize = connection.getContentLength();
-        if (fileSize <= 0) {
-            updateMessage(I18n.get("status.unknownSize"));
-        } else {
-            if (fileSize > 2L * 1024 * 1024 * 1024) {
-                connection.disconnect();
-                throw new IOException(I18n.format("error.fileTooLarge", formatFileSize(fileSize)));
-            }
-            updateMessage(I18n.format("status.totalSize", formatFileSize(fileSize)));
-        }
-
-        if (outputFile.exists()) {
-            updateMessage(I18n.format("status.overwriteWarning", outputFile.getName()));
-        }
+    /**
+     * Gets the engine job, for listeners that do not need the FX thread.
+     */
+    public DownloadJob getJob() {
+        return job;
+    }
+    
+    public void setProxyPool(ProxyPool proxyPool) {
+        job.setProxyPool(proxyPool);
+    }
 
-        long totalRead = 0;
-        
-        try {
-            rbc = Channels.newChannel(connection.getInputStream());
-            fos = new FileOutputStream(outputFile);
+    public void setInterfacePool(InterfacePool interfacePool) {
+        job.setInterfacePool(interfacePool);
+    }
 
-            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
-            int bytesRead;
-            long lastUpdateTime = System.currentTimeMillis();
-            long lastBytesRead = 0;
+    public void setDeltaUpdater(DeltaUpdater deltaUpdater, DownloadLink link) {
+        job.setDeltaUpdater(deltaUpdater, link);
+    }
 
-            while ((bytesRead = rbc.read(buffer)) != -1) {
-                if (isCancelled()) {
-                    updateMessage(I18n.get("status.downloadCancelled"));
-                    connection.disconnect();
-                    return null;
-                }
-                
-                buffer.flip();
-                fos.getChannel().write(buffer);
-                buffer.clear();
-                totalRead += bytesRead;
+    public void setMirrorFallback(DownloadLink link) {
+        job.setMirrorFallback(link);
+    }
 
-                if (fileSize > 0) {
-                    double progress = (double) totalRead / fileSize;
-                    updateProgress(progress, 1.0);
-                    
-                    long currentTime = System.currentTimeMillis();
-                    if (currentTime - lastUpdateTime >= 1000) {
-                        double bytesPerSecond = (totalRead - lastBytesRead) * 1000.0 / (currentTime - lastUpdateTime);
-                        double megabytesPerSecond = bytesPerSecond / (1024 * 1024);
-                        updateMessage(I18n.format("status.progressFormat", 
-                            progress * 100, megabytesPerSecond));
-                        lastUpdateTime = currentTime;
-                        lastBytesRead = totalRead;
-                    }
-                } else {
-                    updateMessage(I18n.format("status.downloaded", formatFileSize(totalRead)));
-                }
-            }
-        } catch (SocketTimeoutException e) {
-            if (proxySettings.isUseProxy()) {
-                throw new IOException(I18n.get("error.proxyTimeout"), e);
-            } else {
-                throw new IOException(I18n.get("error.connectionTimeout"), e);
-            }
-        } finally {
-            cleanupResources();
-        }
-        
-        updateMessage(I18n.format("status.downloadCompleted", formatFileSize(totalRead)));
-        return null;
+    public void setExpectedSha256(String expectedSha256) {
+        job.setExpectedSha256(expectedSha256);
     }
-    
-    @Override
-    protected void cancelled() {
-        super.cancelled();
-        cleanupResources();
+
+    public void setChannel(String channel) {
+        job.setChannel(channel);
     }
-    
-    @Override
-    protected void failed() {
-        super.failed();
-        cleanupResources();
+
+    public void setCopyTargets(List<File> targets) {
+        job.setCopyTargets(targets);
     }
-    
+
     @Override
-    protected void succeeded() {
-        super.succeeded();
-        cleanupResources();
-    }
-    
-    /**
-     * Cleans up resources (streams, channels, connections).
-     */
-    private void cleanupResources() {
-        if (fos != null) {
-            try {
-                fos.flush();
-                fos.close();
-            } catch (IOException e) {
-                System.err.println("Failed to close FileOutputStream: " + e.getMessage());
-            } finally {
-                fos = null;
-            }
-        }
-        
-        if (rbc != null) {
-            try {
-                rbc.close();
-            } catch (IOException e) {
-                System.err.println("Failed to close ReadableByteChannel: " + e.getMessage());
-            } finally {
-                rbc = null;
-            }
-        }
-        
-        if (connection != null) {
-            try {
-                connection.disconnect();
-            } catch (Exception e) {
-                System.err.println("Failed to disconnect connection: " + e.getMessage());
-            } finally {
-                connection = null;
+    protected Void call() throws Exception {
+        job.addListener(new DownloadListener() {
+            @Override
+            public void onMessage(String message) {
+                updateMessage(message);
             }
-        }
-        
-        if (isCancelled() && outputFile.exists() && outputFile.length() > 0) {
-            try {
-                if (outputFile.delete()) {
-                    System.out.println("Deleted incomplete file: " + outputFile.getName());
+
+            @Override
+            public void onProgress(long bytesDone, long totalBytes, double bytesPerSecond) {
+                if (totalBytes > 0) {
+                    updateProgress(bytesDone, totalBytes);
                 }
-            } catch (SecurityException e) {
-                System.err.println("Cannot delete file due to security restrictions: " + outputFile.getName());
             }
+        });
+        job.run();
+        if (job.isCancelled() && !isCancelled()) {
+            // Cancelled from outside the UI, e.g. through JMX
+            cancel(false);
         }
+        return null;
     }
     
-    /**
-     * Cleans error messages for user display.
-     */
-    private String cleanErrorMessage(String originalMessage) {
-        if (originalMessage == null) {
-            return I18n.get("error.unknown");
-        }
-        
-        if (originalMessage.contains("timed out") || 
-            originalMessage.contains("timeout") || 
-            originalMessage.contains("getsockopt")) {
-            return I18n.get("error.connectionTimeout");
-        }
-        
-        if (originalMessage.contains("Connection refused")) {
-            return I18n.get("error.connectionRefused");
-        }
-        
-        if (originalMessage.contains("ConnectException")) {
-            return I18n.get("error.connectionFailed");
-        }
-        
-        int colonIndex = originalMessage.indexOf(":");
-        if (colonIndex > 0) {
-            return originalMessage.substring(0, colonIndex).trim();
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            job.cancel();
         }
-        
-        return originalMessage;
-    }
-    
-    /**
-     * Formats file size for display.
-     */
-    private String formatFileSize(long bytes) {
-        if (bytes < 1024) return bytes + " B";
-        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
-        if (bytes < 1024 * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
-        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+        return cancelled;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,1179 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.io.File;
+import java.net.SocketTimeoutException;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Downloads a file with progress tracking and proxy support. Has no JavaFX
+ * dependency: progress, status messages and state changes go out to
+ * {@link DownloadListener}s, on the downloading thread, so the same engine
+ * serves the UI (through {@link DownloadFileTask}), headless and server use.
+ */
+public class DownloadJob {
+    /**
+     * The lifecycle of a job. The last three states are final.
+     */
+    public enum State { READY, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    private volatile String url;
+    private volatile String upstreamUrl;
+    private String rewriteRule;
+    private final File outputFile;
+    private final ProxySettings proxySettings;
+    // Written only by the downloading thread; cancel() reads them to close what is open
+    private volatile SocketHttpClient.Response connection;
+    private volatile ReadableByteChannel rbc;
+    private volatile FileOutputStream fos;
+    private volatile FileChannel fileChannel;
+    private Future<PrefetchedSegment> prefetchedSegment;
+    private ProxyPool proxyPool;
+    private InterfacePool interfacePool;
+    private DeltaUpdater deltaUpdater;
+    private DownloadLink deltaLink;
+    private String expectedSha256;
+    private ChunkManifest chunks;
+    private String channel;
+    private final List<File> copyTargets = new ArrayList<>();
+    private volatile TeeWriter tee;
+    private boolean shared = true;
+    private volatile boolean leading;
+    private SingleFlight.Progress sharedProgress;
+    private final CompletableFuture<Void> cancelSignal = new CompletableFuture<>();
+    private long lastUpdateTime;
+    private long lastBytesRead;
+    private final List<DownloadListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile State state = State.READY;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+    private volatile String message;
+    private volatile long bytesDone;
+    private volatile long totalBytes = -1;
+    private volatile double bytesPerSecond;
+    private volatile boolean paused;
+    private final Object pauseLock = new Object();
+    private volatile SegmentedDownload segmentedDownload;
+    private int finishedRetries;
+    
+    public DownloadJob(String url, File outputFile) {
+        this(url, outputFile, new ProxySettings());
+    }
+    
+    public DownloadJob(String url, File outputFile, ProxySettings proxySettings) {
+        this(url, outputFile, proxySettings, null);
+    }
+    
+    /**
+     * Creates a download that continues from a speculatively buffered first
+     * segment. The task takes ownership of the segment's temporary file.
+     */
+    public DownloadJob(String url, File outputFile, ProxySettings proxySettings,
+                            Future<PrefetchedSegment> prefetchedSegment) {
+        if (url == null || url.trim().isEmpty()) {
+            throw new IllegalArgumentException("URL cannot be null or empty");
+        }
+        if (outputFile == null) {
+            throw new IllegalArgumentException("Output file cannot be null");
+        }
+        
+        this.url = url;
+        this.outputFile = outputFile;
+        this.proxySettings = proxySettings != null ? proxySettings : new ProxySettings();
+        this.connection = null;
+        this.rbc = null;
+        this.fos = null;
+        this.prefetchedSegment = prefetchedSegment;
+    }
+    
+    /**
+     * Lets range segments go through the proxies of a pool instead of only
+     * the proxy given at construction.
+     */
+    public void setProxyPool(ProxyPool proxyPool) {
+        this.proxyPool = proxyPool;
+    }
+
+    /**
+     * Binds the connections of range segments to the pool's local addresses.
+     */
+    public void setInterfacePool(InterfacePool interfacePool) {
+        this.interfacePool = interfacePool;
+    }
+
+    /**
+     * Tries the link's differential package first, falling back to the
+     * full download, and stores the finished build for later deltas.
+     */
+    public void setDeltaUpdater(DeltaUpdater deltaUpdater, DownloadLink link) {
+        this.deltaUpdater = deltaUpdater;
+        this.deltaLink = link;
+    }
+
+    /**
+     * Marks the URL as the link's internal mirror, so a miss or error there
+     * switches to the upstream URL, before the transfer starts or, keeping
+     * what was written, part way through it. Hits and misses are counted
+     * for the link's rewrite rule. Links that were not rewritten are ignored.
+     */
+    public void setMirrorFallback(DownloadLink link) {
+        if (link != null && link.isRewritten() && link.getUrl().equals(url)) {
+            this.upstreamUrl = link.getUpstreamUrl();
+            this.rewriteRule = link.getRewriteRule();
+        }
+    }
+
+    /**
+     * Sets the manifest hash of the file. Concurrent tasks for the same URL
+     * and hash share one transfer.
+     */
+    public void setExpectedSha256(String expectedSha256) {
+        this.expectedSha256 = expectedSha256;
+    }
+
+    /**
+     * Sets the channel (version label) recorded with this download's flight recorder events.
+     */
+    public void setChannel(String channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Also writes the file to these destinations while it downloads, instead
+     * of copying it afterwards. Each destination succeeds or fails on its
+     * own; a failed copy does not fail the download.
+     */
+    public void setCopyTargets(List<File> targets) {
+        copyTargets.clear();
+        if (targets != null) {
+            copyTargets.addAll(targets);
+        }
+    }
+
+    public List<File> getCopyTargets() {
+        return new ArrayList<>(copyTargets);
+    }
+
+    /**
+     * Sets whether the job may share its transfer with a concurrent job for
+     * the same file, as it does by default. Without sharing the output is
+     * always written in place, never copied from another job's result.
+     */
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    public void addListener(DownloadListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DownloadListener listener) {
+        listeners.remove(listener);
+    }
+
+    public String getUrl() { return url; }
+    public File getOutputFile() { return outputFile; }
+    public ProxySettings getProxySettings() { return proxySettings; }
+    public String getChannel() { return channel; }
+    public State getState() { return state; }
+    public Throwable getError() { return error; }
+    public String getMessage() { return message; }
+    public long getBytesDone() { return bytesDone; }
+    public long getTotalBytes() { return totalBytes; }
+    public double getBytesPerSecond() { return bytesPerSecond; }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Gets the proxy route, or the size of the pool segments are spread over.
+     */
+    public String getProxyDescription() {
+        if (proxyPool != null) {
+            return "pool of " + proxyPool.getEndpoints().size();
+        }
+        return proxySettings.isUseProxy() ? proxySettings.toString() : "direct";
+    }
+
+    /**
+     * Gets how many times failed segments were retried so far.
+     */
+    public int getRetries() {
+        SegmentedDownload download = segmentedDownload;
+        return finishedRetries + (download != null ? download.getRetries() : 0);
+    }
+
+    /**
+     * Holds the transfer after the buffer being read. Connections stay
+     * open, so a long pause may end in segment retries.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits while the job is paused, then tells whether it was cancelled.
+     * Transfer loops call this between buffers.
+     */
+    private boolean checkpoint() {
+        if (paused) {
+            synchronized (pauseLock) {
+                while (paused && !cancelled) {
+                    try {
+                        pauseLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return true;
+                    }
+                }
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Runs the download on the calling thread. A failure is thrown with a
+     * message cleaned up for display; a cancelled job returns normally.
+     */
+    public void run() throws Exception {
+        setState(State.RUNNING);
+        EngineManagement.register(this);
+        long start = System.nanoTime();
+        try {
+            startCopies();
+            downloadFile();
+            if (!cancelled) {
+                reportCommitted(outputFile.length());
+            }
+            finishCopies();
+            setState(cancelled ? State.CANCELLED : State.SUCCEEDED);
+            if (!cancelled) {
+                EngineMetrics.get().recordLatency(EngineMetrics.DOWNLOAD, (System.nanoTime() - start) / 1_000_000.0);
+                EngineMetrics.get().add(EngineMetrics.DOWNLOAD_BYTES, outputFile.length());
+            }
+        } catch (Exception e) {
+            saveChunks();
+            if (cancelled) {
+                return;
+            }
+            error = new IOException(cleanErrorMessage(e.getMessage()), e);
+            setState(State.FAILED);
+            throw (IOException) error;
+        } finally {
+            cleanupResources();
+            if (cancelled) {
+                deletePartialFile();
+            }
+            abortCopies();
+            EngineManagement.unregister(this);
+        }
+    }
+
+    private void startCopies() {
+        if (copyTargets.isEmpty()) {
+            return;
+        }
+        List<Path> destinations = new ArrayList<>();
+        for (File target : copyTargets) {
+            destinations.add(target.toPath());
+        }
+        tee = new TeeWriter(destinations);
+    }
+
+    /**
+     * Completes the copies from the finished file and reports each one.
+     */
+    private void finishCopies() throws IOException {
+        TeeWriter current = tee;
+        if (current == null || cancelled) {
+            return;
+        }
+        tee = null;
+        for (TeeWriter.Result result : current.finish(outputFile.toPath())) {
+            File destination = result.getDestination().toFile();
+            if (!result.isSuccessful()) {
+                System.err.println("Copy to " + destination + " failed: " + result.getError().getMessage());
+                updateMessage(I18n.format("status.copyFailed", destination, result.getError().getMessage()));
+            }
+            for (DownloadListener listener : listeners) {
+                listener.onCopyFinished(destination, result.getError());
+            }
+        }
+    }
+
+    private void abortCopies() {
+        TeeWriter current = tee;
+        if (current != null) {
+            tee = null;
+            current.abort();
+        }
+    }
+
+    /**
+     * Stops the download. Open connections and files are closed right away,
+     * so a blocked transfer returns; the downloading thread then deletes the
+     * partial file and the copies. Safe to call from any thread.
+     */
+    public void cancel() {
+        if (cancelled || state == State.SUCCEEDED || state == State.FAILED) {
+            return;
+        }
+        cancelled = true;
+        cancelSignal.complete(null);
+        resume();
+        setState(State.CANCELLED);
+        closeOpenResources();
+    }
+
+    /**
+     * Closes whatever the downloading thread has open without clearing its
+     * fields, which only that thread does. Closing twice is harmless.
+     */
+    private void closeOpenResources() {
+        SocketHttpClient.Response currentConnection = connection;
+        if (currentConnection != null) {
+            currentConnection.disconnect();
+        }
+        ReadableByteChannel currentChannel = rbc;
+        FileOutputStream currentStream = fos;
+        FileChannel currentFile = fileChannel;
+        try {
+            if (currentChannel != null) {
+                currentChannel.close();
+            }
+            if (currentStream != null) {
+                currentStream.close();
+            }
+            if (currentFile != null) {
+                currentFile.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to close download resources: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes the response the one cancel() closes. A response opened after
+     * the job was cancelled is closed at once, so reading it fails fast.
+     */
+    private SocketHttpClient.Response setConnection(SocketHttpClient.Response response) {
+        connection = response;
+        if (response != null && cancelled) {
+            response.disconnect();
+        }
+        return response;
+    }
+
+    private void setState(State newState) {
+        synchronized (this) {
+            if (state == State.SUCCEEDED || state == State.FAILED || state == State.CANCELLED) {
+                return;
+            }
+            state = newState;
+        }
+        if (newState == State.SUCCEEDED) {
+            EngineMetrics.get().increment(EngineMetrics.DOWNLOADS_SUCCEEDED);
+        } else if (newState == State.FAILED) {
+            EngineMetrics.get().increment(EngineMetrics.DOWNLOADS_FAILED);
+        } else if (newState == State.CANCELLED) {
+            EngineMetrics.get().increment(EngineMetrics.DOWNLOADS_CANCELLED);
+        }
+        for (DownloadListener listener : listeners) {
+            listener.onStateChanged(newState);
+        }
+    }
+
+    private void updateMessage(String newMessage) {
+        message = newMessage;
+        for (DownloadListener listener : listeners) {
+            listener.onMessage(newMessage);
+        }
+    }
+
+    private void updateProgress(long done, long total) {
+        bytesDone = done;
+        totalBytes = total;
+        for (DownloadListener listener : listeners) {
+            listener.onProgress(done, total, bytesPerSecond);
+        }
+    }
+    
+    /**
+     * Downloads the file, or attaches to an identical download already
+     * running in another task and copies its result.
+     */
+    private void downloadFile() throws Exception {
+        if (!shared) {
+            downloadDirect();
+            verifyDownload();
+            return;
+        }
+        long size = SharedDownloads.download(url, expectedSha256, outputFile.toPath(),
+            (written, total) -> {
+                if (!leading) {
+                    reportProgress(written, total);
+                }
+            },
+            cancelSignal,
+            publish -> {
+                leading = true;
+                sharedProgress = publish;
+                downloadDirect();
+                verifyDownload();
+                return isCancelled() ? -1 : outputFile.length();
+            });
+        
+        if (!leading && size >= 0) {
+            updateProgress(size, size);
+            updateMessage(I18n.format("status.downloadCompleted", formatFileSize(size)));
+        }
+    }
+    
+    private Void downloadDirect() throws Exception {
+        PrefetchedSegment segment = awaitPrefetchedSegment();
+        if (segment != null && segment.isComplete()) {
+            Files.copy(segment.getFile().toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            segment.delete();
+            updateProgress(segment.getLength(), segment.getLength());
+            updateMessage(I18n.format("status.downloadCompleted", formatFileSize(segment.getLength())));
+            return null;
+        }
+        
+        if (deltaUpdater != null && deltaUpdater.canApply(deltaLink)) {
+            updateMessage(I18n.format("status.deltaDownloading", formatFileSize(deltaLink.getDelta().getSize())));
+            if (deltaUpdater.tryApply(deltaLink, outputFile.toPath(), proxySettings, this::checkpoint)) {
+                if (segment != null) {
+                    segment.delete();
+                }
+                updateProgress(outputFile.length(), outputFile.length());
+                updateMessage(I18n.format("status.downloadCompleted", formatFileSize(outputFile.length())));
+                return null;
+            }
+            if (isCancelled()) {
+                updateMessage(I18n.get("status.downloadCancelled"));
+                return null;
+            }
+            updateMessage(I18n.get("status.deltaFallback"));
+        }
+        
+        try {
+            return downloadFull(segment);
+        } catch (IOException e) {
+            if (!resumeFromUpstream(e)) {
+                throw e;
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Downloads the whole file, or completes the partial file of an earlier
+     * attempt, continuing after the prefetched segment if there is one.
+     */
+    private Void downloadFull(PrefetchedSegment segment) throws Exception {
+        // A partial file left by a failed download is verified and completed instead
+        ChunkManifest partial = ChunkManifest.load(outputFile.toPath(), url);
+        if (partial != null) {
+            if (segment != null) {
+                segment.delete();
+                segment = null;
+            }
+            if (resumeChunks(partial)) {
+                return null;
+            }
+        }
+        
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
+        // An open-ended range lets a 206 response reveal range support and the total size
+        headers.put("Range", "bytes=" + (segment != null ? segment.getLength() : 0) + "-");
+        if (segment != null && segment.getValidator() != null) {
+            headers.put("If-Range", segment.getValidator());
+        }
+        
+        int responseCode;
+        try {
+            updateMessage(I18n.format("status.connecting", url));
+            SocketHttpClient.Response mirrored = upstreamUrl != null ? connectMirror(headers) : null;
+            setConnection(mirrored != null ? mirrored : firstClient().get(url, headers, proxySettings));
+            responseCode = connection.getResponseCode();
+        } catch (SocketTimeoutException e) {
+            if (proxySettings.isUseProxy()) {
+                throw new IOException(I18n.get("error.proxyTimeout"), e);
+            } else {
+                throw new IOException(I18n.get("error.connectionTimeout"), e);
+            }
+        } catch (ConnectException e) {
+            if (proxySettings.isUseProxy()) {
+                throw new IOException(I18n.format("error.connectToProxy", 
+                    proxySettings.getProxyHost(), proxySettings.getProxyPort()), e);
+            } else {
+                throw new IOException(I18n.get("error.cannotConnect"), e);
+            }
+        }
+        
+        // The server ignored the range or the file changed: discard the buffered bytes
+        if (segment != null && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            segment.delete();
+            segment = null;
+        }
+        
+        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            String errorMsg = connection.getResponseMessage();
+            connection.disconnect();
+            if (proxySettings.isUseProxy()) {
+                throw new IOException(I18n.format("error.httpViaProxy", responseCode, errorMsg));
+            } else {
+                throw new IOException(I18n.format("error.http", responseCode, errorMsg));
+            }
+        }
+        
+        long offset = segment != null ? segment.getLength() : 0;
+        long fileSize = connection.getContentLengthLong();
+        if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+            long totalSize = SpeculativePrefetcher.parseContentRangeTotal(connection.getHeaderField("Content-Range"));
+            fileSize = totalSize > 0 ? totalSize : (fileSize > 0 ? fileSize + offset : -1);
+        }
+        if (fileSize <= 0) {
+            updateMessage(I18n.get("status.unknownSize"));
+        } else {
+            if (fileSize > 2L * 1024 * 1024 * 1024) {
+                connection.disconnect();
+                throw new IOException(I18n.format("error.fileTooLarge", formatFileSize(fileSize)));
+            }
+            updateMessage(I18n.format("status.totalSize", formatFileSize(fileSize)));
+        }
+
+        if (outputFile.exists()) {
+            updateMessage(I18n.format("status.overwriteWarning", outputFile.getName()));
+        }
+        if (fileSize > 0) {
+            chunks = ChunkManifest.create(outputFile.toPath(), url, connection.getValidator(), fileSize);
+        }
+
+        if (responseCode == HttpURLConnection.HTTP_PARTIAL && fileSize > 0
+                && SegmentedDownload.segmentCount(fileSize - offset) > 1) {
+            return downloadSegments(segment, offset, fileSize);
+        }
+
+        long totalRead = 0;
+        
+        try {
+            rbc = Channels.newChannel(connection.getInputStream());
+            if (segment != null) {
+                Files.copy(segment.getFile().toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                totalRead = segment.getLength();
+                segment.delete();
+                fos = new FileOutputStream(outputFile, true);
+            } else {
+                fos = new FileOutputStream(outputFile);
+            }
+            ChunkManifest.Tracker tracker = chunks != null ? chunks.track(totalRead) : null;
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            int bytesRead;
+            lastUpdateTime = System.currentTimeMillis();
+            lastBytesRead = totalRead;
+
+            while ((bytesRead = rbc.read(buffer)) != -1) {
+                if (checkpoint()) {
+                    updateMessage(I18n.get("status.downloadCancelled"));
+                    connection.disconnect();
+                    return null;
+                }
+                
+                buffer.flip();
+                // Hash only what reached the file, so a failed write leaves the chunk unhashed
+                ByteBuffer data = buffer.duplicate();
+                if (tee != null) {
+                    tee.write(totalRead, buffer);
+                }
+                EngineEvents.DiskFlush flush = new EngineEvents.DiskFlush();
+                flush.begin();
+                while (buffer.hasRemaining()) {
+                    fos.getChannel().write(buffer);
+                }
+                commitFlush(flush, totalRead, bytesRead);
+                if (tracker != null) {
+                    tracker.update(data);
+                }
+                buffer.clear();
+                totalRead += bytesRead;
+                reportCommitted(totalRead);
+                reportProgress(totalRead, fileSize);
+            }
+            if (fileSize > 0 && totalRead < fileSize) {
+                throw new IOException("Connection closed early at byte " + totalRead);
+            }
+        } catch (SocketTimeoutException e) {
+            if (proxySettings.isUseProxy()) {
+                throw new IOException(I18n.get("error.proxyTimeout"), e);
+            } else {
+                throw new IOException(I18n.get("error.connectionTimeout"), e);
+            }
+        } finally {
+            cleanupResources();
+        }
+        
+        finishChunks();
+        updateMessage(I18n.format("status.downloadCompleted", formatFileSize(totalRead)));
+        return null;
+    }
+    
+    /**
+     * Continues a transfer that failed part way on the internal mirror from
+     * the upstream URL and counts a miss for the rewrite rule. Chunks that
+     * were written and hashed are kept and only the rest is fetched; a file
+     * of unknown size starts over. Returns false if the job was not on a
+     * mirror, so the failure stands.
+     */
+    private boolean resumeFromUpstream(IOException failure) throws Exception {
+        if (upstreamUrl == null || isCancelled()) {
+            return false;
+        }
+        System.err.println("Mirror " + url + " failed mid-transfer (" + failure.getMessage()
+            + "), resuming from " + upstreamUrl);
+        MirrorRewriter.getDefault().recordMiss(rewriteRule);
+        url = upstreamUrl;
+        upstreamUrl = null;
+        
+        ChunkManifest partial = chunks;
+        chunks = null;
+        if (partial != null && outputFile.exists() && resumeChunks(partial.forUrl(url))) {
+            return true;
+        }
+        downloadFull(null);
+        return true;
+    }
+    
+    /**
+     * Opens the transfer on the internal mirror. After a miss or error the
+     * job switches to the upstream URL and null is returned.
+     */
+    private SocketHttpClient.Response connectMirror(Map<String, String> headers) {
+        MirrorRewriter rewriter = MirrorRewriter.getDefault();
+        try {
+            SocketHttpClient.Response response = firstClient().get(url, headers, proxySettings);
+            int responseCode = response.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                rewriter.recordHit(rewriteRule);
+                return response;
+            }
+            response.disconnect();
+            System.err.println("Mirror " + url + " answered HTTP " + responseCode + ", falling back to " + upstreamUrl);
+        } catch (IOException e) {
+            System.err.println("Mirror " + url + " failed (" + e.getMessage() + "), falling back to " + upstreamUrl);
+        }
+        rewriter.recordMiss(rewriteRule);
+        url = upstreamUrl;
+        upstreamUrl = null;
+        updateMessage(I18n.format("status.connecting", url));
+        return null;
+    }
+
+    /**
+     * Downloads the rest of the file in parallel range segments. The open
+     * connection already streams from {@code offset} and serves the first one.
+     */
+    private Void downloadSegments(PrefetchedSegment prefix, long offset, long fileSize) throws Exception {
+        try {
+            if (prefix != null) {
+                Files.copy(prefix.getFile().toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                prefix.delete();
+                fileChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE);
+            } else {
+                fileChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            
+            String validator = connection.getValidator();
+            SegmentedDownload download = new SegmentedDownload(url, fileChannel, proxySettings,
+                proxyPool, validator, this::checkpoint);
+            download.setChunkManifest(chunks);
+            download.setInterfacePool(interfacePool);
+            download.setChannel(channel);
+            download.setTee(tee);
+            
+            lastUpdateTime = System.currentTimeMillis();
+            lastBytesRead = offset;
+            runSegments(download, offset, fileSize, SegmentedDownload.segmentCount(fileSize - offset),
+                written -> {
+                    reportCommitted(download.getCommittedPosition());
+                    reportProgress(offset + written, fileSize);
+                });
+            
+            if (isCancelled()) {
+                updateMessage(I18n.get("status.downloadCancelled"));
+                return null;
+            }
+        } catch (SocketTimeoutException e) {
+            if (proxySettings.isUseProxy()) {
+                throw new IOException(I18n.get("error.proxyTimeout"), e);
+            } else {
+                throw new IOException(I18n.get("error.connectionTimeout"), e);
+            }
+        } finally {
+            cleanupResources();
+        }
+        
+        finishChunks();
+        updateMessage(I18n.format("status.downloadCompleted", formatFileSize(fileSize)));
+        return null;
+    }
+    
+    /**
+     * Runs a segmented download over the open connection, keeping it
+     * visible for its retry count while it runs.
+     */
+    private void runSegments(SegmentedDownload download, long start, long end, int segments,
+                             LongConsumer progress) throws IOException, InterruptedException {
+        segmentedDownload = download;
+        try {
+            download.run(connection, start, end, segments, progress);
+        } finally {
+            finishedRetries += download.getRetries();
+            segmentedDownload = null;
+        }
+    }
+    
+    /**
+     * Completes a partial file: verifies its recorded chunks in parallel and
+     * fetches only the chunks that are missing or fail their hash. Returns
+     * false if the file changed on the server, so it must be downloaded again.
+     */
+    private boolean resumeChunks(ChunkManifest manifest) throws Exception {
+        updateMessage(I18n.get("status.verifyingChunks"));
+        EngineEvents.Verification verification = new EngineEvents.Verification();
+        verification.begin();
+        long recorded = manifest.getRecordedBytes();
+        long verified = manifest.verify(outputFile.toPath());
+        commitVerification(verification, "chunks", verified, verified == recorded);
+        long fileSize = manifest.getSize();
+        chunks = manifest;
+        updateMessage(I18n.format("status.resumingChunks", formatFileSize(verified),
+            formatFileSize(fileSize - verified)));
+        
+        long done = verified;
+        try {
+            fileChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE);
+            if (fileChannel.size() > fileSize) {
+                fileChannel.truncate(fileSize);
+            }
+            lastUpdateTime = System.currentTimeMillis();
+            lastBytesRead = verified;
+            
+            for (long[] range : manifest.missingRanges()) {
+                if (checkpoint()) {
+                    updateMessage(I18n.get("status.downloadCancelled"));
+                    return true;
+                }
+                if (setConnection(openChunkRange(manifest, range[0], range[1])) == null) {
+                    manifest.delete();
+                    chunks = null;
+                    return false;
+                }
+                
+                long base = done;
+                int segments = SegmentedDownload.segmentCount(range[1] - range[0]);
+                if (segments > 1) {
+                    SegmentedDownload download = new SegmentedDownload(url, fileChannel, proxySettings,
+                        proxyPool, manifest.getValidator(), this::checkpoint);
+                    download.setChunkManifest(manifest);
+                    download.setInterfacePool(interfacePool);
+                    download.setChannel(channel);
+                    download.setTee(tee);
+                    runSegments(download, range[0], range[1], segments,
+                        written -> reportProgress(base + written, fileSize));
+                } else {
+                    writeRange(connection, range[0], range[1], base, fileSize);
+                }
+                connection.disconnect();
+                connection = null;
+                done += range[1] - range[0];
+            }
+        } finally {
+            cleanupResources();
+        }
+        
+        if (isCancelled()) {
+            updateMessage(I18n.get("status.downloadCancelled"));
+            return true;
+        }
+        finishChunks();
+        updateMessage(I18n.format("status.downloadCompleted", formatFileSize(fileSize)));
+        return true;
+    }
+    
+    /**
+     * Requests [start, end) of a partial file. Returns null if the server
+     * sent the whole file instead, i.e. it changed since the partial download.
+     */
+    private SocketHttpClient.Response openChunkRange(ChunkManifest manifest, long start, long end) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
+        headers.put("Range", "bytes=" + start + "-" + (end - 1));
+        if (manifest.getValidator() != null) {
+            headers.put("If-Range", manifest.getValidator());
+        }
+        
+        updateMessage(I18n.format("status.connecting", url));
+        SocketHttpClient.Response response = firstClient().get(url, headers, proxySettings);
+        int responseCode = response.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            String errorMsg = response.getResponseMessage();
+            response.disconnect();
+            throw new IOException(I18n.format("error.http", responseCode, errorMsg));
+        }
+        String contentRange = response.getHeaderField("Content-Range");
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL
+                || SegmentedDownload.parseContentRangeStart(contentRange) != start
+                || SpeculativePrefetcher.parseContentRangeTotal(contentRange) != manifest.getSize()) {
+            response.disconnect();
+            return null;
+        }
+        return response;
+    }
+    
+    /**
+     * Gets the client for the first connection, which serves the first
+     * segment and so leaves through the first local address of the pool.
+     */
+    private SocketHttpClient firstClient() {
+        return interfacePool != null ? interfacePool.forSegment(0).getHttpClient() : new SocketHttpClient(30000, 30000);
+    }
+    
+    /**
+     * Writes one range of a resumed file from a single connection.
+     */
+    private void writeRange(SocketHttpClient.Response response, long start, long end,
+                            long base, long fileSize) throws IOException {
+        ChunkManifest.Tracker tracker = chunks.track(start);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        long position = start;
+        try (ReadableByteChannel in = Channels.newChannel(response.getInputStream())) {
+            while (position < end) {
+                if (checkpoint()) {
+                    return;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int bytesRead = in.read(buffer);
+                if (bytesRead == -1) {
+                    throw new IOException("Connection closed early at byte " + position);
+                }
+                buffer.flip();
+                ByteBuffer data = buffer.duplicate();
+                EngineEvents.DiskFlush flush = new EngineEvents.DiskFlush();
+                flush.begin();
+                long flushStart = position;
+                if (tee != null) {
+                    tee.write(position, buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+                commitFlush(flush, flushStart, position - flushStart);
+                tracker.update(data);
+                reportProgress(base + position - start, fileSize);
+            }
+        }
+    }
+    
+    /**
+     * Drops the chunk manifest of a download that completed.
+     */
+    private void finishChunks() {
+        if (chunks != null && !isCancelled()) {
+            chunks.delete();
+            chunks = null;
+        }
+    }
+    
+    /**
+     * Keeps the chunk manifest of a failed download so it can be resumed.
+     */
+    private void saveChunks() {
+        if (chunks != null && !isCancelled() && outputFile.exists()) {
+            try {
+                chunks.save();
+            } catch (IOException e) {
+                System.err.println("Failed to save chunk manifest: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Checks the finished file against the manifest hash, whichever way it
+     * was obtained, and only then keeps it in the build store. A file that
+     * does not match is deleted, so it is neither used nor resumed.
+     */
+    private void verifyDownload() throws IOException {
+        if (isCancelled()) {
+            return;
+        }
+        if (expectedSha256 != null && !verifySha256()) {
+            if (chunks != null) {
+                chunks.delete();
+                chunks = null;
+            }
+            Files.deleteIfExists(outputFile.toPath());
+            throw new IOException(I18n.get("error.hashMismatch"));
+        }
+        recordBuild();
+    }
+    
+    private boolean verifySha256() throws IOException {
+        EngineEvents.Verification event = new EngineEvents.Verification();
+        event.begin();
+        boolean passed = expectedSha256.equalsIgnoreCase(LocalBuildStore.sha256Hex(outputFile.toPath()));
+        commitVerification(event, "sha256", outputFile.length(), passed);
+        return passed;
+    }
+    
+    private void commitVerification(EngineEvents.Verification event, String kind, long bytes, boolean passed) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.channel = channel;
+            event.host = HostPermits.hostOf(url);
+            event.kind = kind;
+            event.bytes = bytes;
+            event.passed = passed;
+            event.commit();
+        }
+    }
+    
+    private void commitFlush(EngineEvents.DiskFlush event, long position, long bytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.channel = channel;
+            event.host = HostPermits.hostOf(url);
+            event.position = position;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Updates progress, and the progress/speed message at most once a second.
+     */
+    private void reportProgress(long totalRead, long fileSize) {
+        if (leading && sharedProgress != null) {
+            sharedProgress.accept(totalRead, fileSize);
+        }
+        EngineEvents.ProgressDispatch event = new EngineEvents.ProgressDispatch();
+        event.begin();
+        dispatchProgress(totalRead, fileSize);
+        event.end();
+        if (event.shouldCommit()) {
+            event.channel = channel;
+            event.host = HostPermits.hostOf(url);
+            event.proxyType = EngineEvents.proxyType(proxySettings);
+            event.bytes = totalRead;
+            event.commit();
+        }
+    }
+    
+    private void reportCommitted(long position) {
+        if (position < 0) {
+            return;
+        }
+        for (DownloadListener listener : listeners) {
+            listener.onCommitted(position);
+        }
+    }
+    
+    private void dispatchProgress(long totalRead, long fileSize) {
+        long currentTime = System.currentTimeMillis();
+        boolean rateDue = currentTime - lastUpdateTime >= 1000;
+        if (rateDue) {
+            bytesPerSecond = (totalRead - lastBytesRead) * 1000.0 / (currentTime - lastUpdateTime);
+            lastUpdateTime = currentTime;
+            lastBytesRead = totalRead;
+        }
+        updateProgress(totalRead, fileSize);
+        
+        if (fileSize > 0) {
+            if (rateDue) {
+                double progress = (double) totalRead / fileSize;
+                double megabytesPerSecond = bytesPerSecond / (1024 * 1024);
+                updateMessage(I18n.format("status.progressFormat", 
+                    progress * 100, megabytesPerSecond));
+            }
+        } else {
+            updateMessage(I18n.format("status.downloaded", formatFileSize(totalRead)));
+        }
+    }
+    
+    /**
+     * Keeps the finished file in the build store when delta updates are on.
+     */
+    private void recordBuild() {
+        if (deltaUpdater != null && deltaLink != null && !isCancelled()) {
+            deltaUpdater.record(deltaLink, outputFile.toPath());
+        }
+    }
+    
+    /**
+     * Waits for the speculative first segment, if one was handed over.
+     * A failed prefetch simply means downloading from the start.
+     */
+    private PrefetchedSegment awaitPrefetchedSegment() {
+        if (prefetchedSegment == null) {
+            return null;
+        }
+        
+        try {
+            PrefetchedSegment segment = prefetchedSegment.get();
+            if (segment != null && segment.getUrl().equals(url)) {
+                return segment;
+            }
+            if (segment != null) {
+                segment.delete();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Speculative segment unavailable: " + e.getCause());
+        } finally {
+            prefetchedSegment = null;
+        }
+        return null;
+    }
+    
+    /**
+     * Cleans up resources (streams, channels, connections).
+     */
+    private void cleanupResources() {
+        if (fos != null) {
+            try {
+                fos.flush();
+                fos.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close FileOutputStream: " + e.getMessage());
+            } finally {
+                fos = null;
+            }
+        }
+        
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close FileChannel: " + e.getMessage());
+            } finally {
+                fileChannel = null;
+            }
+        }
+        
+        if (rbc != null) {
+            try {
+                rbc.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close ReadableByteChannel: " + e.getMessage());
+            } finally {
+                rbc = null;
+            }
+        }
+        
+        if (connection != null) {
+            try {
+                connection.disconnect();
+            } catch (Exception e) {
+                System.err.println("Failed to disconnect connection: " + e.getMessage());
+            } finally {
+                connection = null;
+            }
+        }
+    }
+    
+    /**
+     * Deletes the partial file of a cancelled download and its chunk
+     * manifest. Runs on the downloading thread once nothing writes to them.
+     */
+    private void deletePartialFile() {
+        try {
+            Files.deleteIfExists(ChunkManifest.sidecarFor(outputFile.toPath()));
+        } catch (IOException e) {
+            System.err.println("Failed to delete chunk manifest: " + e.getMessage());
+        }
+        
+        if (outputFile.exists() && outputFile.length() > 0) {
+            try {
+                if (outputFile.delete()) {
+                    System.out.println("Deleted incomplete file: " + outputFile.getName());
+                }
+            } catch (SecurityException e) {
+                System.err.println("Cannot delete file due to security restrictions: " + outputFile.getName());
+            }
+        }
+    }
+    
+    /**
+     * Cleans error messages for user display.
+     */
+    private String cleanErrorMessage(String originalMessage) {
+        if (originalMessage == null) {
+            return I18n.get("error.unknown");
+        }
+        
+        if (originalMessage.contains("timed out") || 
+            originalMessage.contains("timeout") || 
+            originalMessage.contains("getsockopt")) {
+            return I18n.get("error.connectionTimeout");
+        }
+        
+        if (originalMessage.contains("Connection refused")) {
+            return I18n.get("error.connectionRefused");
+        }
+        
+        if (originalMessage.contains("ConnectException")) {
+            return I18n.get("error.connectionFailed");
+        }
+        
+        int colonIndex = originalMessage.indexOf(":");
+        if (colonIndex > 0) {
+            return originalMessage.substring(0, colonIndex).trim();
+        }
+        
+        return originalMessage;
+    }
+    
+    /**
+     * Formats file size for display.
+     */
+    static String formatFileSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024 * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
\ No newline at end of file
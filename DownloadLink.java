@@ -0,0 +1,124 @@
+import java.net.URI;
+import java.util.Objects;
+
+/**
+ * A single download link resolved from the update service manifest,
+ * enriched asynchronously with the result of a HEAD probe.
+ */
+public class DownloadLink {
+    private final String url;
+    private final String version;
+    private final long manifestSize;
+    private final String sha256;
+    private final String fingerprint;
+    private final DeltaPackage delta;
+    private final String upstreamUrl;
+    private final String rewriteRule;
+    private volatile LinkProbe probe;
+
+    public DownloadLink(String url) {
+        this(url, null, -1, null);
+    }
+
+    public DownloadLink(String url, String version, long manifestSize, String sha256) {
+        this(url, version, manifestSize, sha256, null, null);
+    }
+
+    /**
+     * Creates a link that carries the package fingerprint and, when the
+     * service offered one, a differential package from a prior build.
+     */
+    public DownloadLink(String url, String version, long manifestSize, String sha256,
+                        String fingerprint, DeltaPackage delta) {
+        this(url, version, manifestSize, sha256, fingerprint, delta, null, null);
+    }
+
+    private DownloadLink(String url, String version, long manifestSize, String sha256,
+                         String fingerprint, DeltaPackage delta, String upstreamUrl, String rewriteRule) {
+        if (url == null || url.trim().isEmpty()) {
+            throw new IllegalArgumentException("URL cannot be null or empty");
+        }
+
+        this.url = url;
+        this.version = version;
+        this.manifestSize = manifestSize;
+        this.sha256 = sha256 != null && !sha256.isEmpty() ? sha256 : null;
+        this.fingerprint = fingerprint != null && !fingerprint.isEmpty() ? fingerprint : null;
+        this.delta = delta;
+        this.upstreamUrl = upstreamUrl;
+        this.rewriteRule = rewriteRule;
+        this.probe = null;
+    }
+
+    /**
+     * Creates the same package served from a mirror URL by a rewrite rule,
+     * remembering this link's URL as the upstream to fall back to.
+     */
+    public DownloadLink rewrite(String mirrorUrl, String rule) {
+        return new DownloadLink(mirrorUrl, version, manifestSize, sha256, fingerprint, delta, url, rule);
+    }
+
+    public String getUrl() { return url; }
+    public String getVersion() { return version; }
+    public long getManifestSize() { return manifestSize; }
+    public String getSha256() { return sha256; }
+    public String getFingerprint() { return fingerprint; }
+    public DeltaPackage getDelta() { return delta; }
+    public LinkProbe getProbe() { return probe; }
+    public String getUpstreamUrl() { return upstreamUrl; }
+    public String getRewriteRule() { return rewriteRule; }
+
+    public boolean isRewritten() {
+        return rewriteRule != null;
+    }
+
+    void setProbe(LinkProbe probe) {
+        this.probe = probe;
+    }
+
+    /**
+     * Gets the host name of the link, or the raw URL if it cannot be parsed.
+     */
+    public String getHost() {
+        try {
+            String host = new URI(url).getHost();
+            return host != null ? host : url;
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    public String getFileName() {
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Gets the best known size: the probed Content-Length, else the manifest size.
+     */
+    public long getSize() {
+        LinkProbe current = probe;
+        if (current != null && current.isSuccessful() && current.getContentLength() > 0) {
+            return current.getContentLength();
+        }
+        return manifestSize;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DownloadLink that = (DownloadLink) o;
+        return url.equals(that.url) && Objects.equals(sha256, that.sha256);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(url, sha256);
+    }
+}
@@ -0,0 +1,59 @@
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+
+/**
+ * List cell rendering a download link with its numbered URL on the left
+ * and the probe summary (size, latency, ranges, server) on the right.
+ */
+public class DownloadLinkCell extends ListCell<DownloadLink> {
+    private final Label urlLabel = new Label();
+    private final Label probeLabel = new Label();
+    private final HBox container;
+
+    public DownloadLinkCell() {
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        urlLabel.setMinWidth(0);
+        probeLabel.setMinWidth(Region.USE_PREF_SIZE);
+        container = new HBox(10, urlLabel, spacer, probeLabel);
+    }
+
+    @Override
+    protected void updateItem(DownloadLink link, boolean empty) {
+        super.updateItem(link, empty);
+
+        if (empty || link == null) {
+            setText(null);
+            setGraphic(null);
+            return;
+        }
+
+        urlLabel.setText((getIndex() + 1) + ". " + link.getUrl());
+        updateProbeLabel(link);
+        setText(null);
+        setGraphic(container);
+    }
+
+    private void updateProbeLabel(DownloadLink link) {
+        LinkProbe probe = link.getProbe();
+
+        if (probe == null) {
+            probeLabel.setText(link.getManifestSize() > 0
+                ? I18n.format("probe.pendingWithSize", DownloadJob.formatFileSize(link.getManifestSize()))
+                : I18n.get("probe.pending"));
+            probeLabel.setStyle("-fx-text-fill: gray;");
+        } else if (!probe.isSuccessful()) {
+            probeLabel.setText(I18n.format("probe.failed", probe.getError()));
+            probeLabel.setStyle("-fx-text-fill: red;");
+        } else {
+            String size = link.getSize() > 0 ? DownloadJob.formatFileSize(link.getSize()) : "?";
+            String ranges = I18n.get(probe.isAcceptsRanges() ? "probe.ranges" : "probe.noRanges");
+            String server = probe.getServer() != null ? probe.getServer() : "?";
+            probeLabel.setText(I18n.format("probe.summary", size, probe.getLatencyMillis(), ranges, server));
+            probeLabel.setStyle(probe.getLatencyMillis() > 1000 ? "-fx-text-fill: orange;" : "-fx-text-fill: green;");
+        }
+    }
+}
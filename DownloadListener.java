@@ -0,0 +1,42 @@
+import java.io.File;
+
+/**
+ * Receives the progress of a {@link DownloadJob}. Callbacks run on the
+ * downloading thread and should return quickly; UI code must hand them
+ * over to its own thread.
+ */
+public interface DownloadListener {
+
+    /**
+     * Called when the job starts and when it reaches a final state.
+     */
+    default void onStateChanged(DownloadJob.State state) {
+    }
+
+    /**
+     * Called with a localized status text, e.g. the progress and speed once a second.
+     */
+    default void onMessage(String message) {
+    }
+
+    /**
+     * Called as bytes are written. The total is -1 while the size is unknown;
+     * the rate is measured over the last second.
+     */
+    default void onProgress(long bytesDone, long totalBytes, double bytesPerSecond) {
+    }
+
+    /**
+     * Called with the position up to which the output file is written
+     * contiguously from the start, so readers can follow the download.
+     */
+    default void onCommitted(long position) {
+    }
+
+    /**
+     * Called for each copy destination once the download finished, with
+     * null if the copy is complete or the error that stopped it.
+     */
+    default void onCopyFinished(File destination, Throwable error) {
+    }
+}
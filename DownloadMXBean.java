@@ -0,0 +1,27 @@
+/**
+ * Management view of one running download, registered as
+ * {@code chromedownloader:type=Download,id=N} while it runs.
+ */
+public interface DownloadMXBean {
+    String getUrl();
+    String getMirror();
+    String getFile();
+    String getChannel();
+    String getState();
+    String getProxy();
+    long getBytesDone();
+    long getTotalBytes();
+    double getBytesPerSecond();
+
+    /**
+     * Gets the seconds left at the current rate, or -1 if unknown.
+     */
+    long getEtaSeconds();
+
+    int getRetries();
+    boolean isPaused();
+
+    void cancel();
+    void pause();
+    void resume();
+}
@@ -0,0 +1,175 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events for the phases of fetching and downloading,
+ * so a recording shows which channel, host and proxy the time went to.
+ * Record with {@code -XX:StartFlightRecording}; the events are listed under
+ * "Chrome Downloader". Every event carries the channel (version label),
+ * the URL host, a byte count and the proxy type where they apply.
+ */
+public final class EngineEvents {
+    private static final String CATEGORY = "Chrome Downloader";
+
+    private EngineEvents() {
+    }
+
+    /**
+     * Gets the proxy type to record for a route, without localising "none".
+     */
+    static String proxyType(ProxySettings proxySettings) {
+        return proxySettings != null && proxySettings.isUseProxy() ? proxySettings.getProxyType().name() : "NONE";
+    }
+
+    @Name("chromedownloader.ManifestFetch")
+    @Label("Manifest Fetch")
+    @Description("An update check sent to the update service, until its manifest is parsed")
+    @Category({CATEGORY, "Update Service"})
+    @StackTrace(false)
+    public static class ManifestFetch extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Target")
+        public String target;
+
+        @Label("Host")
+        public String host;
+
+        @Label("Proxy Type")
+        public String proxyType;
+
+        @Label("Response Size")
+        @DataAmount
+        public long bytes;
+
+        @Label("Links")
+        public int links;
+    }
+
+    @Name("chromedownloader.ConnectionSetup")
+    @Label("Connection Setup")
+    @Description("Connecting a socket, including the proxy handshake and TLS")
+    @Category({CATEGORY, "Network"})
+    @StackTrace(false)
+    public static class ConnectionSetup extends Event {
+        @Label("Host")
+        public String host;
+
+        @Label("Port")
+        public int port;
+
+        @Label("Proxy Type")
+        public String proxyType;
+
+        @Label("TLS")
+        public boolean tls;
+
+        @Label("Local Address")
+        public String localAddress;
+
+        @Label("Remote Address")
+        public String remoteAddress;
+    }
+
+    @Name("chromedownloader.SegmentTransfer")
+    @Label("Segment Transfer")
+    @Description("One connection's transfer of a range of a segmented download")
+    @Category({CATEGORY, "Download"})
+    @StackTrace(false)
+    public static class SegmentTransfer extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Host")
+        public String host;
+
+        @Label("Proxy Type")
+        public String proxyType;
+
+        @Label("Uplink")
+        public String uplink;
+
+        @Label("Segment")
+        public int segment;
+
+        @Label("Start Offset")
+        @DataAmount
+        public long start;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("chromedownloader.DiskFlush")
+    @Label("Disk Flush")
+    @Description("Writing a received buffer out to the destination file")
+    @Category({CATEGORY, "Download"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class DiskFlush extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Host")
+        public String host;
+
+        @Label("Position")
+        @DataAmount
+        public long position;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("chromedownloader.Verification")
+    @Label("Verification")
+    @Description("Hashing a downloaded file or its chunks against the expected hashes")
+    @Category({CATEGORY, "Download"})
+    @StackTrace(false)
+    public static class Verification extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Host")
+        public String host;
+
+        @Label("Kind")
+        public String kind;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Passed")
+        public boolean passed;
+    }
+
+    @Name("chromedownloader.ProgressDispatch")
+    @Label("Progress Dispatch")
+    @Description("Posting download progress and status text to the UI thread")
+    @Category({CATEGORY, "User Interface"})
+    @StackTrace(false)
+    public static class ProgressDispatch extends Event {
+        @Label("Channel")
+        public String channel;
+
+        @Label("Host")
+        public String host;
+
+        @Label("Proxy Type")
+        public String proxyType;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+}
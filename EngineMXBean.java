@@ -0,0 +1,46 @@
+import java.util.Map;
+
+/**
+ * Management view of the download engine, registered as
+ * {@code chromedownloader:type=Engine}.
+ */
+public interface EngineMXBean {
+    int getActiveDownloads();
+
+    long getFetches();
+
+    /**
+     * Gets the share of link fetches answered by a speculative or an
+     * identical in-flight request instead of their own request.
+     */
+    double getFetchCacheHitRatio();
+
+    double getDnsCacheHitRatio();
+
+    long getDirectBufferCount();
+    long getDirectBufferBytesUsed();
+
+    /**
+     * Gets the number of queued tasks per registered executor.
+     */
+    Map<String, Integer> getExecutorQueueDepths();
+
+    Map<String, Integer> getExecutorActiveThreads();
+
+    Map<String, Long> getCounters();
+
+    /**
+     * Gets the circuit state and score of every known mirror host.
+     */
+    Map<String, String> getMirrorHealth();
+
+    /**
+     * Clears the DNS cache, prefetched manifests and link probes.
+     */
+    void flushCaches();
+
+    /**
+     * Cancels every running download and returns how many there were.
+     */
+    int cancelAll();
+}
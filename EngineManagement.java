@@ -0,0 +1,224 @@
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the engine and its running downloads as platform MBeans, for
+ * jconsole and other JMX tools. The engine MBean is registered on first
+ * use, e.g. the first download; set {@code -Dchromedownloader.jmx=false}
+ * to register nothing.
+ */
+public final class EngineManagement {
+    static final String DOMAIN = "chromedownloader";
+
+    private static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("chromedownloader.jmx"));
+    private static final Map<DownloadJob, ObjectName> DOWNLOADS = new ConcurrentHashMap<>();
+    private static final Map<String, ExecutorService> EXECUTORS = new ConcurrentHashMap<>();
+    private static final Map<String, Runnable> CACHES = new ConcurrentHashMap<>();
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static boolean started;
+
+    static {
+        CACHES.put("dns", () -> DnsCache.getDefault().clear());
+    }
+
+    private EngineManagement() {
+    }
+
+    /**
+     * Registers the engine MBean, if it is not registered yet.
+     */
+    public static synchronized void start() {
+        if (started || !ENABLED) {
+            return;
+        }
+        started = true;
+        try {
+            server().registerMBean(new Engine(), new ObjectName(DOMAIN + ":type=Engine"));
+        } catch (JMException e) {
+            System.err.println("Failed to register engine MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reports the queue depth of an executor; only thread pools have one.
+     */
+    public static void registerExecutor(String name, ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            EXECUTORS.put(name, executor);
+        }
+    }
+
+    /**
+     * Adds a cache that {@link EngineMXBean#flushCaches} clears.
+     */
+    public static void registerCache(String name, Runnable flush) {
+        CACHES.put(name, flush);
+    }
+
+    static void register(DownloadJob job) {
+        if (!ENABLED) {
+            return;
+        }
+        start();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Download,id=" + NEXT_ID.incrementAndGet());
+            server().registerMBean(new Download(job), name);
+            DOWNLOADS.put(job, name);
+        } catch (JMException e) {
+            System.err.println("Failed to register download MBean: " + e.getMessage());
+        }
+    }
+
+    static void unregister(DownloadJob job) {
+        ObjectName name = DOWNLOADS.remove(job);
+        if (name == null) {
+            return;
+        }
+        try {
+            server().unregisterMBean(name);
+        } catch (JMException e) {
+            System.err.println("Failed to unregister download MBean: " + e.getMessage());
+        }
+    }
+
+    private static MBeanServer server() {
+        return ManagementFactory.getPlatformMBeanServer();
+    }
+
+    private static double ratio(long part, long whole) {
+        return whole > 0 ? (double) part / whole : 0;
+    }
+
+    private static class Engine implements EngineMXBean {
+        @Override
+        public int getActiveDownloads() {
+            return DOWNLOADS.size();
+        }
+
+        @Override
+        public long getFetches() {
+            return EngineMetrics.get().getCounter(EngineMetrics.FETCHES);
+        }
+
+        @Override
+        public double getFetchCacheHitRatio() {
+            return ratio(EngineMetrics.get().getCounter(EngineMetrics.FETCH_CACHE_HITS), getFetches());
+        }
+
+        @Override
+        public double getDnsCacheHitRatio() {
+            long hits = EngineMetrics.get().getCounter(EngineMetrics.DNS_CACHE_HITS);
+            return ratio(hits, hits + EngineMetrics.get().getCounter(EngineMetrics.DNS_CACHE_MISSES));
+        }
+
+        @Override
+        public long getDirectBufferCount() {
+            BufferPoolMXBean pool = directPool();
+            return pool != null ? pool.getCount() : -1;
+        }
+
+        @Override
+        public long getDirectBufferBytesUsed() {
+            BufferPoolMXBean pool = directPool();
+            return pool != null ? pool.getMemoryUsed() : -1;
+        }
+
+        private static BufferPoolMXBean directPool() {
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (pool.getName().equals("direct")) {
+                    return pool;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Map<String, Integer> getExecutorQueueDepths() {
+            Map<String, Integer> depths = new TreeMap<>();
+            EXECUTORS.forEach((name, executor) -> depths.put(name, ((ThreadPoolExecutor) executor).getQueue().size()));
+            return depths;
+        }
+
+        @Override
+        public Map<String, Integer> getExecutorActiveThreads() {
+            Map<String, Integer> active = new TreeMap<>();
+            EXECUTORS.forEach((name, executor) -> active.put(name, ((ThreadPoolExecutor) executor).getActiveCount()));
+            return active;
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            return EngineMetrics.get().getCounters();
+        }
+
+        @Override
+        public Map<String, String> getMirrorHealth() {
+            return MirrorHealth.getDefault().describe();
+        }
+
+        @Override
+        public void flushCaches() {
+            CACHES.forEach((name, flush) -> {
+                try {
+                    flush.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to flush cache " + name + ": " + e.getMessage());
+                }
+            });
+        }
+
+        @Override
+        public int cancelAll() {
+            List<DownloadJob> jobs = new ArrayList<>(DOWNLOADS.keySet());
+            for (DownloadJob job : jobs) {
+                job.cancel();
+            }
+            return jobs.size();
+        }
+    }
+
+    private static class Download implements DownloadMXBean {
+        private final DownloadJob job;
+
+        Download(DownloadJob job) {
+            this.job = job;
+        }
+
+        @Override public String getUrl() { return job.getUrl(); }
+        @Override public String getMirror() { return HostPermits.hostOf(job.getUrl()); }
+        @Override public String getFile() { return job.getOutputFile().getAbsolutePath(); }
+        @Override public String getChannel() { return job.getChannel(); }
+        @Override public String getState() { return job.getState().name(); }
+        @Override public String getProxy() { return job.getProxyDescription(); }
+        @Override public long getBytesDone() { return job.getBytesDone(); }
+        @Override public long getTotalBytes() { return job.getTotalBytes(); }
+        @Override public double getBytesPerSecond() { return job.getBytesPerSecond(); }
+        @Override public int getRetries() { return job.getRetries(); }
+        @Override public boolean isPaused() { return job.isPaused(); }
+
+        @Override
+        public long getEtaSeconds() {
+            long total = job.getTotalBytes();
+            double rate = job.getBytesPerSecond();
+            if (total <= 0 || rate <= 0 || job.isPaused()) {
+                return -1;
+            }
+            return (long) Math.ceil((total - job.getBytesDone()) / rate);
+        }
+
+        @Override public void cancel() { job.cancel(); }
+        @Override public void pause() { job.pause(); }
+        @Override public void resume() { job.resume(); }
+    }
+}
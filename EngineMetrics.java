@@ -0,0 +1,79 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters and latency statistics of the download engine.
+ */
+public final class EngineMetrics {
+    public static final String DNS_RESOLVE = "dns.resolve";
+    public static final String CONNECT = "connect";
+    public static final String CONNECT_ATTEMPTS = "connect.attempts";
+    public static final String CONNECT_FAILURES = "connect.failures";
+    public static final String DNS_CACHE_HITS = "dns.cache.hits";
+    public static final String DNS_CACHE_MISSES = "dns.cache.misses";
+    public static final String SEGMENT_STEALS = "segment.steals";
+    public static final String SEGMENT_RETRIES = "segment.retries";
+    public static final String FETCHES = "fetches";
+    public static final String FETCH_CACHE_HITS = "fetch.cache.hits";
+    public static final String FETCH = "fetch";
+    public static final String FETCH_FAILURES = "fetch.failures";
+    public static final String FETCH_BYTES = "fetch.bytes";
+    public static final String FETCH_HEDGES = "fetch.hedges";
+    public static final String FETCH_HEDGE_WINS = "fetch.hedge.wins";
+    public static final String DOWNLOAD = "download";
+    public static final String DOWNLOAD_BYTES = "download.bytes";
+    public static final String DOWNLOADS_SUCCEEDED = "downloads.succeeded";
+    public static final String DOWNLOADS_FAILED = "downloads.failed";
+    public static final String DOWNLOADS_CANCELLED = "downloads.cancelled";
+
+    private static final EngineMetrics INSTANCE = new EngineMetrics();
+
+    private final Map<String, LatencyStats> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private EngineMetrics() {
+    }
+
+    public static EngineMetrics get() {
+        return INSTANCE;
+    }
+
+    public LatencyStats latency(String name) {
+        return latencies.computeIfAbsent(name, k -> new LatencyStats());
+    }
+
+    public void recordLatency(String name, double millis) {
+        latency(name).record(millis);
+    }
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long value) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+    }
+
+    public long getCounter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    /**
+     * Gets a sorted snapshot of all counters.
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        return snapshot;
+    }
+
+    /**
+     * Gets all latency statistics, sorted by name.
+     */
+    public Map<String, LatencyStats> getLatencies() {
+        return new TreeMap<>(latencies);
+    }
+}
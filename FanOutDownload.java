@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * One upstream download of a file that any number of consumers read while
+ * it is still being written. The download publishes a high-water mark, the
+ * position up to which the file is written contiguously; consumer streams
+ * read up to it and block until it moves on. However many consumers attach,
+ * the file is fetched from upstream once. Has no JavaFX dependency.
+ */
+public class FanOutDownload {
+    private static final long WAIT_MILLIS = 1000;
+
+    private static final Map<String, FanOutDownload> ACTIVE = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final String url;
+    private final String sha256;
+    private final Path file;
+    private long committed;
+    private long totalSize = -1;
+    private boolean complete;
+    private IOException error;
+    private int consumers;
+
+    private FanOutDownload(String key, String url, String sha256, Path file) {
+        this.key = key;
+        this.url = url;
+        this.sha256 = sha256;
+        this.file = file;
+    }
+
+    /**
+     * Gets the download of a URL and hash, starting it on the executor if
+     * none is running. A finished download stays available while consumers
+     * still read it.
+     */
+    public static FanOutDownload open(String url, String sha256, Path file,
+                                      ProxySettings proxySettings, Executor executor) throws IOException {
+        String key = url + "|" + (sha256 != null ? sha256.toLowerCase() : "");
+        FanOutDownload[] started = new FanOutDownload[1];
+        FanOutDownload download = ACTIVE.computeIfAbsent(key,
+            k -> started[0] = new FanOutDownload(k, url, sha256, file));
+        if (started[0] == download) {
+            try {
+                // Create the file up front so consumers can open it right away
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING).close();
+            } catch (IOException e) {
+                download.fail(e);
+                throw e;
+            }
+            executor.execute(() -> download.runUpstream(proxySettings));
+        }
+        return download;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public synchronized long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * Gets the file size, or -1 until the upstream response arrived.
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    public synchronized int getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * Waits until the total size is known, the download failed or the timeout passed.
+     */
+    public synchronized long awaitTotalSize(long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (totalSize < 0 && !complete && error == null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return totalSize;
+    }
+
+    /**
+     * Opens a stream of the file from the first byte. Reads block while the
+     * consumer has caught up with the download; a failed or unverified
+     * download makes the next read throw.
+     */
+    public InputStream openStream() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (error != null) {
+                throw error;
+            }
+            consumers++;
+        }
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+        return new ConsumerStream(channel);
+    }
+
+    private void runUpstream(ProxySettings proxySettings) {
+        try {
+            DownloadJob job = new DownloadJob(url, file.toFile(), proxySettings);
+            job.setExpectedSha256(sha256);
+            // Consumers already have the file open, so it must be written in place
+            job.setShared(false);
+            job.addListener(new DownloadListener() {
+                @Override
+                public void onProgress(long bytesDone, long totalBytes, double bytesPerSecond) {
+                    if (totalBytes > 0) {
+                        setTotalSize(totalBytes);
+                    }
+                }
+
+                @Override
+                public void onCommitted(long position) {
+                    commit(position);
+                }
+            });
+            job.run();
+            long size = Files.size(file);
+            synchronized (this) {
+                committed = size;
+                totalSize = size;
+                complete = true;
+                notifyAll();
+            }
+            removeIfIdle();
+        } catch (IOException e) {
+            fail(e);
+        } catch (Exception e) {
+            fail(new IOException(e));
+        }
+    }
+
+    private synchronized void setTotalSize(long size) {
+        if (size != totalSize) {
+            totalSize = size;
+            notifyAll();
+        }
+    }
+
+    private synchronized void commit(long position) {
+        if (position > committed) {
+            committed = position;
+            notifyAll();
+        }
+    }
+
+    private void fail(IOException e) {
+        System.err.println("Fan-out download of " + url + " failed: " + e.getMessage());
+        synchronized (this) {
+            error = e;
+            notifyAll();
+        }
+        ACTIVE.remove(key, this);
+    }
+
+    private void release() {
+        synchronized (this) {
+            consumers--;
+        }
+        removeIfIdle();
+    }
+
+    /**
+     * Forgets a finished download once no consumer reads it any more.
+     */
+    private void removeIfIdle() {
+        ACTIVE.computeIfPresent(key, (k, existing) -> {
+            synchronized (existing) {
+                return existing == this && complete && consumers == 0 ? null : existing;
+            }
+        });
+    }
+
+    /**
+     * Waits until bytes beyond the position are committed. Returns the
+     * committed position, or -1 at the end of a complete file.
+     */
+    private synchronized long awaitBeyond(long position) throws IOException {
+        try {
+            while (committed <= position) {
+                if (error != null) {
+                    throw error;
+                }
+                if (complete) {
+                    return -1;
+                }
+                wait(WAIT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for download", e);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return committed;
+    }
+
+    private final class ConsumerStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private boolean closed;
+
+        ConsumerStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            long limit = awaitBeyond(position);
+            if (limit < 0) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, limit - position));
+            int read = channel.read(buffer, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, getCommitted() - position));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                channel.close();
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the download links of one version label and target, healthiest
+ * mirrors first (see {@link MirrorHealth}). Has no JavaFX dependency;
+ * {@link FetchLinksTask} runs it for the UI.
+ */
+public class FetchLinksJob implements Callable<List<DownloadLink>> {
+    private final String versionLabel;
+    private final ProxySettings proxySettings;
+    private final TargetPlatform target;
+    private Future<List<DownloadLink>> speculativeResult;
+    private LocalBuildStore.Build priorBuild;
+
+    public FetchLinksJob(String versionLabel, ProxySettings proxySettings, TargetPlatform target) {
+        if (versionLabel == null || versionLabel.trim().isEmpty()) {
+            throw new IllegalArgumentException("Version label cannot be null or empty");
+        }
+
+        this.versionLabel = versionLabel;
+        this.proxySettings = proxySettings != null ? proxySettings : new ProxySettings();
+        this.target = target != null ? target : TargetPlatform.fromHost();
+    }
+
+    /**
+     * Uses an already started speculative fetch of the same version instead
+     * of sending a new request, unless that fetch fails.
+     */
+    public void useSpeculativeResult(Future<List<DownloadLink>> speculativeResult) {
+        this.speculativeResult = speculativeResult;
+    }
+
+    /**
+     * Advertises a stored prior build so the service can offer deltas.
+     * The speculative result is then ignored, as it was fetched without one.
+     */
+    public void usePriorBuild(LocalBuildStore.Build priorBuild) {
+        this.priorBuild = priorBuild;
+    }
+
+    @Override
+    public List<DownloadLink> call() throws Exception {
+        if (speculativeResult != null && priorBuild == null) {
+            try {
+                List<DownloadLink> links = speculativeResult.get();
+                if (links != null && !links.isEmpty()) {
+                    EngineMetrics.get().increment(EngineMetrics.FETCHES);
+                    EngineMetrics.get().increment(EngineMetrics.FETCH_CACHE_HITS);
+                    return MirrorHealth.getDefault().order(links);
+                }
+            } catch (ExecutionException e) {
+                System.err.println("Speculative fetch failed, fetching again: " + e.getCause());
+            }
+        }
+        return MirrorHealth.getDefault().order(
+            new UpdateServiceClient(proxySettings).fetchLinks(versionLabel, target, priorBuild));
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens TCP connections by racing a host's addresses as described in
+ * RFC 8305: attempts start in interleaved IPv6/IPv4 order, a new attempt
+ * starts every 250 ms or as soon as the previous one fails, and the first
+ * established connection wins. A broken address family therefore costs a
+ * fraction of a second instead of the whole connect timeout. A connector
+ * with a local address binds every socket to it and only races remote
+ * addresses of the same family.
+ */
+public class HappyEyeballsConnector {
+    static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+
+    private static final ExecutorService ATTEMPT_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "connect-attempt");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EngineManagement.registerExecutor("connectAttempts", ATTEMPT_EXECUTOR);
+    }
+
+    private final DnsCache dnsCache;
+    private final InetAddress localAddress;
+
+    public HappyEyeballsConnector() {
+        this(DnsCache.getDefault());
+    }
+
+    public HappyEyeballsConnector(DnsCache dnsCache) {
+        this(dnsCache, null);
+    }
+
+    public HappyEyeballsConnector(DnsCache dnsCache, InetAddress localAddress) {
+        this.dnsCache = dnsCache;
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * Gets the local address sockets are bound to, or null for the OS default route.
+     */
+    public InetAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Connects to the host, racing its addresses within the timeout.
+     */
+    public Socket connect(String host, int port, int timeoutMillis) throws IOException {
+        long start = System.nanoTime();
+        List<InetAddress> addresses = dnsCache.orderForConnect(host);
+        if (localAddress != null) {
+            addresses = sameFamily(addresses);
+        }
+        Socket socket = addresses.size() == 1
+            ? connectSingle(addresses.get(0), port, timeoutMillis)
+            : race(addresses, port, timeoutMillis);
+
+        dnsCache.markPreferred(host, socket.getInetAddress());
+        EngineMetrics.get().recordLatency(EngineMetrics.CONNECT, (System.nanoTime() - start) / 1_000_000.0);
+        return socket;
+    }
+
+    private List<InetAddress> sameFamily(List<InetAddress> addresses) throws IOException {
+        List<InetAddress> matching = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            if (address.getClass() == localAddress.getClass()) {
+                matching.add(address);
+            }
+        }
+        if (matching.isEmpty()) {
+            throw new ConnectException("No address of the same family as " + localAddress.getHostAddress());
+        }
+        return matching;
+    }
+
+    private Socket connectSingle(InetAddress address, int port, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            EngineMetrics.get().increment(EngineMetrics.CONNECT_ATTEMPTS);
+            if (localAddress != null) {
+                socket.bind(new InetSocketAddress(localAddress, 0));
+            }
+            socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+            return socket;
+        } catch (IOException e) {
+            EngineMetrics.get().increment(EngineMetrics.CONNECT_FAILURES);
+            socket.close();
+            throw e;
+        }
+    }
+
+    private Socket race(List<InetAddress> addresses, int port, int timeoutMillis) throws IOException {
+        LinkedBlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+        List<Attempt> started = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        IOException lastError = null;
+        int failures = 0;
+
+        try {
+            while (true) {
+                if (started.size() < addresses.size()) {
+                    Attempt attempt = new Attempt(addresses.get(started.size()), localAddress, port, timeoutMillis);
+                    started.add(attempt);
+                    ATTEMPT_EXECUTOR.execute(() -> {
+                        attempt.run();
+                        finished.add(attempt);
+                    });
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Connect timed out");
+                }
+                long wait = started.size() < addresses.size()
+                    ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(CONNECTION_ATTEMPT_DELAY_MILLIS))
+                    : remaining;
+
+                Attempt done = finished.poll(wait, TimeUnit.NANOSECONDS);
+                while (done != null) {
+                    if (done.error == null) {
+                        Socket winner = done.socket;
+                        started.remove(done);
+                        return winner;
+                    }
+                    lastError = done.error;
+                    failures++;
+                    done = finished.poll();
+                }
+
+                if (failures == addresses.size()) {
+                    throw lastError instanceof ConnectException || lastError instanceof SocketTimeoutException
+                        ? lastError : new ConnectException(lastError != null ? lastError.getMessage() : "Connect failed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Connect interrupted", e);
+        } finally {
+            for (Attempt loser : started) {
+                loser.abandon();
+            }
+        }
+    }
+
+    /**
+     * One connection attempt to a single address.
+     */
+    private static final class Attempt {
+        private final InetAddress address;
+        private final InetAddress localAddress;
+        private final int port;
+        private final int timeoutMillis;
+        private final Socket socket = new Socket();
+        private volatile IOException error;
+        private volatile boolean abandoned;
+
+        Attempt(InetAddress address, InetAddress localAddress, int port, int timeoutMillis) {
+            this.address = address;
+            this.localAddress = localAddress;
+            this.port = port;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        void run() {
+            EngineMetrics.get().increment(EngineMetrics.CONNECT_ATTEMPTS);
+            try {
+                if (localAddress != null) {
+                    socket.bind(new InetSocketAddress(localAddress, 0));
+                }
+                socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+                if (abandoned) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                EngineMetrics.get().increment(EngineMetrics.CONNECT_FAILURES);
+                error = e;
+                closeQuietly();
+            }
+        }
+
+        /**
+         * Closes the socket of a losing attempt, which also aborts a pending connect.
+         */
+        void abandon() {
+            abandoned = true;
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
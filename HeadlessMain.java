@@ -0,0 +1,504 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line entry point that runs without JavaFX, for servers and
+ * scripts. Usage:
+ *
+ *   java -cp ChromeDownloader.jar HeadlessMain matrix [--targets win-x64,mac-arm64]
+ *        [--channels Stable,Beta] [--proxy http://host:port]
+ *   java -cp ChromeDownloader.jar HeadlessMain watch [--targets ...] [--channels ...]
+ *        [--interval 60] [--offpeak 01:00-06:00] [--no-prefetch] [--once]
+ *        [--store-budget 10GB] [--store-keep 3]
+ *   java -cp ChromeDownloader.jar HeadlessMain metalink --channels Stable --targets win-x64
+ *        --out chrome.meta4 [--pieces ChromeStandaloneSetup64.exe]
+ *   java -cp ChromeDownloader.jar HeadlessMain get --metalink chrome.meta4 [--dir .]
+ *   java -cp ChromeDownloader.jar HeadlessMain get --url https://... --out file [--bind eth0,eth1]
+ *        [--copy-to /mnt/share1/file,/mnt/share2/file]
+ *   java -cp ChromeDownloader.jar HeadlessMain standin [--port 8480] [--size 8MB] [faults]
+ *   java -cp ChromeDownloader.jar HeadlessMain loadtest [--sessions 50] [--concurrency 8]
+ *        [--service http://127.0.0.1:8480/service/update2] [faults]
+ *   java -cp ChromeDownloader.jar HeadlessMain daemon [--port 8479] [--dir downloads]
+ *        [--concurrency 2] [--proxy ...]
+ *
+ * Faults for standin and loadtest: [--latency ms] [--jitter ms] [--bandwidth 2MB]
+ * [--reset rate] [--drip rate] [--error rate] [--error-status 503].
+ */
+public class HeadlessMain {
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            printUsage();
+            System.exit(2);
+        }
+
+        Map<String, String> options = parseOptions(args);
+        try {
+            switch (args[0]) {
+                case "matrix":
+                    System.exit(runMatrix(options));
+                    break;
+                case "watch":
+                    System.exit(runWatch(options));
+                    break;
+                case "metalink":
+                    System.exit(runMetalinkExport(options));
+                    break;
+                case "get":
+                    System.exit(options.containsKey("url") ? runUrlDownload(options) : runMetalinkDownload(options));
+                    break;
+                case "standin":
+                    System.exit(runStandIn(options));
+                    break;
+                case "loadtest":
+                    System.exit(runLoadTest(options));
+                    break;
+                case "daemon":
+                    System.exit(runDaemon(options));
+                    break;
+                default:
+                    printUsage();
+                    System.exit(2);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Fetches every requested (target, channel) combination and prints one
+     * tab-separated line per download link.
+     */
+    private static int runMatrix(Map<String, String> options) {
+        List<TargetPlatform> targets = parseTargets(options.get("targets"));
+        List<String> channels = parseChannels(options.get("channels"));
+        ProxySettings proxySettings = ProxySettings.parse(options.get("proxy"));
+
+        List<MatrixFetch.Result> results = new MatrixFetch(new UpdateServiceClient(proxySettings))
+            .fetchAll(targets, channels);
+
+        int failures = 0;
+        for (MatrixFetch.Result result : results) {
+            if (!result.isSuccessful()) {
+                failures++;
+                System.err.println(result.getTarget() + "\t" + result.getChannel() + "\tFAILED\t" + result.getError());
+                continue;
+            }
+            for (DownloadLink link : result.getLinks()) {
+                System.out.println(result.getTarget() + "\t" + result.getChannel() + "\t" + link.getVersion()
+                    + "\t" + link.getManifestSize() + "\t" + link.getSha256() + "\t" + link.getUrl());
+            }
+        }
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     * Watches the requested channels, printing a line for every new version
+     * and prefetching new installers into the build store.
+     */
+    private static int runWatch(Map<String, String> options) {
+        List<TargetPlatform> targets = parseTargets(options.get("targets"));
+        List<String> channels = parseChannels(options.get("channels"));
+        ProxySettings proxySettings = ProxySettings.parse(options.get("proxy"));
+        long intervalMinutes = parsePositiveLong(options.getOrDefault("interval", "60"), "interval");
+        OffPeakWindow offPeakWindow = OffPeakWindow.parse(options.get("offpeak"));
+        LocalBuildStore store = options.containsKey("no-prefetch") ? null : LocalBuildStore.getDefault();
+        if (store != null && (options.containsKey("store-budget") || options.containsKey("store-keep"))) {
+            store.setRetention(options.containsKey("store-budget") ? parseSize(options.get("store-budget"), "store-budget")
+                    : store.getMaxBytes(),
+                options.containsKey("store-keep")
+                    ? (int) parseNonNegativeLong(options.get("store-keep"), "store-keep") : store.getKeepPerChannel());
+        }
+
+        ChannelWatcher watcher = new ChannelWatcher(new UpdateServiceClient(proxySettings), store, offPeakWindow,
+            TimeUnit.MINUTES.toMillis(intervalMinutes), ChannelWatcher.DEFAULT_JITTER,
+            ChannelWatcher.getDefaultStateFile());
+        watcher.setListener(update -> System.out.println(update.getTarget() + "\t" + update.getChannel()
+            + "\t" + update.getPreviousVersion() + "\t" + update.getVersion()
+            + (update.isPrefetched() ? "\tprefetched" : "")));
+
+        if (options.containsKey("once")) {
+            int failures = 0;
+            for (TargetPlatform target : targets) {
+                for (String channel : channels) {
+                    try {
+                        watcher.check(target, channel).join();
+                    } catch (CompletionException e) {
+                        failures++;
+                        System.err.println(target + "\t" + channel + "\tFAILED\t" + e.getCause());
+                    }
+                }
+            }
+            watcher.shutdown();
+            return failures == 0 ? 0 : 1;
+        }
+
+        for (TargetPlatform target : targets) {
+            for (String channel : channels) {
+                watcher.watch(target, channel);
+            }
+        }
+        watcher.start();
+        EngineManagement.start();
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        watcher.shutdown();
+        return 0;
+    }
+
+    /**
+     * Writes the links of one (target, channel) pair as a Metalink file,
+     * with piece hashes if a downloaded copy is given.
+     */
+    private static int runMetalinkExport(Map<String, String> options) {
+        List<TargetPlatform> targets = parseTargets(options.getOrDefault("targets", TargetPlatform.fromHost().getId()));
+        List<String> channels = parseChannels(options.getOrDefault("channels", "Stable"));
+        if (targets.size() != 1 || channels.size() != 1 || options.get("out") == null) {
+            throw new IllegalArgumentException("metalink needs one target, one channel and --out");
+        }
+
+        try {
+            List<DownloadLink> links = new UpdateServiceClient(ProxySettings.parse(options.get("proxy")))
+                .fetchLinks(channels.get(0), targets.get(0));
+            Metalink metalink = Metalink.fromLinks(links);
+            if (options.get("pieces") != null) {
+                metalink = metalink.withPieces(Paths.get(options.get("pieces")), Metalink.DEFAULT_PIECE_LENGTH);
+            }
+            metalink.write(Paths.get(options.get("out")));
+            System.out.println(options.get("out"));
+            return 0;
+        } catch (Exception e) {
+            System.err.println("Metalink export failed: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Downloads every file of a Metalink from all its sources in parallel.
+     */
+    private static int runMetalinkDownload(Map<String, String> options) {
+        if (options.get("metalink") == null) {
+            throw new IllegalArgumentException("get needs --metalink");
+        }
+        ProxySettings proxySettings = ProxySettings.parse(options.get("proxy"));
+        Path dir = Paths.get(options.getOrDefault("dir", "."));
+
+        int failures = 0;
+        try {
+            for (Metalink.Entry entry : Metalink.parse(Paths.get(options.get("metalink"))).getEntries()) {
+                Path output = dir.resolve(entry.getName());
+                try {
+                    long start = System.nanoTime();
+                    new MetalinkDownload(entry, proxySettings, null).run(output, null);
+                    System.out.println(output + "\t" + entry.getSize() + "\t"
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+                } catch (IOException | IllegalArgumentException e) {
+                    failures++;
+                    System.err.println(output + "\tFAILED\t" + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } catch (Exception e) {
+            System.err.println("Invalid Metalink: " + e.getMessage());
+            return 1;
+        }
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     * Downloads one URL, optionally spreading its segments across local
+     * addresses and writing copies in the same pass, and prints the
+     * throughput reached through each address and the result of each copy.
+     */
+    private static int runUrlDownload(Map<String, String> options) {
+        String url = options.get("url");
+        Path output = Paths.get(options.getOrDefault("out",
+            url.substring(url.lastIndexOf('/') + 1).isEmpty() ? "download" : url.substring(url.lastIndexOf('/') + 1)));
+        InterfacePool interfacePool = InterfacePool.parse(options.get("bind"));
+
+        DownloadJob job = new DownloadJob(url, output.toFile(), ProxySettings.parse(options.get("proxy")));
+        job.setInterfacePool(interfacePool);
+        List<File> copyTargets = new ArrayList<>();
+        if (options.get("copy-to") != null) {
+            for (String path : options.get("copy-to").split(",")) {
+                if (!path.trim().isEmpty()) {
+                    copyTargets.add(new File(path.trim()));
+                }
+            }
+        }
+        job.setCopyTargets(copyTargets);
+        int[] failedCopies = new int[1];
+        job.addListener(new DownloadListener() {
+            @Override
+            public void onCopyFinished(File destination, Throwable error) {
+                if (error != null) {
+                    failedCopies[0]++;
+                    System.err.println("  copy " + destination + "\tFAILED\t" + error.getMessage());
+                } else {
+                    System.out.println("  copy " + destination);
+                }
+            }
+        });
+        try {
+            long start = System.nanoTime();
+            job.run();
+            long size = Files.size(output);
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            System.out.println(output + "\t" + size + "\t" + millis + " ms\t"
+                + String.format("%.1f MB/s", size * 1000.0 / millis / (1024 * 1024)));
+            if (interfacePool != null) {
+                for (InterfacePool.Uplink uplink : interfacePool.getUplinks()) {
+                    System.out.println("  " + uplink + "\t"
+                        + String.format("%.1f MB/s", uplink.getBytesPerSecond() / (1024 * 1024)));
+                }
+            }
+            return failedCopies[0] == 0 ? 0 : 1;
+        } catch (Exception e) {
+            System.err.println(output + "\tFAILED\t" + e.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Runs the update service stand-in until the process is killed.
+     */
+    private static int runStandIn(Map<String, String> options) {
+        UpdateStandInServer.Faults faults = parseFaults(options);
+        UpdateStandInServer server = new UpdateStandInServer(
+            parseSize(options.getOrDefault("size", "8MB"), "size"), faults, faults);
+        try {
+            server.start((int) parsePositiveLong(options.getOrDefault("port", "8480"), "port"));
+        } catch (IOException e) {
+            System.err.println("Cannot start stand-in: " + e.getMessage());
+            return 1;
+        }
+        System.out.println(server.getServiceUrl() + "\t" + faults);
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop();
+        return 0;
+    }
+
+    /**
+     * Runs concurrent fetch and download sessions and prints their latency
+     * percentiles and throughput. Starts an in-process stand-in unless
+     * --service names one already running.
+     */
+    private static int runLoadTest(Map<String, String> options) {
+        List<TargetPlatform> targets = parseTargets(options.getOrDefault("targets", TargetPlatform.fromHost().getId()));
+        List<String> channels = parseChannels(options.getOrDefault("channels", "Stable"));
+        int sessions = (int) parsePositiveLong(options.getOrDefault("sessions", "50"), "sessions");
+        int concurrency = (int) parsePositiveLong(options.getOrDefault("concurrency", "8"), "concurrency");
+
+        UpdateStandInServer server = null;
+        String serviceUrl = options.get("service");
+        try {
+            if (serviceUrl == null) {
+                UpdateStandInServer.Faults faults = parseFaults(options);
+                server = new UpdateStandInServer(parseSize(options.getOrDefault("size", "8MB"), "size"), faults, faults);
+                server.start(0);
+                serviceUrl = server.getServiceUrl();
+                System.out.println("stand-in " + serviceUrl + "\t" + faults);
+            }
+
+            Path workDir = Files.createTempDirectory("chromedownloader-load");
+            LoadDriver.Report report = new LoadDriver(serviceUrl, targets, channels, sessions, concurrency, workDir).run();
+            Files.deleteIfExists(workDir);
+            report.print(System.out);
+            if (server != null) {
+                System.out.println("stand-in requests: update=" + server.getUpdateRequests() + " download="
+                    + server.getDownloadRequests() + " faults=" + server.getInjectedFaults());
+            }
+            return report.getFailureCount() == 0 ? 0 : 1;
+        } catch (IOException e) {
+            System.err.println("Load test failed: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Serves the local control API until the process is killed.
+     */
+    private static int runDaemon(Map<String, String> options) {
+        DaemonServer server = new DaemonServer(Paths.get(options.getOrDefault("dir", "downloads")),
+            ProxySettings.parse(options.get("proxy")),
+            (int) parsePositiveLong(options.getOrDefault("concurrency", "2"), "concurrency"),
+            LocalBuildStore.getDefault());
+        try {
+            server.start((int) parsePositiveLong(options.getOrDefault("port",
+                String.valueOf(DaemonServer.DEFAULT_PORT)), "port"));
+        } catch (IOException e) {
+            System.err.println("Cannot start daemon: " + e.getMessage());
+            return 1;
+        }
+        System.out.println(server.getBaseUrl() + "\ttoken in " + server.getTokenFile());
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop();
+        return 0;
+    }
+
+    private static UpdateStandInServer.Faults parseFaults(Map<String, String> options) {
+        UpdateStandInServer.Faults faults = new UpdateStandInServer.Faults()
+            .setLatency(parseNonNegativeLong(options.getOrDefault("latency", "0"), "latency"),
+                parseNonNegativeLong(options.getOrDefault("jitter", "0"), "jitter"));
+        if (options.containsKey("bandwidth")) {
+            faults.setBandwidth(parseSize(options.get("bandwidth"), "bandwidth"));
+        }
+        if (options.containsKey("reset")) {
+            faults.setResetRate(parseRate(options.get("reset"), "reset"));
+        }
+        if (options.containsKey("drip")) {
+            faults.setDrip(parseRate(options.get("drip"), "drip"), 1024);
+        }
+        if (options.containsKey("error")) {
+            faults.setErrors(parseRate(options.get("error"), "error"),
+                (int) parsePositiveLong(options.getOrDefault("error-status", "503"), "error-status"));
+        }
+        return faults;
+    }
+
+    /**
+     * Parses a byte count such as "512", "64KB" or "8MB".
+     */
+    private static long parseSize(String value, String name) {
+        String text = value.trim().toUpperCase();
+        long multiplier = 1;
+        if (text.endsWith("GB")) {
+            multiplier = 1024L * 1024 * 1024;
+        } else if (text.endsWith("MB")) {
+            multiplier = 1024L * 1024;
+        } else if (text.endsWith("KB")) {
+            multiplier = 1024L;
+        }
+        if (multiplier > 1) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return parsePositiveLong(text, name) * multiplier;
+    }
+
+    private static double parseRate(String value, String name) {
+        try {
+            double rate = Double.parseDouble(value.trim());
+            if (rate >= 0 && rate <= 1) {
+                return rate;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Invalid --" + name + " (expected 0 to 1): " + value);
+    }
+
+    private static long parseNonNegativeLong(String value, String name) {
+        return value.trim().equals("0") ? 0 : parsePositiveLong(value, name);
+    }
+
+    private static long parsePositiveLong(String value, String name) {
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Invalid --" + name + ": " + value);
+    }
+
+    static List<TargetPlatform> parseTargets(String value) {
+        List<TargetPlatform> targets = new ArrayList<>();
+        if (value == null || value.equalsIgnoreCase("all")) {
+            targets.addAll(List.of(TargetPlatform.values()));
+            return targets;
+        }
+        for (String id : value.split(",")) {
+            TargetPlatform target = TargetPlatform.fromString(id);
+            if (target == null) {
+                throw new IllegalArgumentException("Unknown target: " + id);
+            }
+            targets.add(target);
+        }
+        return targets;
+    }
+
+    static List<String> parseChannels(String value) {
+        List<String> channels = new ArrayList<>();
+        if (value == null || value.equalsIgnoreCase("all")) {
+            channels.addAll(MatrixFetch.CHANNELS);
+            return channels;
+        }
+        for (String name : value.split(",")) {
+            String channel = null;
+            for (String known : MatrixFetch.CHANNELS) {
+                if (known.equalsIgnoreCase(name.trim())) {
+                    channel = known;
+                }
+            }
+            if (channel == null) {
+                throw new IllegalArgumentException("Unknown channel: " + name);
+            }
+            channels.add(channel);
+        }
+        return channels;
+    }
+
+    /**
+     * Parses "--name value" pairs following the command.
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                String name = args[i].substring(2);
+                String value = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "true";
+                options.put(name, value);
+            }
+        }
+        return options;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: HeadlessMain matrix [--targets all|win-x64,win-x86,win-arm64,mac-x64,mac-arm64]");
+        System.err.println("                           [--channels all|Stable,Beta,Dev,Canary] [--proxy type://host:port]");
+        System.err.println("       HeadlessMain watch [--targets ...] [--channels ...] [--proxy ...] [--interval minutes]");
+        System.err.println("                          [--offpeak HH:mm-HH:mm] [--no-prefetch] [--once]");
+        System.err.println("                          [--store-budget bytes] [--store-keep versions]");
+        System.err.println("       HeadlessMain metalink --targets win-x64 --channels Stable --out file.meta4 [--pieces file]");
+        System.err.println("       HeadlessMain get --metalink file.meta4 [--dir directory] [--proxy ...]");
+        System.err.println("       HeadlessMain get --url url [--out file] [--proxy ...] [--bind address|interface,...]");
+        System.err.println("                        [--copy-to file,...]");
+        System.err.println("       HeadlessMain standin [--port 8480] [--size 8MB] [faults]");
+        System.err.println("       HeadlessMain loadtest [--sessions 50] [--concurrency 8] [--targets ...] [--channels ...]");
+        System.err.println("                             [--size 8MB] [--service url] [faults]");
+        System.err.println("       HeadlessMain daemon [--port 8479] [--dir downloads] [--concurrency 2] [--proxy ...]");
+        System.err.println("  faults: [--latency ms] [--jitter ms] [--bandwidth bytes] [--reset rate] [--drip rate]");
+        System.err.println("          [--error rate] [--error-status code]");
+    }
+}
@@ -0,0 +1,53 @@
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts the download connections open to each host across all downloads
+ * of the process, so parallel segments of several downloads together stay
+ * within a per-host cap.
+ */
+public final class HostPermits {
+    private static final Map<String, Integer> OPEN = new ConcurrentHashMap<>();
+
+    private HostPermits() {
+    }
+
+    public static String hostOf(String url) {
+        try {
+            String host = new URI(url).getHost();
+            return host != null ? host.toLowerCase(Locale.ROOT) : url;
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    /**
+     * Takes a permit if fewer than {@code cap} connections are open to the host.
+     */
+    public static boolean tryAcquire(String host, int cap) {
+        boolean[] acquired = new boolean[1];
+        OPEN.compute(host, (k, open) -> {
+            int current = open != null ? open : 0;
+            acquired[0] = current < cap;
+            return acquired[0] ? current + 1 : current;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * Takes a permit regardless of the cap, for a connection that is already open.
+     */
+    public static void acquire(String host) {
+        OPEN.merge(host, 1, Integer::sum);
+    }
+
+    public static void release(String host) {
+        OPEN.computeIfPresent(host, (k, open) -> open > 1 ? open - 1 : null);
+    }
+
+    public static int getOpen(String host) {
+        return OPEN.getOrDefault(host, 0);
+    }
+}
@@ -173,6 +173,7 @@ public class I18n {
         switch (osName.toLowerCase()) {
             case "windows": return get("os.windows");
             case "macos": return get("os.macos");
+            case "linux": return get("os.linux");
             default: return get("os.unknown");
         }
     }
@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Local addresses to spread segment connections across, e.g. one per
+ * uplink of a host with several. Each address keeps a moving average of
+ * the throughput its transfers reached; segments are sized in proportion
+ * to it, so a faster uplink gets a larger share of the file.
+ */
+public class InterfacePool {
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final List<Uplink> uplinks;
+
+    public InterfacePool(List<InetAddress> addresses) {
+        if (addresses == null || addresses.isEmpty()) {
+            throw new IllegalArgumentException("Interface pool cannot be empty");
+        }
+
+        List<Uplink> list = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            list.add(new Uplink(address));
+        }
+        this.uplinks = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Parses a comma-separated list of local IP addresses and interface
+     * names. An interface stands for its first IPv4 address, or its first
+     * address if it has none. Returns null for an empty list.
+     */
+    public static InterfacePool parse(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return null;
+        }
+
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String item : text.split(",")) {
+            String name = item.trim();
+            if (!name.isEmpty()) {
+                addresses.add(resolve(name));
+            }
+        }
+        return new InterfacePool(addresses);
+    }
+
+    private static InetAddress resolve(String name) {
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+            if (networkInterface != null) {
+                InetAddress first = null;
+                Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress address = addresses.nextElement();
+                    if (address instanceof Inet4Address) {
+                        return address;
+                    }
+                    if (first == null) {
+                        first = address;
+                    }
+                }
+                if (first != null) {
+                    return first;
+                }
+                throw new IllegalArgumentException("Interface has no address: " + name);
+            }
+            if (!Character.isDigit(name.charAt(0)) && name.indexOf(':') < 0) {
+                throw new IllegalArgumentException("Unknown interface: " + name);
+            }
+            InetAddress address = InetAddress.getByName(name);
+            try (Socket probe = new Socket()) {
+                probe.bind(new InetSocketAddress(address, 0));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Not a local address: " + name, e);
+            }
+            return address;
+        } catch (SocketException | UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid local address: " + name, e);
+        }
+    }
+
+    public List<Uplink> getUplinks() {
+        return uplinks;
+    }
+
+    public int size() {
+        return uplinks.size();
+    }
+
+    /**
+     * Gets the uplink a segment starts on; segments take the uplinks in turn.
+     */
+    public Uplink forSegment(int segmentIndex) {
+        return uplinks.get(Math.floorMod(segmentIndex, uplinks.size()));
+    }
+
+    /**
+     * Gets the uplink after the given one, for retrying a failed segment elsewhere.
+     */
+    public Uplink next(Uplink uplink) {
+        return uplinks.get((uplinks.indexOf(uplink) + 1) % uplinks.size());
+    }
+
+    /**
+     * Gets the share of each segment of a download, proportional to the
+     * throughput of its uplink divided among the segments on that uplink.
+     * Unmeasured uplinks count as the average of the measured ones.
+     */
+    public double[] segmentWeights(int segments) {
+        double measured = 0;
+        int measuredCount = 0;
+        for (Uplink uplink : uplinks) {
+            double value = uplink.getBytesPerSecond();
+            if (value > 0) {
+                measured += value;
+                measuredCount++;
+            }
+        }
+        double fallback = measuredCount > 0 ? measured / measuredCount : 1;
+
+        double[] weights = new double[segments];
+        for (int i = 0; i < segments; i++) {
+            Uplink uplink = forSegment(i);
+            int sharing = segments / uplinks.size() + (uplinks.indexOf(uplink) < segments % uplinks.size() ? 1 : 0);
+            double throughput = uplink.getBytesPerSecond() > 0 ? uplink.getBytesPerSecond() : fallback;
+            weights[i] = throughput / sharing;
+        }
+        return weights;
+    }
+
+    /**
+     * A local address together with the throughput measured through it.
+     */
+    public static class Uplink {
+        private final InetAddress address;
+        private final SocketHttpClient httpClient;
+        private double bytesPerSecond = -1;
+
+        Uplink(InetAddress address) {
+            this.address = address;
+            this.httpClient = new SocketHttpClient(new HappyEyeballsConnector(DnsCache.getDefault(), address),
+                TIMEOUT_MILLIS, TIMEOUT_MILLIS);
+        }
+
+        public InetAddress getAddress() { return address; }
+        public synchronized double getBytesPerSecond() { return bytesPerSecond; }
+
+        /**
+         * Gets a client whose connections leave through this address.
+         */
+        public SocketHttpClient getHttpClient() {
+            return httpClient;
+        }
+
+        public void recordTransfer(long bytes, long nanos) {
+            if (bytes <= 0 || nanos <= 0) {
+                return;
+            }
+            double value = bytes * 1_000_000_000.0 / nanos;
+            synchronized (this) {
+                bytesPerSecond = bytesPerSecond < 0 ? value : EWMA_WEIGHT * value + (1 - EWMA_WEIGHT) * bytesPerSecond;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress();
+        }
+    }
+}
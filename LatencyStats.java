@@ -0,0 +1,74 @@
+import java.util.Arrays;
+
+/**
+ * Latency statistics over all samples (count, mean, max) plus a window of
+ * the most recent samples for percentiles.
+ */
+public class LatencyStats {
+    private static final int WINDOW_SIZE = 256;
+
+    private final double[] window;
+    private int next;
+    private int size;
+    private long count;
+    private double sumMillis;
+    private double maxMillis;
+
+    public LatencyStats() {
+        this(WINDOW_SIZE);
+    }
+
+    /**
+     * Creates statistics whose percentiles cover the given number of recent samples.
+     */
+    public LatencyStats(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        this.window = new double[windowSize];
+    }
+
+    public synchronized void record(double millis) {
+        window[next] = millis;
+        next = (next + 1) % window.length;
+        size = Math.min(size + 1, window.length);
+        count++;
+        sumMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getMeanMillis() {
+        return count == 0 ? 0 : sumMillis / count;
+    }
+
+    public synchronized double getMaxMillis() {
+        return maxMillis;
+    }
+
+    public synchronized double getSumMillis() {
+        return sumMillis;
+    }
+
+    /**
+     * Gets a percentile (0-100) of the recent samples, or -1 if there are none.
+     */
+    public synchronized double percentile(double percentile) {
+        if (size == 0) {
+            return -1;
+        }
+        double[] sorted = Arrays.copyOf(window, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("count=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+            count, getMeanMillis(), percentile(50), percentile(99), maxMillis);
+    }
+}
@@ -5,13 +5,13 @@ import javafx.scene.control.ListView;
 import java.util.List;
 
 public class LinkListViewKeyHandler implements EventHandler<KeyEvent> {
-    private final ListView<String> linkListView;
-    private final List<String> currentDownloadLinks;
+    private final ListView<DownloadLink> linkListView;
+    private final List<DownloadLink> currentDownloadLinks;
     private final Runnable copySelectedAction;
     private final Runnable copyAllAction;
     
-    public LinkListViewKeyHandler(ListView<String> linkListView, 
-                                 List<String> currentDownloadLinks,
+    public LinkListViewKeyHandler(ListView<DownloadLink> linkListView, 
+                                 List<DownloadLink> currentDownloadLinks,
                                  Runnable copySelectedAction,
                                  Runnable copyAllAction) {
         if (linkListView == null || currentDownloadLinks == null || 
@@ -0,0 +1,43 @@
+/**
+ * Immutable result of a HEAD probe against a download link.
+ */
+public class LinkProbe {
+    private final boolean successful;
+    private final int responseCode;
+    private final long contentLength;
+    private final long latencyMillis;
+    private final boolean acceptsRanges;
+    private final String server;
+    private final String error;
+    private final long probedAt;
+
+    private LinkProbe(boolean successful, int responseCode, long contentLength, long latencyMillis,
+                      boolean acceptsRanges, String server, String error) {
+        this.successful = successful;
+        this.responseCode = responseCode;
+        this.contentLength = contentLength;
+        this.latencyMillis = latencyMillis;
+        this.acceptsRanges = acceptsRanges;
+        this.server = server;
+        this.error = error;
+        this.probedAt = System.currentTimeMillis();
+    }
+
+    public static LinkProbe success(int responseCode, long contentLength, long latencyMillis,
+                                    boolean acceptsRanges, String server) {
+        return new LinkProbe(true, responseCode, contentLength, latencyMillis, acceptsRanges, server, null);
+    }
+
+    public static LinkProbe failure(int responseCode, long latencyMillis, String error) {
+        return new LinkProbe(false, responseCode, -1, latencyMillis, false, null, error);
+    }
+
+    public boolean isSuccessful() { return successful; }
+    public int getResponseCode() { return responseCode; }
+    public long getContentLength() { return contentLength; }
+    public long getLatencyMillis() { return latencyMillis; }
+    public boolean isAcceptsRanges() { return acceptsRanges; }
+    public String getServer() { return server; }
+    public String getError() { return error; }
+    public long getProbedAt() { return probedAt; }
+}
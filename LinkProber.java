@@ -0,0 +1,106 @@
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Probes download links with parallel HEAD requests to find their size,
+ * latency, range support and server. Concurrency is bounded by a fixed
+ * pool and results are cached per URL for a short time.
+ */
+public class LinkProber {
+    private static final int MAX_CONCURRENT_PROBES = 4;
+    private static final long CACHE_TTL_MILLIS = 5 * 60 * 1000;
+    private static final int PROBE_TIMEOUT_MILLIS = 10000;
+
+    private final ExecutorService executor;
+    private final Map<String, CompletableFuture<LinkProbe>> cache = new ConcurrentHashMap<>();
+
+    public LinkProber() {
+        this.executor = Executors.newFixedThreadPool(MAX_CONCURRENT_PROBES, r -> {
+            Thread thread = new Thread(r, "link-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        EngineManagement.registerExecutor("linkProbes", executor);
+    }
+
+    /**
+     * Probes a link, reusing a cached or in-flight probe of the same URL.
+     * The result is also stored on the link itself.
+     */
+    public CompletableFuture<LinkProbe> probe(DownloadLink link, ProxySettings proxySettings) {
+        ProxySettings settings = proxySettings != null ? proxySettings : new ProxySettings();
+        String key = link.getUrl();
+
+        CompletableFuture<LinkProbe> future = cache.compute(key, (k, existing) -> {
+            if (existing != null && !isExpired(existing)) {
+                return existing;
+            }
+            return CompletableFuture.supplyAsync(() -> probeUrl(k, settings), executor);
+        });
+
+        return future.thenApply(result -> {
+            if (!result.isSuccessful()) {
+                cache.remove(key, future);
+            }
+            link.setProbe(result);
+            return result;
+        });
+    }
+
+    /**
+     * Drops all cached results, e.g. after the proxy settings changed.
+     */
+    public void clearCache() {
+        cache.clear();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        cache.clear();
+    }
+
+    private boolean isExpired(CompletableFuture<LinkProbe> future) {
+        if (!future.isDone()) {
+            return false;
+        }
+        LinkProbe result = future.getNow(null);
+        return result == null || System.currentTimeMillis() - result.getProbedAt() > CACHE_TTL_MILLIS;
+    }
+
+    private LinkProbe probeUrl(String url, ProxySettings proxySettings) {
+        long start = System.nanoTime();
+        HttpURLConnection connection = null;
+        try {
+            connection = proxySettings.openConnection(new URI(url));
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
+
+            int responseCode = connection.getResponseCode();
+            long latencyMillis = (System.nanoTime() - start) / 1_000_000;
+
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                return LinkProbe.failure(responseCode, latencyMillis,
+                    I18n.format("error.http", responseCode, connection.getResponseMessage()));
+            }
+
+            boolean acceptsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+            return LinkProbe.success(responseCode, connection.getContentLengthLong(), latencyMillis,
+                acceptsRanges, connection.getHeaderField("Server"));
+        } catch (Exception e) {
+            long latencyMillis = (System.nanoTime() - start) / 1_000_000;
+            return LinkProbe.failure(-1, latencyMillis,
+                e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs concurrent fetch and download sessions against an update service,
+ * normally an {@link UpdateStandInServer}, and reports latency percentiles
+ * and throughput. Each session sends its own update check (no coalescing),
+ * downloads one of the returned mirrors in turn and verifies its SHA-256.
+ * Has no JavaFX dependency.
+ */
+public class LoadDriver {
+    private final String serviceUrl;
+    private final List<TargetPlatform> targets;
+    private final List<String> channels;
+    private final int sessions;
+    private final int concurrency;
+    private final Path workDir;
+
+    public LoadDriver(String serviceUrl, List<TargetPlatform> targets, List<String> channels,
+                      int sessions, int concurrency, Path workDir) {
+        if (targets == null || targets.isEmpty() || channels == null || channels.isEmpty()) {
+            throw new IllegalArgumentException("At least one target and channel are required");
+        }
+        if (sessions <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("Sessions and concurrency must be positive");
+        }
+
+        this.serviceUrl = serviceUrl;
+        this.targets = targets;
+        this.channels = channels;
+        this.sessions = sessions;
+        this.concurrency = concurrency;
+        this.workDir = workDir;
+    }
+
+    /**
+     * Runs all sessions, at most {@code concurrency} at a time, and waits for them.
+     */
+    public Report run() throws IOException, InterruptedException {
+        Files.createDirectories(workDir);
+        Report report = new Report(sessions);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "load-session");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                int session = i;
+                futures.add(executor.submit(() -> runSession(session, report)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    report.recordFailure("driver: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        report.wallMillis = (System.nanoTime() - start) / 1_000_000.0;
+        return report;
+    }
+
+    private void runSession(int session, Report report) {
+        TargetPlatform target = targets.get(session % targets.size());
+        String channel = channels.get(session / targets.size() % channels.size());
+        Path output = workDir.resolve("session-" + session + ".bin");
+
+        try {
+            long fetchStart = System.nanoTime();
+            UpdateServiceClient client = new UpdateServiceClient(new ProxySettings(), serviceUrl);
+            client.setCoalescing(false);
+            List<DownloadLink> links = client.fetchLinks(channel, target);
+            report.fetch.record((System.nanoTime() - fetchStart) / 1_000_000.0);
+
+            DownloadLink link = links.get(session % links.size());
+            long downloadStart = System.nanoTime();
+            DownloadJob job = new DownloadJob(link.getUrl(), output.toFile());
+            // Every session must put its own transfer on the mirror
+            job.setShared(false);
+            job.setExpectedSha256(link.getSha256());
+            job.setMirrorFallback(link);
+            job.run();
+            long size = Files.size(output);
+            double downloadMillis = (System.nanoTime() - downloadStart) / 1_000_000.0;
+            report.download.record(downloadMillis);
+            report.bytes.addAndGet(size);
+            report.sessionMillis.record((System.nanoTime() - fetchStart) / 1_000_000.0);
+        } catch (Exception e) {
+            report.recordFailure(e.getClass().getSimpleName() + ": " + e.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(output);
+                Files.deleteIfExists(ChunkManifest.sidecarFor(output));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The outcome of a load run.
+     */
+    public static class Report {
+        private final LatencyStats fetch;
+        private final LatencyStats download;
+        private final LatencyStats sessionMillis;
+        private final AtomicLong bytes = new AtomicLong();
+        private final Map<String, Integer> failures = new TreeMap<>();
+        private double wallMillis;
+
+        Report(int sessions) {
+            // Windows as large as the run, so percentiles cover every session
+            this.fetch = new LatencyStats(sessions);
+            this.download = new LatencyStats(sessions);
+            this.sessionMillis = new LatencyStats(sessions);
+        }
+
+        public LatencyStats getFetch() { return fetch; }
+        public LatencyStats getDownload() { return download; }
+        public LatencyStats getSession() { return sessionMillis; }
+        public long getBytes() { return bytes.get(); }
+        public double getWallMillis() { return wallMillis; }
+
+        public synchronized Map<String, Integer> getFailures() {
+            return new TreeMap<>(failures);
+        }
+
+        public synchronized int getFailureCount() {
+            int count = 0;
+            for (int value : failures.values()) {
+                count += value;
+            }
+            return count;
+        }
+
+        synchronized void recordFailure(String reason) {
+            String key = reason != null && reason.length() > 120 ? reason.substring(0, 120) : String.valueOf(reason);
+            failures.merge(key, 1, Integer::sum);
+        }
+
+        public void print(PrintStream out) {
+            out.printf("sessions ok=%d failed=%d wall=%.0f ms%n", sessionMillis.getCount(), getFailureCount(), wallMillis);
+            printLatency(out, "fetch", fetch);
+            printLatency(out, "download", download);
+            printLatency(out, "session", sessionMillis);
+            out.printf("throughput %.1f MB/s aggregate, %d bytes%n",
+                bytes.get() / (1024.0 * 1024.0) / Math.max(0.001, wallMillis / 1000.0), bytes.get());
+            for (Map.Entry<String, Integer> failure : getFailures().entrySet()) {
+                out.printf("  %4d x %s%n", failure.getValue(), failure.getKey());
+            }
+        }
+
+        private static void printLatency(PrintStream out, String name, LatencyStats stats) {
+            out.printf("%-9s p50=%.0f p90=%.0f p99=%.0f max=%.0f ms (n=%d)%n", name,
+                stats.percentile(50), stats.percentile(90), stats.percentile(99), stats.getMaxMillis(), stats.getCount());
+        }
+    }
+}
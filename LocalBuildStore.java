@@ -0,0 +1,518 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Local store of downloaded builds, laid out as
+ * {@code <root>/<target>/<label>/<version>/<installer>} with a
+ * {@code build.properties} file per build. Stored builds are advertised to
+ * the update service as the prior version so it can offer a delta.
+ *
+ * <p>Retention keeps the newest N versions of each target and label, and
+ * evicts least recently used builds while the store is over its byte budget;
+ * the newest build of each pair is never evicted for the budget. Sizes and
+ * access times are kept in an {@code index.properties} file, so budget checks
+ * need no directory walk. Eviction runs in the background, one build at a time.
+ */
+public class LocalBuildStore {
+    static final int DEFAULT_KEEP_PER_CHANNEL = 3;
+
+    private static final String METADATA_FILE = "build.properties";
+    private static final String INDEX_FILE = "index.properties";
+    private static final Pattern SAFE_VALUE = Pattern.compile("[A-Za-z0-9._-]+");
+
+    private static final ExecutorService RETENTION_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "store-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EngineManagement.registerExecutor("storeRetention", RETENTION_EXECUTOR);
+    }
+
+    private static LocalBuildStore defaultStore;
+
+    private final Path root;
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private Map<String, IndexEntry> index;
+    private long indexedBytes;
+    private volatile long maxBytes;
+    private volatile int keepPerChannel = DEFAULT_KEEP_PER_CHANNEL;
+
+    public LocalBuildStore(Path root) {
+        if (root == null) {
+            throw new IllegalArgumentException("Store root cannot be null");
+        }
+        this.root = root;
+    }
+
+    /**
+     * Gets the store in the user's home directory, with the retention set by
+     * {@code chromedownloader.storeBudgetMB} (0 for no budget) and
+     * {@code chromedownloader.storeKeep} (0 to keep every version).
+     */
+    public static synchronized LocalBuildStore getDefault() {
+        if (defaultStore == null) {
+            defaultStore = new LocalBuildStore(Paths.get(System.getProperty("user.home"), ".chrome-downloader", "store"));
+            defaultStore.setRetention(Long.getLong("chromedownloader.storeBudgetMB", 0) * 1024 * 1024,
+                Integer.getInteger("chromedownloader.storeKeep", DEFAULT_KEEP_PER_CHANNEL));
+        }
+        return defaultStore;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Sets the byte budget (0 for none) and how many versions of each target
+     * and label to keep (0 for all), and starts evicting if over either.
+     */
+    public void setRetention(long maxBytes, int keepPerChannel) {
+        if (maxBytes < 0 || keepPerChannel < 0) {
+            throw new IllegalArgumentException("Retention limits cannot be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.keepPerChannel = keepPerChannel;
+        scheduleEviction();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getKeepPerChannel() {
+        return keepPerChannel;
+    }
+
+    /**
+     * Gets the bytes held by stored builds, from the index.
+     */
+    public synchronized long getUsedBytes() {
+        loadIndex();
+        return indexedBytes;
+    }
+
+    /**
+     * Gets the newest stored build of a target and version label, or null.
+     */
+    public Build latest(TargetPlatform target, String versionLabel) {
+        List<Build> builds = list(target, versionLabel);
+        Build build = builds.isEmpty() ? null : builds.get(builds.size() - 1);
+        if (build != null) {
+            touch(target, versionLabel, build.getVersion());
+        }
+        return build;
+    }
+
+    /**
+     * Gets a stored build by version, or null.
+     */
+    public Build find(TargetPlatform target, String versionLabel, String version) {
+        if (version == null || !SAFE_VALUE.matcher(version).matches()) {
+            return null;
+        }
+        Build build = readBuild(directory(target, versionLabel).resolve(version));
+        if (build != null) {
+            touch(target, versionLabel, version);
+        }
+        return build;
+    }
+
+    /**
+     * Lists the stored builds of a target and version label, oldest version first.
+     */
+    public List<Build> list(TargetPlatform target, String versionLabel) {
+        List<Build> builds = new ArrayList<>();
+        Path dir = directory(target, versionLabel);
+        if (!Files.isDirectory(dir)) {
+            return builds;
+        }
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                Build build = readBuild(entry);
+                if (build != null) {
+                    builds.add(build);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to list build store " + dir + ": " + e.getMessage());
+        }
+        builds.sort(Comparator.comparing(Build::getVersion, LocalBuildStore::compareVersions));
+        return builds;
+    }
+
+    /**
+     * Copies an installer into the store. A missing fingerprint is derived
+     * from the file hash in the "1.&lt;sha256&gt;" form the update service uses.
+     */
+    public Build add(TargetPlatform target, String versionLabel, String version,
+                     String fingerprint, Path installer) throws IOException {
+        if (version == null || !SAFE_VALUE.matcher(version).matches()) {
+            throw new IllegalArgumentException("Invalid version: " + version);
+        }
+        if (fingerprint != null && !SAFE_VALUE.matcher(fingerprint).matches()) {
+            throw new IllegalArgumentException("Invalid fingerprint: " + fingerprint);
+        }
+
+        String sha256 = sha256Hex(installer);
+        Path dir = directory(target, versionLabel).resolve(version);
+        Files.createDirectories(dir);
+
+        Path file = dir.resolve(installer.getFileName().toString());
+        Path temp = Files.createTempFile(dir, "add", ".tmp");
+        try {
+            Files.copy(installer, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        Properties metadata = new Properties();
+        metadata.setProperty("version", version);
+        metadata.setProperty("fingerprint", fingerprint != null ? fingerprint : "1." + sha256);
+        metadata.setProperty("sha256", sha256);
+        metadata.setProperty("file", file.getFileName().toString());
+        try (OutputStream out = Files.newOutputStream(dir.resolve(METADATA_FILE))) {
+            metadata.store(out, null);
+        }
+
+        IndexEntry entry = new IndexEntry(directorySize(dir), System.currentTimeMillis());
+        synchronized (this) {
+            loadIndex();
+            IndexEntry previous = index.put(key(target, versionLabel, version), entry);
+            indexedBytes += entry.bytes - (previous != null ? previous.bytes : 0);
+            saveIndex();
+        }
+        scheduleEviction();
+        return readBuild(dir);
+    }
+
+    /**
+     * Starts a background eviction pass if a limit is exceeded and none is running.
+     */
+    private void scheduleEviction() {
+        if (needsEviction() && evictionScheduled.compareAndSet(false, true)) {
+            RETENTION_EXECUTOR.execute(this::evict);
+        }
+    }
+
+    private synchronized boolean needsEviction() {
+        loadIndex();
+        return nextVictim() != null;
+    }
+
+    /**
+     * Deletes one build at a time until both limits hold, so other store
+     * operations interleave with a long eviction.
+     */
+    private void evict() {
+        try {
+            while (true) {
+                String victim;
+                synchronized (this) {
+                    victim = nextVictim();
+                }
+                if (victim == null) {
+                    return;
+                }
+                try {
+                    deleteDirectory(root.resolve(victim));
+                    System.err.println("Evicted " + victim + " from the build store");
+                } catch (IOException e) {
+                    System.err.println("Failed to evict " + victim + ": " + e.getMessage());
+                }
+                synchronized (this) {
+                    IndexEntry removed = index.remove(victim);
+                    if (removed != null) {
+                        indexedBytes -= removed.bytes;
+                    }
+                    saveIndex();
+                }
+            }
+        } finally {
+            evictionScheduled.set(false);
+            // A build added while this pass was finishing may need another
+            scheduleEviction();
+        }
+    }
+
+    /**
+     * Picks the next build to evict: first a version beyond the newest N of
+     * its pair, then while over budget the least recently used build that is
+     * not its pair's newest. Returns null when nothing needs evicting.
+     */
+    private String nextVictim() {
+        Map<String, List<String>> pairs = new HashMap<>();
+        for (String key : index.keySet()) {
+            pairs.computeIfAbsent(key.substring(0, key.lastIndexOf('/')), k -> new ArrayList<>()).add(key);
+        }
+        Comparator<String> byVersion = Comparator.comparing(key -> key.substring(key.lastIndexOf('/') + 1),
+            LocalBuildStore::compareVersions);
+
+        List<String> candidates = new ArrayList<>();
+        for (List<String> keys : pairs.values()) {
+            keys.sort(byVersion);
+            if (keepPerChannel > 0 && keys.size() > keepPerChannel) {
+                return keys.get(0);
+            }
+            candidates.addAll(keys.subList(0, keys.size() - 1));
+        }
+
+        if (maxBytes <= 0 || indexedBytes <= maxBytes) {
+            return null;
+        }
+        String oldest = null;
+        for (String key : candidates) {
+            if (oldest == null || index.get(key).lastAccess < index.get(oldest).lastAccess) {
+                oldest = key;
+            }
+        }
+        return oldest;
+    }
+
+    private synchronized void touch(TargetPlatform target, String versionLabel, String version) {
+        loadIndex();
+        IndexEntry entry = index.get(key(target, versionLabel, version));
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+            saveIndex();
+        }
+    }
+
+    private static String key(TargetPlatform target, String versionLabel, String version) {
+        return target.getId() + "/" + versionLabel + "/" + version;
+    }
+
+    /**
+     * Loads the index, rebuilding it from the store directories the first
+     * time or if it was lost. Callers hold the store lock.
+     */
+    private void loadIndex() {
+        if (index != null) {
+            return;
+        }
+        index = new HashMap<>();
+        indexedBytes = 0;
+        Path indexFile = root.resolve(INDEX_FILE);
+        if (Files.isRegularFile(indexFile)) {
+            Properties entries = new Properties();
+            try (InputStream in = Files.newInputStream(indexFile)) {
+                entries.load(in);
+                for (String key : entries.stringPropertyNames()) {
+                    String[] fields = entries.getProperty(key).split(",");
+                    IndexEntry entry = new IndexEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                    index.put(key, entry);
+                    indexedBytes += entry.bytes;
+                }
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Rebuilding invalid build store index: " + e.getMessage());
+                index.clear();
+                indexedBytes = 0;
+            }
+        }
+
+        try (Stream<Path> metadataFiles = Files.isDirectory(root) ? Files.walk(root, 4) : Stream.empty()) {
+            metadataFiles.filter(path -> path.getFileName().toString().equals(METADATA_FILE)
+                    && root.relativize(path).getNameCount() == 4)
+                .forEach(path -> {
+                    Path dir = path.getParent();
+                    try {
+                        IndexEntry entry = new IndexEntry(directorySize(dir),
+                            Files.getLastModifiedTime(path).toMillis());
+                        index.put(root.relativize(dir).toString().replace('\\', '/'), entry);
+                        indexedBytes += entry.bytes;
+                    } catch (IOException e) {
+                        System.err.println("Failed to index " + dir + ": " + e.getMessage());
+                    }
+                });
+        } catch (IOException e) {
+            System.err.println("Failed to index build store " + root + ": " + e.getMessage());
+        }
+        saveIndex();
+    }
+
+    /**
+     * Writes the index. Callers hold the store lock.
+     */
+    private void saveIndex() {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Properties entries = new Properties();
+        index.forEach((key, entry) -> entries.setProperty(key, entry.bytes + "," + entry.lastAccess));
+        try {
+            Path temp = Files.createTempFile(root, "index", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                entries.store(out, null);
+            }
+            Files.move(temp, root.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save build store index: " + e.getMessage());
+        }
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            long size = 0;
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)) {
+                    size += Files.size(file);
+                }
+            }
+            return size;
+        }
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private Path directory(TargetPlatform target, String versionLabel) {
+        if (target == null) {
+            throw new IllegalArgumentException("Target platform cannot be null");
+        }
+        if (versionLabel == null || !SAFE_VALUE.matcher(versionLabel).matches()) {
+            throw new IllegalArgumentException("Invalid version label: " + versionLabel);
+        }
+        return root.resolve(target.getId()).resolve(versionLabel);
+    }
+
+    private static Build readBuild(Path dir) {
+        Path metadataFile = dir.resolve(METADATA_FILE);
+        if (!Files.isRegularFile(metadataFile)) {
+            return null;
+        }
+
+        Properties metadata = new Properties();
+        try (InputStream in = Files.newInputStream(metadataFile)) {
+            metadata.load(in);
+        } catch (IOException e) {
+            System.err.println("Failed to read " + metadataFile + ": " + e.getMessage());
+            return null;
+        }
+
+        String version = metadata.getProperty("version");
+        String fingerprint = metadata.getProperty("fingerprint");
+        String file = metadata.getProperty("file");
+        if (version == null || file == null || !SAFE_VALUE.matcher(version).matches()
+                || (fingerprint != null && !SAFE_VALUE.matcher(fingerprint).matches())) {
+            return null;
+        }
+        Path installer = dir.resolve(file);
+        if (!Files.isRegularFile(installer)) {
+            return null;
+        }
+        return new Build(version, fingerprint, metadata.getProperty("sha256"), installer);
+    }
+
+    /**
+     * Compares dotted version strings numerically, e.g. 9.0 &lt; 10.0.
+     */
+    static int compareVersions(String a, String b) {
+        String[] left = a.split("\\.");
+        String[] right = b.split("\\.");
+        for (int i = 0; i < Math.max(left.length, right.length); i++) {
+            long l = i < left.length ? parseVersionPart(left[i]) : 0;
+            long r = i < right.length ? parseVersionPart(right[i]) : 0;
+            if (l != r) {
+                return Long.compare(l, r);
+            }
+        }
+        return 0;
+    }
+
+    private static long parseVersionPart(String part) {
+        try {
+            return Long.parseLong(part);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Hashes a file with SHA-256, as lower-case hex.
+     */
+    static String sha256Hex(Path file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[256 * 1024];
+            try (InputStream in = Files.newInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static class IndexEntry {
+        private final long bytes;
+        private long lastAccess;
+
+        IndexEntry(long bytes, long lastAccess) {
+            this.bytes = bytes;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * A build held in the store.
+     */
+    public static class Build {
+        private final String version;
+        private final String fingerprint;
+        private final String sha256;
+        private final Path file;
+
+        Build(String version, String fingerprint, String sha256, Path file) {
+            this.version = version;
+            this.fingerprint = fingerprint;
+            this.sha256 = sha256;
+            this.file = file;
+        }
+
+        public String getVersion() { return version; }
+        public String getFingerprint() { return fingerprint; }
+        public String getSha256() { return sha256; }
+        public Path getFile() { return file; }
+
+        @Override
+        public String toString() {
+            return version + " (" + file.getFileName() + ")";
+        }
+    }
+}
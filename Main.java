@@ -1,3 +1,4 @@
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -9,16 +10,19 @@ import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Region;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.BorderPane;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.scene.image.Image;
-import java.awt.Toolkit;
-import java.awt.datatransfer.StringSelection;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.util.StringConverter;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javafx.application.Platform;
 
 /**
@@ -29,22 +33,38 @@ public class Main extends Application {
 
     // UI components
     private ComboBox<String> versionChoiceBox;
+    private ComboBox<TargetPlatform> targetChoiceBox;
     private ToggleGroup proxyToggleGroup;
-    private RadioButton noProxyRadio, httpProxyRadio, httpsProxyRadio, socks5ProxyRadio;
+    private RadioButton noProxyRadio, httpProxyRadio, httpsProxyRadio, socks5ProxyRadio, proxyPoolRadio;
+    private TextArea proxyPoolArea;
+    private Region proxyPoolPlaceholder;
+    private CheckBox spreadSegmentsCheckBox;
     private TextField proxyHostField, proxyPortField, proxyUserField;
     private PasswordField proxyPassField;
     private Button fetchButton, downloadButton, cancelButton;
-    private ListView<String> linkListView;
+    private ListView<DownloadLink> linkListView;
     private ProgressBar progressBar;
     private Label progressLabel, resultLabel;
-    private List<String> currentDownloadLinks = new ArrayList<>();
+    private List<DownloadLink> currentDownloadLinks = new ArrayList<>();
     private DownloadFileTask currentDownloadTask = null;
     private ContextMenu linkListContextMenu;
+    private LinkProber linkProber;
+    private ProxySettings lastFetchProxySettings;
+    private SpeculativePrefetcher speculativePrefetcher;
+    private ProxyPool proxyPool;
+    private String proxyPoolSpec;
+    private InterfacePool interfacePool;
+    private String interfacePoolSpec = "";
+    private PatchApplier patchApplier;
+    private String lastFetchVersionKey;
+    private TargetPlatform lastFetchTarget;
     
     // Menu components
     private MenuBar menuBar;
-    private Menu languageMenu;
+    private Menu languageMenu, optionsMenu;
     private MenuItem englishMenuItem, schineseMenuItem;
+    private CheckMenuItem speculativePrefetchMenuItem, deltaUpdatesMenuItem;
+    private MenuItem localAddressesMenuItem;
     
     // UI references for language updates
     private Label proxyHostLabel, proxyPortLabel, proxyUserLabel, proxyPassLabel;
@@ -54,6 +74,7 @@ public class Main extends Application {
 
     @Override
     public void start(Stage primaryStage) {
+        StartupTimer.mark("fx toolkit");
         // Initialize internationalization
         initializeI18n();
         
@@ -63,16 +84,45 @@ public class Main extends Application {
             thread.setDaemon(true);
             return thread;
         });
+        linkProber = new LinkProber();
+        speculativePrefetcher = new SpeculativePrefetcher(executorService);
+        EngineManagement.registerExecutor("tasks", executorService);
+        EngineManagement.registerCache("linkProbes", linkProber::clearCache);
+        EngineManagement.registerCache("manifests", speculativePrefetcher::clearManifests);
+        try {
+            patchApplier = CommandPatchApplier.fromSystemProperty();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring patch command: " + e.getMessage());
+        }
+        StartupTimer.mark("engine");
         
         createMenuBar();
+        StartupTimer.mark("menu bar");
         
-        String osName = PlatformUtils.isWindows() ? "Windows" : (PlatformUtils.isMac() ? "macOS" : "Unknown");
-        String arch = PlatformUtils.getArchForUpdateService();
-        String localizedOS = I18n.getLocalizedOSName(osName);
-
         // Create version selection combo box
         versionChoiceBox = new ComboBox<>();
         initializeVersionChoiceBox();
+        versionChoiceBox.valueProperty().addListener((obs, oldVal, newVal) -> prefetchSelectedVersion());
+        
+        // Create target platform combo box, defaulting to the host platform
+        targetChoiceBox = new ComboBox<>();
+        targetChoiceBox.getItems().addAll(TargetPlatform.values());
+        targetChoiceBox.setConverter(new StringConverter<TargetPlatform>() {
+            @Override
+            public String toString(TargetPlatform target) {
+                return target != null ? target.getDisplayName() : "";
+            }
+            
+            @Override
+            public TargetPlatform fromString(String text) {
+                return null;
+            }
+        });
+        targetChoiceBox.setValue(TargetPlatform.fromHost());
+        targetChoiceBox.valueProperty().addListener((obs, oldVal, newVal) -> {
+            updateWindowTitle((Stage) fetchButton.getScene().getWindow(), newVal);
+            prefetchSelectedVersion();
+        });
 
         // Create proxy settings UI
         createProxySettingsUI();
@@ -93,8 +143,16 @@ public class Main extends Application {
         linkListView = new ListView<>();
         linkListView.setPrefHeight(130);
         linkListView.getSelectionModel().setSelectionMode(SelectionMode.SINGLE);
-        
-        createLinkListContextMenu();
+        linkListView.setCellFactory(list -> new DownloadLinkCell());
+        
+        // The context menu is built the first time it is asked for
+        linkListView.setOnContextMenuRequested(e -> {
+            if (linkListContextMenu == null) {
+                createLinkListContextMenu();
+                linkListContextMenu.show(linkListView, e.getScreenX(), e.getScreenY());
+                e.consume();
+            }
+        });
         
         // Setup keyboard shortcuts for copying links
         LinkListViewKeyHandler keyHandler = new LinkListViewKeyHandler(
@@ -108,6 +166,12 @@ public class Main extends Application {
         linkListView.getSelectionModel().selectedItemProperty()
             .addListener((obs, oldVal, newVal) -> {
                 downloadButton.setDisable(newVal == null || currentDownloadTask != null);
+                if (newVal != null && currentDownloadTask == null && speculativePrefetcher.isEnabled()) {
+                    ProxySettings proxySettings = createProxySettings(false);
+                    if (proxySettings != null) {
+                        speculativePrefetcher.prefetchFirstSegment(newVal, proxySettings);
+                    }
+                }
             });
 
         // Create progress tracking components
@@ -153,7 +217,8 @@ public class Main extends Application {
         VBox content = new VBox(10);
         content.setPadding(new Insets(10));
         content.getChildren().addAll(
-            new HBox(10, new Label(I18n.get("label.selectVersion")), versionChoiceBox),
+            new HBox(10, new Label(I18n.get("label.selectVersion")), versionChoiceBox,
+                new Label(I18n.get("label.targetPlatform")), targetChoiceBox),
             proxySection,
             fetchButton,
             new Label(I18n.get("label.availableLinks")),
@@ -167,16 +232,40 @@ public class Main extends Application {
         root.setTop(menuBar);
         root.setCenter(content);
 
+        StartupTimer.mark("controls");
+
         Scene scene = new Scene(root, 1000, 480);
         
-        updateWindowTitle(primaryStage, localizedOS, arch);
+        updateWindowTitle(primaryStage, targetChoiceBox.getValue());
         primaryStage.setScene(scene);
         primaryStage.setResizable(false);
+        StartupTimer.mark("scene");
 
         // Load application icons
         loadApplicationIcons(primaryStage);
+        StartupTimer.mark("icons");
 
         primaryStage.show();
+        StartupTimer.mark("show");
+        finishStartupTiming();
+    }
+
+    /**
+     * Ends startup timing at the first pulse after the window is shown. A
+     * training run for a class-data sharing archive
+     * ({@code -Dchromedownloader.exitAfterStartup=true}) exits there.
+     */
+    private void finishStartupTiming() {
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                stop();
+                StartupTimer.finish("first frame");
+                if (Boolean.getBoolean("chromedownloader.exitAfterStartup")) {
+                    Platform.exit();
+                }
+            }
+        }.start();
     }
 
     /**
@@ -204,13 +293,25 @@ public class Main extends Application {
         
         languageMenu.getItems().addAll(englishMenuItem, schineseMenuItem);
         
+        // Options menu
+        optionsMenu = new Menu(I18n.get("menu.options"));
+        speculativePrefetchMenuItem = new CheckMenuItem(I18n.get("menu.speculativePrefetch"));
+        speculativePrefetchMenuItem.setOnAction(e -> {
+            speculativePrefetcher.setEnabled(speculativePrefetchMenuItem.isSelected());
+            prefetchSelectedVersion();
+        });
+        deltaUpdatesMenuItem = new CheckMenuItem(I18n.get("menu.deltaUpdates"));
+        localAddressesMenuItem = new MenuItem(I18n.get("menu.localAddresses"));
+        localAddressesMenuItem.setOnAction(e -> editLocalAddresses());
+        optionsMenu.getItems().addAll(speculativePrefetchMenuItem, deltaUpdatesMenuItem, localAddressesMenuItem);
+        
         // Help menu
         Menu helpMenu = new Menu(I18n.get("menu.help"));
         MenuItem aboutMenuItem = new MenuItem(I18n.get("menu.about"));
         aboutMenuItem.setOnAction(e -> createAboutDialog());
         helpMenu.getItems().add(aboutMenuItem);
         
-        menuBar.getMenus().addAll(fileMenu, languageMenu, helpMenu);
+        menuBar.getMenus().addAll(fileMenu, languageMenu, optionsMenu, helpMenu);
         
         // Align menu bar to left like Windows applications
         menuBar.setUseSystemMenuBar(false);
@@ -251,21 +352,21 @@ public class Main extends Application {
      * Updates all UI elements for the current language.
      */
     private void updateUIForLanguage() {
-        String osName = PlatformUtils.isWindows() ? "Windows" : (PlatformUtils.isMac() ? "macOS" : "Unknown");
-        String arch = PlatformUtils.getArchForUpdateService();
-        String localizedOS = I18n.getLocalizedOSName(osName);
-        
         // Update window title
         Stage stage = (Stage) fetchButton.getScene().getWindow();
-        updateWindowTitle(stage, localizedOS, arch);
+        updateWindowTitle(stage, targetChoiceBox.getValue());
         
         // Update menu bar
         menuBar.getMenus().get(0).setText(I18n.get("menu.file"));
         menuBar.getMenus().get(1).setText(I18n.get("menu.language"));
-        menuBar.getMenus().get(2).setText(I18n.get("menu.help"));
+        menuBar.getMenus().get(2).setText(I18n.get("menu.options"));
+        menuBar.getMenus().get(3).setText(I18n.get("menu.help"));
         
         menuBar.getMenus().get(0).getItems().get(0).setText(I18n.get("menu.exit"));
-        menuBar.getMenus().get(2).getItems().get(0).setText(I18n.get("menu.about"));
+        speculativePrefetchMenuItem.setText(I18n.get("menu.speculativePrefetch"));
+        deltaUpdatesMenuItem.setText(I18n.get("menu.deltaUpdates"));
+        localAddressesMenuItem.setText(I18n.get("menu.localAddresses"));
+        menuBar.getMenus().get(3).getItems().get(0).setText(I18n.get("menu.about"));
         
         englishMenuItem.setText(I18n.get("menu.english"));
         schineseMenuItem.setText(I18n.get("menu.schinese"));
@@ -273,6 +374,12 @@ public class Main extends Application {
         // Update UI labels
         HBox versionBox = (HBox) versionChoiceBox.getParent();
         ((Label) versionBox.getChildren().get(0)).setText(I18n.get("label.selectVersion"));
+        ((Label) versionBox.getChildren().get(2)).setText(I18n.get("label.targetPlatform"));
+        
+        // Re-render target names in the new language
+        TargetPlatform currentTarget = targetChoiceBox.getValue();
+        targetChoiceBox.getItems().setAll(TargetPlatform.values());
+        targetChoiceBox.setValue(currentTarget);
         
         // Update version choice box
         String currentSelection = versionChoiceBox.getValue();
@@ -286,6 +393,11 @@ public class Main extends Application {
         httpProxyRadio.setText(I18n.get("radio.httpProxy"));
         httpsProxyRadio.setText(I18n.get("radio.httpsProxy"));
         socks5ProxyRadio.setText(I18n.get("radio.socks5Proxy"));
+        proxyPoolRadio.setText(I18n.get("radio.proxyPool"));
+        if (proxyPoolArea != null) {
+            proxyPoolArea.setPromptText(I18n.get("placeholder.proxyPool"));
+        }
+        spreadSegmentsCheckBox.setText(I18n.get("checkbox.spreadSegments"));
         
         proxyHostLabel.setText(I18n.get("label.proxyHost"));
         proxyHostField.setPromptText(I18n.get("placeholder.proxyHost"));
@@ -327,8 +439,12 @@ public class Main extends Application {
             }
         }
         
-        // Update context menu
-        createLinkListContextMenu();
+        // Rebuild the context menu in the new language when next asked for
+        if (linkListContextMenu != null) {
+            linkListContextMenu.hide();
+            linkListView.setContextMenu(null);
+            linkListContextMenu = null;
+        }
     }
     
     /**
@@ -347,11 +463,11 @@ public class Main extends Application {
     }
     
     /**
-     * Updates window title with current language.
+     * Updates window title with current language and target platform.
      */
-    private void updateWindowTitle(Stage stage, String osName, String arch) {
+    private void updateWindowTitle(Stage stage, TargetPlatform target) {
         String appTitle = I18n.format("app.title", 
-            I18n.get("app.version"), osName, arch);
+            I18n.get("app.version"), I18n.getLocalizedOSName(target.getOSDisplayName()), target.getArch());
         stage.setTitle(appTitle);
     }
 
@@ -384,7 +500,15 @@ public class Main extends Application {
         socks5ProxyRadio = new RadioButton(I18n.get("radio.socks5Proxy"));
         socks5ProxyRadio.setToggleGroup(proxyToggleGroup);
         
-        HBox proxyTypeBox = new HBox(10, noProxyRadio, httpProxyRadio, httpsProxyRadio, socks5ProxyRadio);
+        proxyPoolRadio = new RadioButton(I18n.get("radio.proxyPool"));
+        proxyPoolRadio.setToggleGroup(proxyToggleGroup);
+        
+        spreadSegmentsCheckBox = new CheckBox(I18n.get("checkbox.spreadSegments"));
+        spreadSegmentsCheckBox.setSelected(true);
+        spreadSegmentsCheckBox.setDisable(true);
+        
+        HBox proxyTypeBox = new HBox(10, noProxyRadio, httpProxyRadio, httpsProxyRadio, socks5ProxyRadio,
+            proxyPoolRadio, spreadSegmentsCheckBox);
         
         proxyHostLabel = new Label(I18n.get("label.proxyHost"));
         proxyHostField = new TextField();
@@ -406,6 +530,15 @@ public class Main extends Application {
         proxyPassField.setPromptText(I18n.get("placeholder.proxyPass"));
         proxyPassField.setDisable(true);
         
+        // The pool text area takes its placeholder's place when the pool is first selected
+        proxyPoolPlaceholder = new Region();
+        proxyPoolPlaceholder.setPrefWidth(300);
+        proxyPoolRadio.selectedProperty().addListener((obs, wasSelected, selected) -> {
+            if (selected) {
+                getProxyPoolArea();
+            }
+        });
+        
         GridPane proxyGrid = new GridPane();
         proxyGrid.setHgap(10);
         proxyGrid.setVgap(10);
@@ -417,9 +550,11 @@ public class Main extends Application {
         proxyGrid.add(proxyUserField, 1, 1);
         proxyGrid.add(proxyPassLabel, 2, 1);
         proxyGrid.add(proxyPassField, 3, 1);
+        proxyGrid.add(proxyPoolPlaceholder, 4, 0, 1, 2);
         
         ProxyToggleChangeListener proxyToggleListener = new ProxyToggleChangeListener(
-            noProxyRadio, proxyHostField, proxyPortField, proxyUserField, proxyPassField);
+            noProxyRadio, proxyHostField, proxyPortField, proxyUserField, proxyPassField,
+            proxyPoolRadio, spreadSegmentsCheckBox);
         proxyToggleGroup.selectedToggleProperty().addListener(proxyToggleListener);
         
         proxySection = new VBox(10);
@@ -432,6 +567,24 @@ public class Main extends Application {
         );
     }
     
+    /**
+     * Gets the proxy pool text area, creating it in place of its placeholder
+     * on first use. It is enabled while the pool is selected.
+     */
+    private TextArea getProxyPoolArea() {
+        if (proxyPoolArea == null) {
+            proxyPoolArea = new TextArea();
+            proxyPoolArea.setPromptText(I18n.get("placeholder.proxyPool"));
+            proxyPoolArea.setPrefRowCount(2);
+            proxyPoolArea.setPrefWidth(300);
+            proxyPoolArea.disableProperty().bind(proxyPoolRadio.selectedProperty().not());
+            GridPane proxyGrid = (GridPane) proxyPoolPlaceholder.getParent();
+            proxyGrid.getChildren().remove(proxyPoolPlaceholder);
+            proxyGrid.add(proxyPoolArea, 4, 0, 1, 2);
+        }
+        return proxyPoolArea;
+    }
+    
     /**
      * Gets the localized version name from English key.
      */
@@ -455,6 +608,25 @@ public class Main extends Application {
     /**
      * Creates and shows the about dialog.
      */
+    /**
+     * Asks for the local addresses or interfaces to spread download
+     * segments across. An empty list uses the default route.
+     */
+    private void editLocalAddresses() {
+        TextInputDialog dialog = new TextInputDialog(interfacePoolSpec);
+        dialog.setTitle(I18n.get("dialog.localAddresses.title"));
+        dialog.setHeaderText(I18n.get("dialog.localAddresses.header"));
+        dialog.setContentText(I18n.get("dialog.localAddresses.content"));
+        dialog.showAndWait().ifPresent(spec -> {
+            try {
+                interfacePool = InterfacePool.parse(spec);
+                interfacePoolSpec = spec.trim();
+            } catch (IllegalArgumentException e) {
+                showAlert(I18n.get("alert.localAddressError.title"), e.getMessage());
+            }
+        });
+    }
+    
     private void createAboutDialog() {
         Alert aboutDialog = new Alert(Alert.AlertType.INFORMATION);
         aboutDialog.setTitle(I18n.format("about.title", I18n.get("app.name")));
@@ -482,6 +654,18 @@ public class Main extends Application {
             executorService.shutdownNow();
         }
         
+        if (linkProber != null) {
+            linkProber.shutdown();
+        }
+        
+        if (speculativePrefetcher != null) {
+            speculativePrefetcher.shutdown();
+        }
+        
+        if (proxyPool != null) {
+            proxyPool.shutdown();
+        }
+        
         if (currentDownloadTask != null && currentDownloadTask.isRunning()) {
             currentDownloadTask.cancel();
         }
@@ -505,7 +689,14 @@ public class Main extends Application {
         MenuItem copyAllLinksItem = new MenuItem(I18n.get("contextMenu.copyAll"));
         copyAllLinksItem.setOnAction(e -> copyAllLinksToClipboard());
         
-        linkListContextMenu.getItems().addAll(copyLinkItem, copyAllLinksItem);
+        MenuItem exportMetalinkItem = new MenuItem(I18n.get("contextMenu.exportMetalink"));
+        exportMetalinkItem.setOnAction(e -> exportMetalink(false));
+        
+        MenuItem exportMetalinkPiecesItem = new MenuItem(I18n.get("contextMenu.exportMetalinkPieces"));
+        exportMetalinkPiecesItem.setOnAction(e -> exportMetalink(true));
+        
+        linkListContextMenu.getItems().addAll(copyLinkItem, copyAllLinksItem,
+            new SeparatorMenuItem(), exportMetalinkItem, exportMetalinkPiecesItem);
         
         linkListView.setContextMenu(linkListContextMenu);
     }
@@ -516,7 +707,7 @@ public class Main extends Application {
     private void copySelectedLinkToClipboard() {
         int selectedIndex = linkListView.getSelectionModel().getSelectedIndex();
         if (selectedIndex >= 0 && selectedIndex < currentDownloadLinks.size()) {
-            String url = currentDownloadLinks.get(selectedIndex);
+            String url = currentDownloadLinks.get(selectedIndex).getUrl();
             copyToClipboard(url, I18n.get("clipboard.copiedSelected"));
         } else {
             showAlert(I18n.get("alert.noSelection.title"), 
@@ -527,6 +718,49 @@ public class Main extends Application {
     /**
      * Copies all links to clipboard.
      */
+    /**
+     * Saves the fetched links as a Metalink file. With pieces, the piece
+     * hashes are computed from the downloaded copy in the Downloads folder.
+     */
+    private void exportMetalink(boolean withPieces) {
+        if (currentDownloadLinks.isEmpty()) {
+            showAlert(I18n.get("alert.noLinks.title"), I18n.get("alert.noLinks.content"));
+            return;
+        }
+        
+        DownloadLink link = linkListView.getSelectionModel().getSelectedItem();
+        if (link == null) {
+            link = currentDownloadLinks.get(0);
+        }
+        File downloaded = new File(new File(System.getProperty("user.home"), "Downloads"), link.getFileName());
+        if (withPieces && !downloaded.isFile()) {
+            showAlert(I18n.get("alert.metalinkError.title"),
+                I18n.format("alert.metalinkError.notDownloaded", link.getFileName()));
+            return;
+        }
+        
+        FileChooser chooser = new FileChooser();
+        chooser.setInitialFileName(link.getFileName() + ".meta4");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Metalink", "*.meta4"));
+        File target = chooser.showSaveDialog(fetchButton.getScene().getWindow());
+        if (target == null) {
+            return;
+        }
+        
+        Metalink metalink = Metalink.fromLinks(new ArrayList<>(currentDownloadLinks));
+        executorService.submit(() -> {
+            try {
+                Metalink result = withPieces
+                    ? metalink.withPieces(downloaded.toPath(), Metalink.DEFAULT_PIECE_LENGTH) : metalink;
+                result.write(target.toPath());
+                Platform.runLater(() -> showTemporaryMessage(I18n.format("status.metalinkSaved", target.getName())));
+            } catch (Exception ex) {
+                Platform.runLater(() -> showAlert(I18n.get("alert.metalinkError.title"),
+                    I18n.format("alert.metalinkError.content", ex.getMessage())));
+            }
+        });
+    }
+    
     private void copyAllLinksToClipboard() {
         if (currentDownloadLinks.isEmpty()) {
             showAlert(I18n.get("alert.noLinks.title"), 
@@ -535,8 +769,8 @@ public class Main extends Application {
         }
         
         StringBuilder allLinks = new StringBuilder();
-        for (String link : currentDownloadLinks) {
-            allLinks.append(link).append("\n");
+        for (DownloadLink link : currentDownloadLinks) {
+            allLinks.append(link.getUrl()).append("\n");
         }
         
         copyToClipboard(allLinks.toString().trim(), I18n.get("clipboard.copiedAll"));
@@ -547,9 +781,9 @@ public class Main extends Application {
      */
     private void copyToClipboard(String text, String successMessage) {
         try {
-            StringSelection selection = new StringSelection(text);
-            java.awt.datatransfer.Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-            clipboard.setContents(selection, null);
+            ClipboardContent content = new ClipboardContent();
+            content.putString(text);
+            Clipboard.getSystemClipboard().setContent(content);
             
             showTemporaryMessage(successMessage);
             
@@ -591,51 +825,83 @@ public class Main extends Application {
     }
 
     /**
-     * Loads application icons.
+     * Loads application icons. The smallest is loaded now for the first
+     * frame; the larger ones are decoded in the background and added after.
      */
     private void loadApplicationIcons(Stage stage) {
         String[] iconPaths = {"/images/512.png", "/images/256.png", "/images/128.png", 
-                             "/images/96.png", "/images/72.png", "/images/64.png"};
-        
-        for (String path : iconPaths) {
-            try (java.io.InputStream is = Main.class.getResourceAsStream(path)) {
-                if (is != null) {
-                    Image icon = new Image(is);
-                    if (!icon.isError()) {
-                        stage.getIcons().add(icon);
-                    }
+                             "/images/96.png", "/images/72.png"};
+        
+        Image firstIcon = loadIcon("/images/64.png");
+        if (firstIcon != null) {
+            stage.getIcons().add(firstIcon);
+        }
+        executorService.submit(() -> {
+            List<Image> icons = new ArrayList<>();
+            for (String path : iconPaths) {
+                Image icon = loadIcon(path);
+                if (icon != null) {
+                    icons.add(icon);
                 }
-            } catch (Exception ignored) {
             }
+            Platform.runLater(() -> stage.getIcons().addAll(0, icons));
+        });
+    }
+
+    private static Image loadIcon(String path) {
+        try (java.io.InputStream is = Main.class.getResourceAsStream(path)) {
+            if (is != null) {
+                Image icon = new Image(is);
+                if (!icon.isError()) {
+                    return icon;
+                }
+            }
+        } catch (Exception ignored) {
         }
+        return null;
     }
 
     /**
      * Creates ProxySettings from UI inputs.
      */
     private ProxySettings createProxySettings() {
+        return createProxySettings(true);
+    }
+    
+    /**
+     * Creates ProxySettings from UI inputs, optionally without alerting
+     * on invalid input (used for background work the user did not ask for).
+     */
+    private ProxySettings createProxySettings(boolean reportErrors) {
         RadioButton selectedRadio = (RadioButton) proxyToggleGroup.getSelectedToggle();
         
         if (selectedRadio == noProxyRadio) {
             return new ProxySettings();
         }
         
+        if (selectedRadio == proxyPoolRadio) {
+            ProxyPool pool = getProxyPool(reportErrors);
+            return pool != null ? pool.select() : null;
+        }
+        
         String host = proxyHostField.getText().trim();
         String portText = proxyPortField.getText().trim();
         String username = proxyUserField.getText().trim();
         String password = proxyPassField.getText();
         
         if (host.isEmpty() || portText.isEmpty()) {
-            showAlert(I18n.get("alert.proxyError.title"),
-                     I18n.get("alert.proxyError.hostPort"));
+            if (reportErrors) {
+                showAlert(I18n.get("alert.proxyError.title"), I18n.get("alert.proxyError.hostPort"));
+            }
             return null;
         }
         
         try {
             int port = Integer.parseInt(portText);
             if (port < 1 || port > 65535) {
-                showAlert(I18n.get("alert.proxyError.title"),
-                         I18n.get("alert.proxyError.portRange"));
+                if (reportErrors) {
+                    showAlert(I18n.get("alert.proxyError.title"), I18n.get("alert.proxyError.portRange"));
+                }
                 return null;
             }
             
@@ -657,8 +923,37 @@ public class Main extends Application {
             }
             
         } catch (NumberFormatException e) {
-            showAlert(I18n.get("alert.proxyError.title"),
-                     I18n.get("alert.proxyError.portNumber"));
+            if (reportErrors) {
+                showAlert(I18n.get("alert.proxyError.title"), I18n.get("alert.proxyError.portNumber"));
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the proxy pool for the current pool text, rebuilding it and
+     * restarting its health checks when the text or strategy changed.
+     */
+    private ProxyPool getProxyPool(boolean reportErrors) {
+        String poolText = getProxyPoolArea().getText();
+        String spec = poolText.trim() + "|" + spreadSegmentsCheckBox.isSelected();
+        if (proxyPool != null && spec.equals(proxyPoolSpec)) {
+            return proxyPool;
+        }
+        
+        try {
+            ProxyPool pool = ProxyPool.parse(poolText, spreadSegmentsCheckBox.isSelected());
+            if (proxyPool != null) {
+                proxyPool.shutdown();
+            }
+            proxyPool = pool;
+            proxyPoolSpec = spec;
+            proxyPool.start();
+            return proxyPool;
+        } catch (IllegalArgumentException e) {
+            if (reportErrors) {
+                showAlert(I18n.get("alert.proxyError.title"), I18n.format("alert.proxyError.pool", e.getMessage()));
+            }
             return null;
         }
     }
@@ -674,6 +969,21 @@ public class Main extends Application {
         alert.showAndWait();
     }
 
+    /**
+     * Speculatively fetches the manifest of the selected version when enabled.
+     */
+    private void prefetchSelectedVersion() {
+        if (!speculativePrefetcher.isEnabled() || versionChoiceBox.getValue() == null) {
+            return;
+        }
+        
+        ProxySettings proxySettings = createProxySettings(false);
+        if (proxySettings != null) {
+            speculativePrefetcher.prefetchManifest(
+                getVersionKeyFromLocalized(versionChoiceBox.getValue()), targetChoiceBox.getValue(), proxySettings);
+        }
+    }
+
     /**
      * Fetches download links for selected version.
      */
@@ -688,16 +998,30 @@ public class Main extends Application {
         }
         
         fetchButton.setDisable(true);
+        
+        // Cached probe results are only valid for the route they were measured on
+        if (!proxySettings.equals(lastFetchProxySettings)) {
+            linkProber.clearCache();
+            lastFetchProxySettings = proxySettings;
+        }
 
         String localizedVersion = versionChoiceBox.getValue();
         String versionKey = getVersionKeyFromLocalized(localizedVersion);
         
-        FetchLinksTask task = new FetchLinksTask(versionKey, proxySettings);
+        TargetPlatform target = targetChoiceBox.getValue();
+        
+        FetchLinksTask task = new FetchLinksTask(versionKey, proxySettings, target);
+        task.useSpeculativeResult(speculativePrefetcher.getManifest(versionKey, target, proxySettings));
+        if (deltaUpdatesMenuItem.isSelected()) {
+            task.usePriorBuild(LocalBuildStore.getDefault().latest(target, versionKey));
+        }
+        lastFetchVersionKey = versionKey;
+        lastFetchTarget = target;
 
         task.setOnRunning(TaskStateHandlers.createFetchLinksRunningHandler(progressLabel, proxySettings));
         
         task.setOnSucceeded(TaskStateHandlers.createFetchLinksSucceededHandler(
-            progressLabel, linkListView, currentDownloadLinks, fetchButton));
+            progressLabel, linkListView, currentDownloadLinks, fetchButton, linkProber, proxySettings));
         
         task.setOnFailed(TaskStateHandlers.createFetchLinksFailedHandler(
             progressLabel, linkListView, fetchButton));
@@ -718,8 +1042,9 @@ public class Main extends Application {
         int selectedIndex = linkListView.getSelectionModel().getSelectedIndex();
         if (selectedIndex < 0 || selectedIndex >= currentDownloadLinks.size()) return;
 
-        String url = currentDownloadLinks.get(selectedIndex);
-        String fileName = url.substring(url.lastIndexOf('/') + 1);
+        DownloadLink link = currentDownloadLinks.get(selectedIndex);
+        String url = link.getUrl();
+        String fileName = link.getFileName();
         
         String userHome = System.getProperty("user.home");
         File downloadsDir = new File(userHome, "Downloads");
@@ -731,6 +1056,12 @@ public class Main extends Application {
         }
         
         File outputFile = new File(downloadsDir, fileName);
+        
+        // Keep buffering the first segment while the user confirms
+        ProxySettings speculativeProxySettings = createProxySettings(false);
+        if (speculativeProxySettings != null) {
+            speculativePrefetcher.prefetchFirstSegment(link, speculativeProxySettings);
+        }
 
         if (outputFile.exists()) {
             Alert confirmAlert = new Alert(Alert.AlertType.CONFIRMATION);
@@ -767,7 +1098,23 @@ public class Main extends Application {
         cancelButton.setDisable(false);
         linkListView.setDisable(true);
 
-        currentDownloadTask = new DownloadFileTask(url, outputFile, proxySettings);
+        // The buffered segment is only valid for the route it was fetched on
+        Future<PrefetchedSegment> prefetchedSegment = proxySettings.equals(speculativeProxySettings)
+            ? speculativePrefetcher.takeFirstSegment(url) : null;
+        speculativePrefetcher.discardFirstSegment();
+        
+        currentDownloadTask = new DownloadFileTask(url, outputFile, proxySettings, prefetchedSegment);
+        currentDownloadTask.setExpectedSha256(link.getSha256());
+        currentDownloadTask.setChannel(lastFetchVersionKey);
+        currentDownloadTask.setMirrorFallback(link);
+        if (proxyToggleGroup.getSelectedToggle() == proxyPoolRadio) {
+            currentDownloadTask.setProxyPool(proxyPool);
+        }
+        currentDownloadTask.setInterfacePool(interfacePool);
+        if (deltaUpdatesMenuItem.isSelected() && lastFetchTarget != null) {
+            currentDownloadTask.setDeltaUpdater(
+                new DeltaUpdater(LocalBuildStore.getDefault(), patchApplier, lastFetchTarget, lastFetchVersionKey), link);
+        }
         
         DownloadTaskHandlers.setupDownloadHandlers(
             currentDownloadTask,
@@ -811,6 +1158,7 @@ public class Main extends Application {
     }
 
     public static void main(String[] args) {
+        StartupTimer.mark("jvm");
         launch(args);
     }
 }
\ No newline at end of file
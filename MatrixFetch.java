@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resolves download links for every (target, channel) combination
+ * concurrently, so a single host can keep a mirror of all installers current.
+ */
+public class MatrixFetch {
+    public static final List<String> CHANNELS = Collections.unmodifiableList(
+        Arrays.asList("Stable", "Beta", "Dev", "Canary"));
+
+    private static final int MAX_CONCURRENT_FETCHES = 8;
+
+    private final UpdateServiceClient client;
+
+    public MatrixFetch(UpdateServiceClient client) {
+        if (client == null) {
+            throw new IllegalArgumentException("Client cannot be null");
+        }
+        this.client = client;
+    }
+
+    /**
+     * Fetches all combinations of the given targets and channels. A failing
+     * combination is reported in its result and does not fail the others.
+     */
+    public List<Result> fetchAll(Collection<TargetPlatform> targets, Collection<String> channels) {
+        List<CompletableFuture<Result>> futures = new ArrayList<>();
+        int combinations = Math.max(1, targets.size() * channels.size());
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(combinations, MAX_CONCURRENT_FETCHES), r -> {
+                Thread thread = new Thread(r, "matrix-fetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        try {
+            for (TargetPlatform target : targets) {
+                for (String channel : channels) {
+                    futures.add(CompletableFuture.supplyAsync(() -> fetchOne(target, channel), executor));
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (CompletableFuture<Result> future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public List<Result> fetchAll() {
+        return fetchAll(Arrays.asList(TargetPlatform.values()), CHANNELS);
+    }
+
+    private Result fetchOne(TargetPlatform target, String channel) {
+        long start = System.nanoTime();
+        try {
+            List<DownloadLink> links = client.fetchLinks(channel, target);
+            return new Result(target, channel, links, null, (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            String error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            return new Result(target, channel, Collections.emptyList(), error, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    /**
+     * Outcome of one (target, channel) combination.
+     */
+    public static class Result {
+        private final TargetPlatform target;
+        private final String channel;
+        private final List<DownloadLink> links;
+        private final String error;
+        private final long elapsedMillis;
+
+        Result(TargetPlatform target, String channel, List<DownloadLink> links, String error, long elapsedMillis) {
+            this.target = target;
+            this.channel = channel;
+            this.links = links;
+            this.error = error;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public TargetPlatform getTarget() { return target; }
+        public String getChannel() { return channel; }
+        public List<DownloadLink> getLinks() { return links; }
+        public String getError() { return error; }
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        public boolean isSuccessful() {
+            return error == null && !links.isEmpty();
+        }
+
+        public String getVersion() {
+            return links.isEmpty() ? null : links.get(0).getVersion();
+        }
+    }
+}
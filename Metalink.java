@@ -0,0 +1,315 @@
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A Metalink v4 document (RFC 5854): files with their size, SHA-256,
+ * optional piece hashes and the mirrors they can be fetched from.
+ */
+public class Metalink {
+    public static final String NAMESPACE = "urn:ietf:params:xml:ns:metalink";
+    public static final int DEFAULT_PIECE_LENGTH = 1024 * 1024;
+
+    private final List<Entry> entries;
+
+    public Metalink(List<Entry> entries) {
+        if (entries == null || entries.isEmpty()) {
+            throw new IllegalArgumentException("Metalink must describe at least one file");
+        }
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Describes fetched links, one file per distinct package with every
+     * mirror of it as a source, in the order the service returned them.
+     */
+    public static Metalink fromLinks(List<DownloadLink> links) {
+        Map<String, List<DownloadLink>> byPackage = new LinkedHashMap<>();
+        for (DownloadLink link : links) {
+            byPackage.computeIfAbsent(link.getFileName() + "|" + link.getSha256(), k -> new ArrayList<>()).add(link);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (List<DownloadLink> mirrors : byPackage.values()) {
+            DownloadLink first = mirrors.get(0);
+            List<String> urls = new ArrayList<>();
+            for (DownloadLink mirror : mirrors) {
+                urls.add(mirror.getUrl());
+            }
+            entries.add(new Entry(first.getFileName(), first.getVersion(), first.getManifestSize(),
+                first.getSha256(), 0, null, urls));
+        }
+        return new Metalink(entries);
+    }
+
+    /**
+     * Gets a copy in which the entry for the downloaded file carries piece
+     * hashes of it. The file must match the entry's size and SHA-256.
+     */
+    public Metalink withPieces(Path downloadedFile, int pieceLength) throws IOException {
+        String name = downloadedFile.getFileName().toString();
+        List<Entry> updated = new ArrayList<>();
+        boolean found = false;
+        for (Entry entry : entries) {
+            if (!found && entry.getName().equals(name)) {
+                updated.add(entry.withPieces(downloadedFile, pieceLength));
+                found = true;
+            } else {
+                updated.add(entry);
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException("No file named " + name + " in the Metalink");
+        }
+        return new Metalink(updated);
+    }
+
+    public void write(Path file) throws IOException {
+        Files.write(file, toXml().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String toXml() {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<metalink xmlns=\"").append(NAMESPACE).append("\">\n");
+        xml.append("  <generator>ChromeDownloader</generator>\n");
+        for (Entry entry : entries) {
+            xml.append("  <file name=\"").append(escape(entry.getName())).append("\">\n");
+            if (entry.getVersion() != null) {
+                xml.append("    <version>").append(escape(entry.getVersion())).append("</version>\n");
+            }
+            if (entry.getSize() >= 0) {
+                xml.append("    <size>").append(entry.getSize()).append("</size>\n");
+            }
+            if (entry.getSha256() != null) {
+                xml.append("    <hash type=\"sha-256\">").append(entry.getSha256()).append("</hash>\n");
+            }
+            if (entry.hasPieces()) {
+                xml.append("    <pieces length=\"").append(entry.getPieceLength()).append("\" type=\"sha-256\">\n");
+                for (String hash : entry.getPieceHashes()) {
+                    xml.append("      <hash>").append(hash).append("</hash>\n");
+                }
+                xml.append("    </pieces>\n");
+            }
+            int priority = 1;
+            for (String url : entry.getUrls()) {
+                xml.append("    <url priority=\"").append(priority++).append("\">")
+                    .append(escape(url)).append("</url>\n");
+            }
+            xml.append("  </file>\n");
+        }
+        xml.append("</metalink>\n");
+        return xml.toString();
+    }
+
+    public static Metalink parse(Path file) throws Exception {
+        try (InputStream in = Files.newInputStream(file)) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Parses a Metalink v4 document. Only SHA-256 hashes are used; files
+     * without a usable source are skipped.
+     */
+    public static Metalink parse(InputStream in) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        Document doc = builder.parse(in);
+
+        List<Entry> entries = new ArrayList<>();
+        NodeList fileNodes = doc.getElementsByTagNameNS(NAMESPACE, "file");
+        for (int i = 0; i < fileNodes.getLength(); i++) {
+            Element fileEl = (Element) fileNodes.item(i);
+            String name = fileEl.getAttribute("name");
+            if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.equals("..")) {
+                continue;
+            }
+
+            String version = childText(fileEl, "version");
+            String sizeText = childText(fileEl, "size");
+            long size = sizeText != null ? Long.parseLong(sizeText.trim()) : -1;
+
+            String sha256 = null;
+            int pieceLength = 0;
+            List<String> pieceHashes = null;
+            List<String[]> urls = new ArrayList<>();
+            for (Node node = fileEl.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (!(node instanceof Element) || !NAMESPACE.equals(node.getNamespaceURI())) {
+                    continue;
+                }
+                Element el = (Element) node;
+                switch (el.getLocalName()) {
+                    case "hash":
+                        if ("sha-256".equalsIgnoreCase(el.getAttribute("type"))) {
+                            sha256 = el.getTextContent().trim().toLowerCase();
+                        }
+                        break;
+                    case "pieces":
+                        if ("sha-256".equalsIgnoreCase(el.getAttribute("type"))) {
+                            pieceLength = Integer.parseInt(el.getAttribute("length").trim());
+                            pieceHashes = new ArrayList<>();
+                            NodeList hashes = el.getElementsByTagNameNS(NAMESPACE, "hash");
+                            for (int j = 0; j < hashes.getLength(); j++) {
+                                pieceHashes.add(hashes.item(j).getTextContent().trim().toLowerCase());
+                            }
+                        }
+                        break;
+                    case "url":
+                        String url = el.getTextContent().trim();
+                        if (url.startsWith("http://") || url.startsWith("https://")) {
+                            String priority = el.getAttribute("priority");
+                            urls.add(new String[] {priority.isEmpty() ? "999999" : priority.trim(), url});
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (urls.isEmpty()) {
+                continue;
+            }
+
+            // Lower priority values are preferred
+            urls.sort((a, b) -> Integer.compare(parsePriority(a[0]), parsePriority(b[0])));
+            List<String> sortedUrls = new ArrayList<>();
+            for (String[] url : urls) {
+                sortedUrls.add(url[1]);
+            }
+            entries.add(new Entry(name, version, size, sha256, pieceLength, pieceHashes, sortedUrls));
+        }
+        return new Metalink(entries);
+    }
+
+    private static int parsePriority(String priority) {
+        try {
+            return Integer.parseInt(priority);
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static String childText(Element parent, String localName) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && NAMESPACE.equals(node.getNamespaceURI())
+                    && localName.equals(node.getLocalName())) {
+                return node.getTextContent().trim();
+            }
+        }
+        return null;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * One file of a Metalink.
+     */
+    public static class Entry {
+        private final String name;
+        private final String version;
+        private final long size;
+        private final String sha256;
+        private final int pieceLength;
+        private final List<String> pieceHashes;
+        private final List<String> urls;
+
+        public Entry(String name, String version, long size, String sha256,
+                     int pieceLength, List<String> pieceHashes, List<String> urls) {
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("File name cannot be null or empty");
+            }
+            if (urls == null || urls.isEmpty()) {
+                throw new IllegalArgumentException("File must have at least one URL");
+            }
+            if (pieceHashes != null && !pieceHashes.isEmpty() && pieceLength <= 0) {
+                throw new IllegalArgumentException("Piece length must be positive");
+            }
+
+            this.name = name;
+            this.version = version;
+            this.size = size;
+            this.sha256 = sha256 != null && !sha256.isEmpty() ? sha256 : null;
+            this.pieceLength = pieceLength;
+            this.pieceHashes = pieceHashes != null ? Collections.unmodifiableList(pieceHashes) : Collections.emptyList();
+            this.urls = Collections.unmodifiableList(urls);
+        }
+
+        public String getName() { return name; }
+        public String getVersion() { return version; }
+        public long getSize() { return size; }
+        public String getSha256() { return sha256; }
+        public int getPieceLength() { return pieceLength; }
+        public List<String> getPieceHashes() { return pieceHashes; }
+        public List<String> getUrls() { return urls; }
+
+        public boolean hasPieces() {
+            return !pieceHashes.isEmpty() && size > 0
+                && pieceHashes.size() == (size + pieceLength - 1) / pieceLength;
+        }
+
+        /**
+         * Computes piece hashes of a downloaded copy of this file.
+         */
+        public Entry withPieces(Path file, int pieceLength) throws IOException {
+            if (pieceLength <= 0) {
+                throw new IllegalArgumentException("Piece length must be positive");
+            }
+            long fileSize = Files.size(file);
+            if (size >= 0 && fileSize != size) {
+                throw new IOException("File size " + fileSize + " does not match " + size);
+            }
+
+            MessageDigest whole = newSha256();
+            List<String> hashes = new ArrayList<>();
+            byte[] piece = new byte[pieceLength];
+            try (InputStream in = Files.newInputStream(file)) {
+                int length;
+                while ((length = in.readNBytes(piece, 0, pieceLength)) > 0) {
+                    whole.update(piece, 0, length);
+                    MessageDigest digest = newSha256();
+                    digest.update(piece, 0, length);
+                    hashes.add(HexFormat.of().formatHex(digest.digest()));
+                }
+            }
+            if (sha256 != null && !sha256.equalsIgnoreCase(HexFormat.of().formatHex(whole.digest()))) {
+                throw new IOException("File does not match the SHA-256 of " + name);
+            }
+            return new Entry(name, version, fileSize, sha256, pieceLength, hashes, urls);
+        }
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
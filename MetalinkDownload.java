@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Downloads one file of a {@link Metalink} from all of its sources at
+ * once. The file is split into pieces (the Metalink's pieces, or 4 MB
+ * ranges if it has none) that workers take from a shared queue, each
+ * worker starting on a different source. A piece with piece hashes is
+ * verified before it is written; a failed piece goes back to the queue to
+ * be fetched from another source. The whole file is checked against its
+ * SHA-256 at the end. Has no JavaFX dependency.
+ */
+public class MetalinkDownload {
+    private static final int DEFAULT_PIECE_LENGTH = 4 * 1024 * 1024;
+    private static final int MAX_WORKERS = 8;
+    private static final int MAX_PIECE_ATTEMPTS = 5;
+    private static final int MAX_SOURCE_FAILURES = 3;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final Metalink.Entry entry;
+    private final ProxySettings proxySettings;
+    private final BooleanSupplier cancelled;
+    private final SocketHttpClient httpClient = new SocketHttpClient(TIMEOUT_MILLIS, TIMEOUT_MILLIS);
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicIntegerArray sourceFailures;
+    private volatile boolean aborted;
+
+    public MetalinkDownload(Metalink.Entry entry, ProxySettings proxySettings, BooleanSupplier cancelled) {
+        if (entry == null) {
+            throw new IllegalArgumentException("Metalink entry cannot be null");
+        }
+        if (entry.getSize() <= 0) {
+            throw new IllegalArgumentException("Metalink entry has no size: " + entry.getName());
+        }
+
+        this.entry = entry;
+        this.proxySettings = proxySettings != null ? proxySettings : new ProxySettings();
+        this.cancelled = cancelled != null ? cancelled : () -> false;
+        this.sourceFailures = new AtomicIntegerArray(entry.getUrls().size());
+    }
+
+    /**
+     * Downloads the file, reporting the bytes written so far. Returns false if cancelled.
+     */
+    public boolean run(Path output, LongConsumer progress) throws IOException, InterruptedException {
+        int pieceLength = entry.hasPieces() ? entry.getPieceLength() : DEFAULT_PIECE_LENGTH;
+        int pieceCount = (int) ((entry.getSize() + pieceLength - 1) / pieceLength);
+        ConcurrentLinkedQueue<Piece> queue = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < pieceCount; i++) {
+            long start = (long) i * pieceLength;
+            queue.add(new Piece(i, start, Math.min(entry.getSize(), start + pieceLength)));
+        }
+
+        int workers = Math.min(MAX_WORKERS, Math.min(pieceCount, Math.max(4, entry.getUrls().size())));
+        ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "metalink-piece");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                int worker = i;
+                futures.add(executor.submit(() -> {
+                    work(worker, queue, channel);
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                while (true) {
+                    try {
+                        future.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        if (progress != null) {
+                            progress.accept(bytesWritten.get());
+                        }
+                    } catch (ExecutionException e) {
+                        aborted = true;
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) throw (IOException) cause;
+                        throw new IOException(cause);
+                    }
+                }
+            }
+            if (progress != null) {
+                progress.accept(bytesWritten.get());
+            }
+        } finally {
+            aborted = true;
+            executor.shutdownNow();
+        }
+
+        if (cancelled.getAsBoolean()) {
+            return false;
+        }
+        if (entry.getSha256() != null && !entry.getSha256().equalsIgnoreCase(LocalBuildStore.sha256Hex(output))) {
+            throw new IOException("Downloaded file does not match the SHA-256 of " + entry.getName());
+        }
+        return true;
+    }
+
+    /**
+     * Takes pieces from the queue until it is empty, starting on the
+     * worker's own source and moving to the next one after a failure.
+     */
+    private void work(int worker, ConcurrentLinkedQueue<Piece> queue, FileChannel channel) throws IOException {
+        int source = worker % entry.getUrls().size();
+        Piece piece;
+        while ((piece = queue.poll()) != null) {
+            if (cancelled.getAsBoolean() || aborted) {
+                return;
+            }
+            source = nextUsableSource(source);
+            try {
+                byte[] data = fetch(entry.getUrls().get(source), piece);
+                verify(piece, data);
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                long position = piece.start;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                bytesWritten.addAndGet(data.length);
+            } catch (IOException e) {
+                if (cancelled.getAsBoolean() || aborted) {
+                    return;
+                }
+                sourceFailures.incrementAndGet(source);
+                if (++piece.attempts >= MAX_PIECE_ATTEMPTS) {
+                    throw new IOException("Piece " + piece.index + " failed " + piece.attempts + " times: "
+                        + e.getMessage(), e);
+                }
+                System.err.println("Piece " + piece.index + " from " + entry.getUrls().get(source)
+                    + " failed, retrying on another source: " + e.getMessage());
+                queue.add(piece);
+                source = (source + 1) % entry.getUrls().size();
+            }
+        }
+    }
+
+    /**
+     * Skips sources that failed too often, unless all of them did.
+     */
+    private int nextUsableSource(int source) {
+        int count = entry.getUrls().size();
+        for (int i = 0; i < count; i++) {
+            int candidate = (source + i) % count;
+            if (sourceFailures.get(candidate) < MAX_SOURCE_FAILURES) {
+                return candidate;
+            }
+        }
+        return source;
+    }
+
+    private byte[] fetch(String url, Piece piece) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
+        headers.put("Range", "bytes=" + piece.start + "-" + (piece.end - 1));
+
+        SocketHttpClient.Response response = httpClient.get(url, headers, proxySettings);
+        try {
+            int responseCode = response.getResponseCode();
+            boolean wholeFile = responseCode == HttpURLConnection.HTTP_OK && piece.start == 0
+                && piece.end == entry.getSize();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL && !wholeFile) {
+                throw new IOException(I18n.format("error.http", responseCode, response.getResponseMessage()));
+            }
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL
+                    && SegmentedDownload.parseContentRangeStart(response.getHeaderField("Content-Range")) != piece.start) {
+                throw new IOException("Unexpected Content-Range: " + response.getHeaderField("Content-Range"));
+            }
+
+            int length = (int) (piece.end - piece.start);
+            byte[] data;
+            try (InputStream in = response.getInputStream()) {
+                data = in.readNBytes(length);
+            }
+            if (data.length != length) {
+                throw new IOException("Connection closed early in piece " + piece.index);
+            }
+            return data;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private void verify(Piece piece, byte[] data) throws IOException {
+        if (!entry.hasPieces()) {
+            return;
+        }
+        String expected = entry.getPieceHashes().get(piece.index);
+        String actual = HexFormat.of().formatHex(Metalink.newSha256().digest(data));
+        if (!expected.equalsIgnoreCase(actual)) {
+            throw new IOException("Piece " + piece.index + " does not match its hash");
+        }
+    }
+
+    private static final class Piece {
+        private final int index;
+        private final long start;
+        private final long end;
+        private int attempts;
+
+        Piece(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
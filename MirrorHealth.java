@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Health of download mirrors per host: a circuit breaker plus a score from
+ * the smoothed error rate and time to first byte. After
+ * {@value #FAILURE_THRESHOLD} failures in a row a host's circuit opens: it
+ * is left out of the mirror order and requests to it fail at once. Once the
+ * open period ends it is half-open, and the next result closes the circuit
+ * or reopens it for twice as long. Scores and circuits are kept in a
+ * properties file across sessions, written by one background thread.
+ */
+public class MirrorHealth {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long MIN_OPEN_MILLIS = 30_000;
+    static final long MAX_OPEN_MILLIS = 30 * 60_000;
+
+    private static final double ALPHA = 0.2;
+    private static final double PRIOR_LATENCY_MILLIS = 500;
+    private static final double ERROR_PENALTY = 10;
+    private static final long ERROR_HALF_LIFE_MILLIS = 60 * 60_000;
+    private static final long SAVE_INTERVAL_MILLIS = 10_000;
+
+    private static final ExecutorService SAVE_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mirror-health-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EngineManagement.registerExecutor("mirrorHealthSaves", SAVE_EXECUTOR);
+    }
+
+    private static MirrorHealth defaultInstance;
+
+    private final Path stateFile;
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private final Object fileLock = new Object();
+    private long lastSave;
+
+    public MirrorHealth(Path stateFile) {
+        this.stateFile = stateFile;
+        load();
+    }
+
+    public static synchronized MirrorHealth getDefault() {
+        if (defaultInstance == null) {
+            MirrorHealth health = new MirrorHealth(getDefaultStateFile());
+            Runtime.getRuntime().addShutdownHook(new Thread(health::writeState, "mirror-health-flush"));
+            defaultInstance = health;
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Gets the default file the scores are kept in.
+     */
+    public static Path getDefaultStateFile() {
+        return Paths.get(System.getProperty("user.home"), ".chrome-downloader", "mirrors.properties");
+    }
+
+    /**
+     * Records a host's time to first byte.
+     */
+    public void recordLatency(String host, double latencyMillis) {
+        if (host == null) {
+            return;
+        }
+        synchronized (this) {
+            Host health = host(host);
+            health.latencyMillis = health.latencyMillis < 0
+                ? latencyMillis : health.latencyMillis + ALPHA * (latencyMillis - health.latencyMillis);
+        }
+        save(false);
+    }
+
+    /**
+     * Records a response body received in full, which closes the host's circuit.
+     */
+    public void recordSuccess(String host) {
+        if (host == null) {
+            return;
+        }
+        boolean changed;
+        synchronized (this) {
+            Host health = host(host);
+            health.decay(System.currentTimeMillis());
+            health.errorRate *= 1 - ALPHA;
+            health.consecutiveFailures = 0;
+            changed = health.openUntil != 0;
+            health.openUntil = 0;
+            health.openMillis = 0;
+        }
+        save(changed);
+    }
+
+    /**
+     * Records a failed request to a host: a connect error, reset, timeout or
+     * server error. Opens its circuit after enough failures in a row, or at
+     * once if it was half-open.
+     */
+    public void recordFailure(String host) {
+        if (host == null) {
+            return;
+        }
+        boolean opened = false;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Host health = host(host);
+            health.decay(now);
+            health.errorRate += ALPHA * (1 - health.errorRate);
+            health.consecutiveFailures++;
+            State state = health.state(now);
+            if (state == State.HALF_OPEN || (state == State.CLOSED && health.consecutiveFailures >= FAILURE_THRESHOLD)) {
+                health.openMillis = health.openMillis == 0
+                    ? MIN_OPEN_MILLIS : Math.min(MAX_OPEN_MILLIS, health.openMillis * 2);
+                health.openUntil = now + health.openMillis;
+                opened = true;
+            }
+        }
+        if (opened) {
+            System.err.println("Mirror " + host + " is failing, skipping it for a while");
+        }
+        save(opened);
+    }
+
+    public synchronized State getState(String host) {
+        Host health = hosts.get(host);
+        return health != null ? health.state(System.currentTimeMillis()) : State.CLOSED;
+    }
+
+    /**
+     * Gets a host's score in milliseconds; lower is better. Unknown hosts
+     * score as a typical mirror.
+     */
+    public synchronized double getScore(String host) {
+        Host health = hosts.get(host);
+        return health != null ? health.score(System.currentTimeMillis()) : PRIOR_LATENCY_MILLIS;
+    }
+
+    /**
+     * Tells whether requests to a host should fail at once because its
+     * circuit is open.
+     */
+    public boolean isOpen(String host) {
+        return host != null && getState(host) == State.OPEN;
+    }
+
+    /**
+     * Orders links by the health of their hosts: closed circuits first,
+     * then half-open. Within each, links rewritten to an internal mirror
+     * come first, then the rest by score. Ties keep manifest order. Links
+     * to hosts with an open circuit are left out, unless all of them are.
+     */
+    public List<DownloadLink> order(List<DownloadLink> links) {
+        List<DownloadLink> ordered = new ArrayList<>(links);
+        Map<String, double[]> keys = new HashMap<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (DownloadLink link : links) {
+                String host = link.getHost();
+                Host health = hosts.get(host);
+                keys.put(host, health == null ? new double[] {0, PRIOR_LATENCY_MILLIS}
+                    : new double[] {rank(health.state(now)), health.score(now)});
+            }
+        }
+        ordered.sort(Comparator.<DownloadLink>comparingDouble(link -> keys.get(link.getHost())[0])
+            .thenComparing(link -> !link.isRewritten())
+            .thenComparingDouble(link -> keys.get(link.getHost())[1]));
+        List<DownloadLink> usable = new ArrayList<>(ordered);
+        usable.removeIf(link -> keys.get(link.getHost())[0] == rank(State.OPEN));
+        return usable.isEmpty() ? ordered : usable;
+    }
+
+    /**
+     * Gets a description of every known host's circuit and score.
+     */
+    public synchronized Map<String, String> describe() {
+        long now = System.currentTimeMillis();
+        Map<String, String> description = new TreeMap<>();
+        hosts.forEach((host, health) -> description.put(host, String.format("%s score=%.0f errors=%.2f latency=%.0fms",
+            health.state(now), health.score(now), health.errorRate, health.latencyMillis)));
+        return description;
+    }
+
+    private static int rank(State state) {
+        switch (state) {
+            case CLOSED: return 0;
+            case HALF_OPEN: return 1;
+            default: return 2;
+        }
+    }
+
+    private Host host(String host) {
+        return hosts.computeIfAbsent(host, k -> new Host());
+    }
+
+    private void load() {
+        if (stateFile == null || !Files.isRegularFile(stateFile)) {
+            return;
+        }
+        Properties state = new Properties();
+        try (InputStream in = Files.newInputStream(stateFile)) {
+            state.load(in);
+        } catch (IOException e) {
+            System.err.println("Failed to read mirror health " + stateFile + ": " + e.getMessage());
+            return;
+        }
+        for (String name : state.stringPropertyNames()) {
+            if (!name.endsWith(".score")) {
+                continue;
+            }
+            String[] fields = state.getProperty(name).split(",");
+            try {
+                Host health = host(name.substring(0, name.length() - ".score".length()));
+                health.errorRate = Double.parseDouble(fields[0]);
+                health.latencyMillis = Double.parseDouble(fields[1]);
+                health.consecutiveFailures = Integer.parseInt(fields[2]);
+                health.openUntil = Long.parseLong(fields[3]);
+                health.openMillis = Long.parseLong(fields[4]);
+                health.updatedAt = Long.parseLong(fields[5]);
+            } catch (RuntimeException e) {
+                System.err.println("Ignoring invalid mirror health entry " + name);
+            }
+        }
+    }
+
+    /**
+     * Saves the scores at most every few seconds, or soon if a circuit
+     * changed. The file is written on the save thread, so recording a
+     * result never waits for the disk, and changes made while a save is
+     * queued go out with it.
+     */
+    private void save(boolean force) {
+        if (stateFile == null) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (!force && now - lastSave < SAVE_INTERVAL_MILLIS) {
+                return;
+            }
+            lastSave = now;
+        }
+        if (saveScheduled.compareAndSet(false, true)) {
+            SAVE_EXECUTOR.execute(this::writeState);
+        }
+    }
+
+    /**
+     * Writes the current scores. The snapshot is taken while holding the
+     * file, so whichever write comes last also has the newest state.
+     */
+    private void writeState() {
+        saveScheduled.set(false);
+        if (stateFile == null) {
+            return;
+        }
+        synchronized (fileLock) {
+            Properties state = new Properties();
+            synchronized (this) {
+                hosts.forEach((host, health) -> state.setProperty(host + ".score", health.errorRate + ","
+                    + health.latencyMillis + "," + health.consecutiveFailures + "," + health.openUntil + ","
+                    + health.openMillis + "," + health.updatedAt));
+            }
+            writeFile(state);
+        }
+    }
+
+    private void writeFile(Properties state) {
+        try {
+            Files.createDirectories(stateFile.toAbsolutePath().getParent());
+            Path temp = Files.createTempFile(stateFile.toAbsolutePath().getParent(), "mirrors", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                state.store(out, null);
+            }
+            Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save mirror health " + stateFile + ": " + e.getMessage());
+        }
+    }
+
+    private static class Host {
+        private double errorRate;
+        private double latencyMillis = -1;
+        private int consecutiveFailures;
+        private long openUntil;
+        private long openMillis;
+        private long updatedAt;
+
+        State state(long now) {
+            if (openUntil == 0) {
+                return State.CLOSED;
+            }
+            return now < openUntil ? State.OPEN : State.HALF_OPEN;
+        }
+
+        double score(long now) {
+            double latency = latencyMillis < 0 ? PRIOR_LATENCY_MILLIS : latencyMillis;
+            return latency * (1 + ERROR_PENALTY * decayedErrorRate(now));
+        }
+
+        /**
+         * Lets old errors fade, so a host that recovered while unused is tried again.
+         */
+        void decay(long now) {
+            errorRate = decayedErrorRate(now);
+            updatedAt = now;
+        }
+
+        private double decayedErrorRate(long now) {
+            if (updatedAt == 0 || now <= updatedAt) {
+                return errorRate;
+            }
+            return errorRate * Math.pow(0.5, (double) (now - updatedAt) / ERROR_HALF_LIFE_MILLIS);
+        }
+    }
+}
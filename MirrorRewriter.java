@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites manifest download URLs to an internal caching mirror. Rules come
+ * from a properties file, by default {@code ~/.chrome-downloader/rewrite.properties}
+ * or the file named by {@code chromedownloader.rewriteRules}, and are tried
+ * in name order:
+ *
+ *   corp.prefix=https://dl.google.com/
+ *   corp.target=http://mirror.example.internal/chrome/
+ *   edge.regex=https?://[^/]+\.gvt1\.com/(.*)
+ *   edge.target=http://mirror.example.internal/gvt1/$1
+ *
+ * A prefix rule replaces the prefix; a regex rule must match the whole URL
+ * and its target may use groups. Rewritten links are listed before the
+ * upstream ones, which remain as the fallback. Hits and misses of each rule
+ * are counted as {@code rewrite.<name>.hits} and {@code rewrite.<name>.misses}.
+ */
+public class MirrorRewriter {
+    private static MirrorRewriter defaultInstance;
+
+    private final List<Rule> rules;
+
+    public MirrorRewriter(List<Rule> rules) {
+        this.rules = new ArrayList<>(rules);
+    }
+
+    /**
+     * Gets the rewriter configured for this installation; without a rules
+     * file it leaves links unchanged.
+     */
+    public static synchronized MirrorRewriter getDefault() {
+        if (defaultInstance == null) {
+            String configured = System.getProperty("chromedownloader.rewriteRules");
+            Path file = configured != null ? Paths.get(configured)
+                : Paths.get(System.getProperty("user.home"), ".chrome-downloader", "rewrite.properties");
+            List<Rule> rules = new ArrayList<>();
+            if (Files.isRegularFile(file)) {
+                try {
+                    rules = load(file);
+                } catch (IOException | IllegalArgumentException e) {
+                    System.err.println("Ignoring rewrite rules " + file + ": " + e.getMessage());
+                }
+            } else if (configured != null) {
+                System.err.println("Rewrite rules not found: " + file);
+            }
+            defaultInstance = new MirrorRewriter(rules);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Reads rules from a properties file.
+     */
+    public static List<Rule> load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+
+        Set<String> names = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            int dot = key.lastIndexOf('.');
+            if (dot <= 0) {
+                throw new IllegalArgumentException("Invalid rule key: " + key);
+            }
+            names.add(key.substring(0, dot));
+        }
+
+        List<Rule> rules = new ArrayList<>();
+        for (String name : names) {
+            String prefix = properties.getProperty(name + ".prefix");
+            String regex = properties.getProperty(name + ".regex");
+            String target = properties.getProperty(name + ".target");
+            if ((prefix == null) == (regex == null) || target == null) {
+                throw new IllegalArgumentException("Rule " + name + " needs a target and either a prefix or a regex");
+            }
+            rules.add(prefix != null ? Rule.prefix(name, prefix, target) : Rule.regex(name, regex, target));
+        }
+        return rules;
+    }
+
+    public List<Rule> getRules() {
+        return new ArrayList<>(rules);
+    }
+
+    /**
+     * Gets the links with each link's rewritten form, if a rule matches it,
+     * listed first. Several upstream URLs that map to the same mirror URL
+     * give one rewritten link.
+     */
+    public List<DownloadLink> apply(List<DownloadLink> links) {
+        if (rules.isEmpty()) {
+            return links;
+        }
+        Set<String> seen = new LinkedHashSet<>();
+        List<DownloadLink> rewritten = new ArrayList<>();
+        for (DownloadLink link : links) {
+            for (Rule rule : rules) {
+                String url = rule.rewrite(link.getUrl());
+                if (url != null) {
+                    if (seen.add(url)) {
+                        rewritten.add(link.rewrite(url, rule.getName()));
+                    }
+                    break;
+                }
+            }
+        }
+        rewritten.addAll(links);
+        return rewritten;
+    }
+
+    /**
+     * Gets the URLs with their rewritten forms listed first, for callers
+     * that already try a list of URLs in order.
+     */
+    public List<String> applyUrls(List<String> urls) {
+        if (rules.isEmpty()) {
+            return urls;
+        }
+        Set<String> ordered = new LinkedHashSet<>();
+        for (String url : urls) {
+            for (Rule rule : rules) {
+                String rewritten = rule.rewrite(url);
+                if (rewritten != null) {
+                    ordered.add(rewritten);
+                    break;
+                }
+            }
+        }
+        ordered.addAll(urls);
+        return new ArrayList<>(ordered);
+    }
+
+    public void recordHit(String rule) {
+        EngineMetrics.get().increment("rewrite." + rule + ".hits");
+    }
+
+    public void recordMiss(String rule) {
+        EngineMetrics.get().increment("rewrite." + rule + ".misses");
+    }
+
+    /**
+     * One rewrite rule.
+     */
+    public static class Rule {
+        private final String name;
+        private final String prefix;
+        private final Pattern regex;
+        private final String target;
+
+        private Rule(String name, String prefix, Pattern regex, String target) {
+            if (name == null || !name.matches("[A-Za-z0-9_-]+")) {
+                throw new IllegalArgumentException("Invalid rule name: " + name);
+            }
+            if (!target.startsWith("http://") && !target.startsWith("https://")) {
+                throw new IllegalArgumentException("Rule " + name + " target must be an http(s) URL: " + target);
+            }
+            this.name = name;
+            this.prefix = prefix;
+            this.regex = regex;
+            this.target = target;
+        }
+
+        public static Rule prefix(String name, String prefix, String target) {
+            return new Rule(name, prefix, null, target);
+        }
+
+        public static Rule regex(String name, String regex, String target) {
+            return new Rule(name, null, Pattern.compile(regex), target);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the rewritten URL, or null if the rule does not match.
+         */
+        public String rewrite(String url) {
+            if (prefix != null) {
+                return url.startsWith(prefix) ? target + url.substring(prefix.length()) : null;
+            }
+            Matcher matcher = regex.matcher(url);
+            return matcher.matches() ? matcher.replaceFirst(target) : null;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + (prefix != null ? prefix : regex.pattern()) + " -> " + target;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A daily time window such as "01:00-06:00" in local time. A window whose
+ * end is before its start wraps around midnight.
+ */
+public class OffPeakWindow {
+    private final LocalTime start;
+    private final LocalTime end;
+
+    public OffPeakWindow(LocalTime start, LocalTime end) {
+        if (start == null || end == null) {
+            throw new IllegalArgumentException("Window start and end cannot be null");
+        }
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses "HH:mm-HH:mm". Null, an empty string or "always" means a window
+     * that is always open.
+     */
+    public static OffPeakWindow parse(String spec) {
+        if (spec == null || spec.trim().isEmpty() || spec.trim().equalsIgnoreCase("always")) {
+            return always();
+        }
+
+        String[] parts = spec.trim().split("-");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid off-peak window: " + spec);
+        }
+        try {
+            return new OffPeakWindow(LocalTime.parse(parts[0].trim()), LocalTime.parse(parts[1].trim()));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid off-peak window: " + spec, e);
+        }
+    }
+
+    public static OffPeakWindow always() {
+        return new OffPeakWindow(LocalTime.MIDNIGHT, LocalTime.MIDNIGHT);
+    }
+
+    public boolean isOpen() {
+        return contains(LocalTime.now());
+    }
+
+    public boolean contains(LocalTime time) {
+        if (start.equals(end)) {
+            return true;
+        }
+        if (start.isBefore(end)) {
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+        return !time.isBefore(start) || time.isBefore(end);
+    }
+
+    @Override
+    public String toString() {
+        return start.equals(end) ? "always" : start + "-" + end;
+    }
+}
@@ -0,0 +1,15 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Reconstructs a build from a prior build and a differential patch.
+ * Chrome's patches use the Courgette and Zucchini formats, which the JDK
+ * cannot decode, so implementations delegate to an external tool.
+ */
+public interface PatchApplier {
+
+    /**
+     * Writes the patched build to {@code output}.
+     */
+    void apply(Path base, Path patch, Path output) throws IOException;
+}
@@ -0,0 +1,41 @@
+import java.io.File;
+
+/**
+ * The first bytes of a download, buffered to a temporary file before the
+ * user confirmed the download. The validator (ETag or Last-Modified) is sent
+ * back as If-Range so the remainder is only appended if the file is unchanged.
+ */
+public class PrefetchedSegment {
+    private final String url;
+    private final File file;
+    private final long length;
+    private final long totalSize;
+    private final String validator;
+
+    public PrefetchedSegment(String url, File file, long length, long totalSize, String validator) {
+        this.url = url;
+        this.file = file;
+        this.length = length;
+        this.totalSize = totalSize;
+        this.validator = validator;
+    }
+
+    public String getUrl() { return url; }
+    public File getFile() { return file; }
+    public long getLength() { return length; }
+    public long getTotalSize() { return totalSize; }
+    public String getValidator() { return validator; }
+
+    /**
+     * Checks whether the buffered bytes are the whole file.
+     */
+    public boolean isComplete() {
+        return totalSize > 0 && length >= totalSize;
+    }
+
+    public void delete() {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of interchangeable egress proxies. Each proxy is health-checked
+ * periodically for connect latency and throughput, and real transfers feed
+ * the same statistics. Requests go to the best proxy or are spread across
+ * healthy proxies per segment; failing proxies are ejected with backoff.
+ */
+public class ProxyPool {
+    private static final long CHECK_INTERVAL_SECONDS = 60;
+    private static final int THROUGHPUT_CHECK_EVERY = 5;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long BASE_EJECTION_MILLIS = 60 * 1000;
+    private static final long MAX_EJECTION_MILLIS = 10 * 60 * 1000;
+    private static final long THROUGHPUT_PROBE_BYTES = 64 * 1024;
+    private static final double EWMA_WEIGHT = 0.3;
+
+    /** System property naming the file whose first bytes measure throughput; empty turns it off. */
+    public static final String PROBE_URL_PROPERTY = "chromedownloader.proxyProbeUrl";
+    static final String DEFAULT_PROBE_URL = "https://dl.google.com/chrome/install/latest/chrome_installer.exe";
+
+    private final List<Endpoint> endpoints;
+    private final boolean spreadSegments;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private volatile String probeUrl = DEFAULT_PROBE_URL;
+    private ScheduledExecutorService scheduler;
+    private int checkRound;
+
+    public ProxyPool(List<ProxySettings> proxies, boolean spreadSegments) {
+        if (proxies == null || proxies.isEmpty()) {
+            throw new IllegalArgumentException("Proxy pool cannot be empty");
+        }
+
+        List<Endpoint> list = new ArrayList<>();
+        for (ProxySettings proxy : proxies) {
+            list.add(new Endpoint(proxy));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.spreadSegments = spreadSegments;
+        try {
+            setProbeUrl(System.getProperty(PROBE_URL_PROPERTY, DEFAULT_PROBE_URL));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + ", using " + DEFAULT_PROBE_URL);
+        }
+    }
+
+    /**
+     * Parses a pool from text with one proxy per line (see {@link ProxySettings#parse}).
+     * Blank lines and lines starting with '#' are ignored.
+     */
+    public static ProxyPool parse(String text, boolean spreadSegments) {
+        List<ProxySettings> proxies = new ArrayList<>();
+        for (String line : text.split("\\R")) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                proxies.add(ProxySettings.parse(trimmed));
+            }
+        }
+        return new ProxyPool(proxies, spreadSegments);
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public boolean isSpreadSegments() {
+        return spreadSegments;
+    }
+
+    /**
+     * Sets the URL whose first 64 KB are fetched through each proxy to
+     * measure its throughput. Null or empty skips the measurement.
+     */
+    public void setProbeUrl(String probeUrl) {
+        String url = probeUrl != null ? probeUrl.trim() : "";
+        if (!url.isEmpty() && !url.startsWith("https://") && !url.startsWith("http://")) {
+            throw new IllegalArgumentException("Probe URL must be an http or https URL: " + url);
+        }
+        this.probeUrl = url;
+    }
+
+    public String getProbeUrl() {
+        return probeUrl;
+    }
+
+    /**
+     * Starts the periodic health checks. The first check runs immediately.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "proxy-pool-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkAll, 0, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Selects the best-performing available proxy.
+     */
+    public ProxySettings select() {
+        List<Endpoint> available = getAvailable();
+        return available.get(0).proxy;
+    }
+
+    /**
+     * Selects the proxy for a transfer segment: the best proxy, or the next
+     * available proxy in turn when spreading segments across the pool.
+     */
+    public ProxySettings selectForSegment(int segmentIndex) {
+        if (!spreadSegments) {
+            return select();
+        }
+        List<Endpoint> available = getAvailable();
+        int index = Math.floorMod(roundRobin.getAndIncrement(), available.size());
+        return available.get(index).proxy;
+    }
+
+    /**
+     * Records a completed transfer through a proxy.
+     */
+    public void recordTransfer(ProxySettings proxy, long bytes, long nanos) {
+        Endpoint endpoint = find(proxy);
+        if (endpoint != null && bytes > 0 && nanos > 0) {
+            endpoint.recordThroughput(bytes * 1_000_000_000.0 / nanos);
+            endpoint.recordSuccess();
+        }
+    }
+
+    /**
+     * Records a failed request through a proxy; repeated failures eject it.
+     */
+    public void recordFailure(ProxySettings proxy) {
+        Endpoint endpoint = find(proxy);
+        if (endpoint != null) {
+            endpoint.recordFailure();
+        }
+    }
+
+    /**
+     * Gets non-ejected endpoints ordered best first. If every proxy is
+     * ejected, the one coming back soonest is still returned.
+     */
+    private List<Endpoint> getAvailable() {
+        long now = System.currentTimeMillis();
+        List<Endpoint> available = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.isEjected(now)) {
+                available.add(endpoint);
+            }
+        }
+        if (available.isEmpty()) {
+            Endpoint soonest = Collections.min(endpoints, Comparator.comparingLong(e -> e.ejectedUntil));
+            return Collections.singletonList(soonest);
+        }
+        available.sort(Comparator.comparingDouble(Endpoint::getScore).reversed());
+        return available;
+    }
+
+    private Endpoint find(ProxySettings proxy) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.proxy.equals(proxy)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private void checkAll() {
+        boolean checkThroughput = checkRound++ % THROUGHPUT_CHECK_EVERY == 0;
+        for (Endpoint endpoint : endpoints) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            checkEndpoint(endpoint, checkThroughput);
+        }
+    }
+
+    private void checkEndpoint(Endpoint endpoint, boolean checkThroughput) {
+        ProxySettings proxy = endpoint.proxy;
+        try {
+            if (proxy.isUseProxy()) {
+                long start = System.nanoTime();
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(proxy.getProxyHost(), proxy.getProxyPort()),
+                        CONNECT_TIMEOUT_MILLIS);
+                }
+                endpoint.recordLatency((System.nanoTime() - start) / 1_000_000.0);
+            }
+            if (checkThroughput && !probeUrl.isEmpty()) {
+                measureThroughput(endpoint);
+            }
+            endpoint.recordSuccess();
+        } catch (Exception e) {
+            System.err.println("Proxy health check failed for " + proxy + ": " + e.getMessage());
+            endpoint.recordFailure();
+        }
+    }
+
+    private void measureThroughput(Endpoint endpoint) throws Exception {
+        HttpURLConnection connection = endpoint.proxy.openConnection(new URI(probeUrl));
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(CONNECT_TIMEOUT_MILLIS * 2);
+        connection.setRequestProperty("Range", "bytes=0-" + (THROUGHPUT_PROBE_BYTES - 1));
+        try {
+            long start = System.nanoTime();
+            long total = 0;
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[16 * 1024];
+                int bytesRead;
+                while (total < THROUGHPUT_PROBE_BYTES && (bytesRead = in.read(buffer)) != -1) {
+                    total += bytesRead;
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            if (total > 0 && nanos > 0) {
+                endpoint.recordThroughput(total * 1_000_000_000.0 / nanos);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * A proxy in the pool together with its health statistics.
+     */
+    public static class Endpoint {
+        private final ProxySettings proxy;
+        private double latencyMillis = -1;
+        private double bytesPerSecond = -1;
+        private int consecutiveFailures;
+        private int ejections;
+        private volatile long ejectedUntil;
+
+        Endpoint(ProxySettings proxy) {
+            this.proxy = proxy;
+        }
+
+        public ProxySettings getProxy() { return proxy; }
+        public synchronized double getLatencyMillis() { return latencyMillis; }
+        public synchronized double getBytesPerSecond() { return bytesPerSecond; }
+
+        public boolean isEjected(long now) {
+            return ejectedUntil > now;
+        }
+
+        /**
+         * Higher is better: measured throughput discounted by connect latency.
+         * Unmeasured proxies score neutrally so they still get traffic.
+         */
+        synchronized double getScore() {
+            double throughput = bytesPerSecond > 0 ? bytesPerSecond : 1024 * 1024;
+            double latency = latencyMillis >= 0 ? latencyMillis : 100;
+            return throughput / (1.0 + latency / 100.0);
+        }
+
+        synchronized void recordLatency(double millis) {
+            latencyMillis = latencyMillis < 0 ? millis : EWMA_WEIGHT * millis + (1 - EWMA_WEIGHT) * latencyMillis;
+        }
+
+        synchronized void recordThroughput(double value) {
+            bytesPerSecond = bytesPerSecond < 0 ? value : EWMA_WEIGHT * value + (1 - EWMA_WEIGHT) * bytesPerSecond;
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            ejections = 0;
+            ejectedUntil = 0;
+        }
+
+        synchronized void recordFailure() {
+            consecutiveFailures++;
+            if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                long backoff = Math.min(MAX_EJECTION_MILLIS, BASE_EJECTION_MILLIS << Math.min(ejections, 4));
+                ejectedUntil = System.currentTimeMillis() + backoff;
+                ejections++;
+                consecutiveFailures = 0;
+                System.err.println("Ejected proxy " + proxy + " for " + backoff / 1000 + " s");
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.RadioButton;
 import javafx.scene.control.TextField;
 import javafx.scene.control.PasswordField;
@@ -11,15 +12,21 @@ public class ProxyToggleChangeListener implements ChangeListener<Toggle> {
     private final TextField proxyPortField;
     private final TextField proxyUserField;
     private final PasswordField proxyPassField;
+    private final RadioButton proxyPoolRadio;
+    private final CheckBox spreadSegmentsCheckBox;
     
     public ProxyToggleChangeListener(RadioButton noProxyRadio, TextField proxyHostField,
                                     TextField proxyPortField, TextField proxyUserField,
-                                    PasswordField proxyPassField) {
+                                    PasswordField proxyPassField, RadioButton proxyPoolRadio,
+                                    CheckBox spreadSegmentsCheckBox) {
         if (noProxyRadio == null || proxyHostField == null || proxyPortField == null || 
-            proxyUserField == null || proxyPassField == null) {
+            proxyUserField == null || proxyPassField == null || proxyPoolRadio == null ||
+            spreadSegmentsCheckBox == null) {
             throw new IllegalArgumentException("All parameters must not be null");
         }
         
+        this.proxyPoolRadio = proxyPoolRadio;
+        this.spreadSegmentsCheckBox = spreadSegmentsCheckBox;
         this.noProxyRadio = noProxyRadio;
         this.proxyHostField = proxyHostField;
         this.proxyPortField = proxyPortField;
@@ -31,7 +38,9 @@ public class ProxyToggleChangeListener implements ChangeListener<Toggle> {
     public void changed(ObservableValue<? extends Toggle> obs, 
                        Toggle oldVal, 
                        Toggle newVal) {
-        boolean useProxy = newVal != noProxyRadio;
+        boolean usePool = newVal == proxyPoolRadio;
+        boolean useProxy = newVal != noProxyRadio && !usePool;
+        spreadSegmentsCheckBox.setDisable(!usePool);
         proxyHostField.setDisable(!useProxy);
         proxyPortField.setDisable(!useProxy);
         proxyUserField.setDisable(!useProxy);
@@ -0,0 +1,94 @@
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent response latencies per route (proxy plus service host), from which
+ * update checks derive their hedge delay and timeouts instead of fixed
+ * constants. Until a route has enough samples the defaults apply.
+ */
+public class RouteLatencies {
+    static final int MIN_SAMPLES = 8;
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    static final long DEFAULT_HEDGE_DELAY_MILLIS = 2000;
+
+    private static final int WINDOW_SIZE = 64;
+    private static final double HEDGE_PERCENTILE = 95;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 200;
+    private static final long MAX_HEDGE_DELAY_MILLIS = 10000;
+    private static final int MIN_CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int MIN_READ_TIMEOUT_MILLIS = 3000;
+
+    private static final RouteLatencies DEFAULT = new RouteLatencies();
+
+    private final Map<String, LatencyStats> routes = new ConcurrentHashMap<>();
+
+    public static RouteLatencies getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets the route key of a URI reached through a proxy, without credentials.
+     */
+    public static String routeOf(ProxySettings proxySettings, URI uri) {
+        String via = proxySettings != null && proxySettings.isUseProxy()
+            ? proxySettings.getProxyType().name().toLowerCase() + "://" + proxySettings.getProxyHost()
+                + ":" + proxySettings.getProxyPort()
+            : "direct";
+        return via + " -> " + uri.getHost() + (uri.getPort() > 0 ? ":" + uri.getPort() : "");
+    }
+
+    public void record(String route, double millis) {
+        routes.computeIfAbsent(route, k -> new LatencyStats(WINDOW_SIZE)).record(millis);
+    }
+
+    /**
+     * Gets how long to wait for a response before sending a duplicate: the
+     * 95th percentile of the route's recent latencies.
+     */
+    public long getHedgeDelayMillis(String route) {
+        double p95 = percentile(route, HEDGE_PERCENTILE);
+        if (p95 < 0) {
+            return DEFAULT_HEDGE_DELAY_MILLIS;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(MAX_HEDGE_DELAY_MILLIS, Math.round(p95)));
+    }
+
+    /**
+     * Gets a connect timeout of twice the route's 99th percentile latency,
+     * never above the default.
+     */
+    public int getConnectTimeoutMillis(String route) {
+        return timeout(route, 2, MIN_CONNECT_TIMEOUT_MILLIS, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Gets a read timeout of four times the route's 99th percentile latency,
+     * never above the default.
+     */
+    public int getReadTimeoutMillis(String route) {
+        return timeout(route, 4, MIN_READ_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Gets the latencies of every route seen so far.
+     */
+    public Map<String, LatencyStats> getRoutes() {
+        return new TreeMap<>(routes);
+    }
+
+    private int timeout(String route, int multiplier, int min, int max) {
+        double p99 = percentile(route, 99);
+        if (p99 < 0) {
+            return max;
+        }
+        return (int) Math.max(min, Math.min(max, Math.round(p99 * multiplier)));
+    }
+
+    private double percentile(String route, double percentile) {
+        LatencyStats stats = routes.get(route);
+        return stats != null && stats.getCount() >= MIN_SAMPLES ? stats.percentile(percentile) : -1;
+    }
+}
@@ -0,0 +1,667 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Downloads byte ranges of one file over several parallel connections,
+ * writing each range at its offset in the output file. A connection that
+ * finishes its range early takes over half of the largest remaining one,
+ * and the number of connections follows the marginal throughput gain of
+ * the last one added, within a per-host cap shared by all downloads. Each
+ * segment can go through a different proxy of a {@link ProxyPool}, and a
+ * failed segment is resumed from where it stopped on another proxy. With an
+ * {@link InterfacePool} the segments are also bound to local addresses in
+ * turn and sized by each address's measured throughput. Has no JavaFX
+ * dependency.
+ */
+public class SegmentedDownload {
+    static final long MIN_SEGMENT_BYTES = 4L * 1024 * 1024;
+    static final int DEFAULT_SEGMENTS = 4;
+
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+    private static final long MIN_STEAL_BYTES = 2L * 1024 * 1024;
+    private static final long ADAPT_INTERVAL_MILLIS = 1000;
+    private static final double MIN_MARGINAL_GAIN = 0.05;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+    private final String url;
+    private final FileChannel channel;
+    private final ProxySettings proxySettings;
+    private final ProxyPool proxyPool;
+    private final String validator;
+    private final BooleanSupplier cancelled;
+    private final SocketHttpClient httpClient = new SocketHttpClient(30000, 30000);
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final Object adaptLock = new Object();
+    private final String host;
+    private int targetWorkers;
+    private int nextWorkerIndex;
+    private int maxConnectionsPerHost = Integer.getInteger("chromedownloader.maxConnectionsPerHost",
+        DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    private volatile boolean aborted;
+    private ChunkManifest chunks;
+    private InterfacePool interfacePool;
+    private String channelName;
+    private TeeWriter tee;
+
+    public SegmentedDownload(String url, FileChannel channel, ProxySettings proxySettings,
+                             ProxyPool proxyPool, String validator, BooleanSupplier cancelled) {
+        this.url = url;
+        this.channel = channel;
+        this.proxySettings = proxySettings != null ? proxySettings : new ProxySettings();
+        this.proxyPool = proxyPool;
+        this.validator = validator;
+        this.cancelled = cancelled != null ? cancelled : () -> false;
+        this.host = HostPermits.hostOf(url);
+    }
+
+    /**
+     * Gets how many segments a range of the given length is worth splitting into.
+     */
+    public static int segmentCount(long length) {
+        return (int) Math.max(1, Math.min(DEFAULT_SEGMENTS, length / MIN_SEGMENT_BYTES));
+    }
+
+    /**
+     * Splits [start, end) into contiguous ranges of roughly equal size.
+     */
+    public static List<long[]> split(long start, long end, int segments) {
+        List<long[]> ranges = new ArrayList<>();
+        long length = end - start;
+        long size = length / segments;
+        long position = start;
+        for (int i = 0; i < segments; i++) {
+            long rangeEnd = i == segments - 1 ? end : position + size;
+            ranges.add(new long[] {position, rangeEnd});
+            position = rangeEnd;
+        }
+        return ranges;
+    }
+
+    /**
+     * Hashes the written bytes into a chunk manifest. Must be called before {@link #run}.
+     */
+    public void setChunkManifest(ChunkManifest chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Splits [start, end) into contiguous ranges sized in proportion to the weights.
+     */
+    public static List<long[]> split(long start, long end, double[] weights) {
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        long length = end - start;
+        double cumulative = 0;
+        long position = start;
+        for (int i = 0; i < weights.length; i++) {
+            cumulative += weights[i];
+            long rangeEnd = i == weights.length - 1 ? end : start + (long) (length * (cumulative / total));
+            ranges.add(new long[] {position, Math.max(position, rangeEnd)});
+            position = Math.max(position, rangeEnd);
+        }
+        return ranges;
+    }
+
+    /**
+     * Moves the boundaries between ranges up to chunk boundaries, so every
+     * chunk is written from its first byte by one segment and gets a hash.
+     */
+    static void alignToChunks(List<long[]> ranges, int chunkSize) {
+        long end = ranges.get(ranges.size() - 1)[1];
+        for (int i = 1; i < ranges.size(); i++) {
+            long boundary = ranges.get(i)[0];
+            long aligned = Math.min(end, Math.max(ranges.get(i - 1)[0],
+                (boundary + chunkSize - 1) / chunkSize * chunkSize));
+            ranges.get(i - 1)[1] = aligned;
+            ranges.get(i)[0] = aligned;
+        }
+    }
+
+    /**
+     * Binds segment connections to the pool's local addresses. The first
+     * segment's connection, opened by the caller, should leave through
+     * {@code interfacePool.forSegment(0)}. Must be called before {@link #run}.
+     */
+    public void setInterfacePool(InterfacePool interfacePool) {
+        this.interfacePool = interfacePool;
+    }
+
+    /**
+     * Sets the channel recorded with this download's flight recorder events.
+     */
+    public void setChannel(String channelName) {
+        this.channelName = channelName;
+    }
+
+    /**
+     * Also passes every written buffer to the tee's destinations.
+     */
+    public void setTee(TeeWriter tee) {
+        this.tee = tee;
+    }
+
+    /**
+     * Sets how many connections all downloads together may open to the
+     * host of this one. Defaults to the system property
+     * {@code chromedownloader.maxConnectionsPerHost}, or 8.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Connection cap must be at least 1");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Gets the end of the contiguous range written from the start of the
+     * run, i.e. the position up to which the file can already be read.
+     */
+    public long getCommittedPosition() {
+        List<Segment> current = new ArrayList<>(segments);
+        if (current.isEmpty()) {
+            return -1;
+        }
+        current.sort(Comparator.comparingLong(segment -> segment.start));
+        long committed = current.get(0).start;
+        for (Segment segment : current) {
+            if (segment.start > committed) {
+                break;
+            }
+            synchronized (segment) {
+                committed = Math.max(committed, segment.position);
+                if (segment.position < segment.end) {
+                    break;
+                }
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Gets the number of connections currently transferring.
+     */
+    public int getActiveConnections() {
+        return activeWorkers.get();
+    }
+
+    /**
+     * Gets how many times a failed segment was retried.
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Downloads [start, end) in parallel segments. The already opened
+     * connection, whose 206 response starts at {@code start}, serves the
+     * first segment. Workers that finish early take over half of the
+     * largest remaining range, and connections are added while they raise
+     * the throughput, up to the per-host cap. Blocks until done, reporting
+     * the bytes written so far.
+     */
+    public void run(SocketHttpClient.Response firstConnection, long start, long end, int segmentCount,
+                    LongConsumer progress) throws IOException, InterruptedException {
+        if (interfacePool != null) {
+            // At least one segment per uplink, as long as segments stay worth opening
+            segmentCount = (int) Math.max(segmentCount, Math.min(interfacePool.size(), (end - start) / MIN_SEGMENT_BYTES));
+        }
+        // The caller's connection is already open, so it holds a permit regardless of the cap
+        HostPermits.acquire(host);
+        int workers = 1;
+        while (workers < segmentCount && HostPermits.tryAcquire(host, maxConnectionsPerHost)) {
+            workers++;
+        }
+
+        List<long[]> ranges = interfacePool != null
+            ? split(start, end, interfacePool.segmentWeights(workers))
+            : split(start, end, workers);
+        if (chunks != null) {
+            alignToChunks(ranges, chunks.getChunkSize());
+        }
+        for (long[] range : ranges) {
+            segments.add(new Segment(range[0], range[1]));
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "download-segment");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        activeWorkers.set(workers);
+        targetWorkers = workers;
+        int running = 0;
+        try {
+            for (int i = 0; i < workers; i++) {
+                startWorker(completion, i, segments.get(i), i == 0 ? firstConnection : null);
+                running++;
+            }
+
+            Adaptation adaptation = new Adaptation();
+            while (running > 0) {
+                Future<Void> done = completion.poll(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    running--;
+                    try {
+                        done.get();
+                    } catch (ExecutionException e) {
+                        aborted = true;
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) throw (IOException) cause;
+                        throw new IOException(cause);
+                    }
+                    continue;
+                }
+                if (progress != null) {
+                    progress.accept(bytesWritten.get());
+                }
+                if (adaptation.isDue() && !cancelled.getAsBoolean() && adaptation.shouldGrow()) {
+                    Segment stolen = tryGrow();
+                    if (stolen != null) {
+                        startWorker(completion, nextWorkerIndex++, stolen, null);
+                        running++;
+                        adaptation.grew();
+                    }
+                }
+            }
+            if (progress != null) {
+                progress.accept(bytesWritten.get());
+            }
+        } finally {
+            aborted = true;
+            executor.shutdownNow();
+        }
+    }
+
+    private void startWorker(ExecutorCompletionService<Void> completion, int index, Segment first,
+                             SocketHttpClient.Response initial) {
+        nextWorkerIndex = Math.max(nextWorkerIndex, index + 1);
+        completion.submit(() -> {
+            try {
+                work(index, first, initial);
+            } finally {
+                HostPermits.release(host);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Downloads the worker's segment, then keeps stealing work until none
+     * is left or the connection count is being reduced.
+     */
+    private void work(int index, Segment first, SocketHttpClient.Response initial) throws IOException {
+        Segment segment = first;
+        SocketHttpClient.Response connection = initial;
+        boolean retired = false;
+        try {
+            while (segment != null) {
+                downloadSegment(index, segment, connection);
+                connection = null;
+                if (cancelled.getAsBoolean() || aborted) {
+                    return;
+                }
+                if (retire()) {
+                    retired = true;
+                    return;
+                }
+                segment = steal();
+                if (segment != null) {
+                    EngineMetrics.get().increment(EngineMetrics.SEGMENT_STEALS);
+                }
+            }
+        } finally {
+            if (!retired) {
+                activeWorkers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Lets a worker that finished its range leave if there are more workers than wanted.
+     */
+    private boolean retire() {
+        synchronized (adaptLock) {
+            if (activeWorkers.get() > targetWorkers) {
+                activeWorkers.decrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a connection if the host cap allows it and there is a range
+     * large enough to split. Returns the range for the new worker.
+     */
+    private Segment tryGrow() {
+        if (!HostPermits.tryAcquire(host, maxConnectionsPerHost)) {
+            return null;
+        }
+        Segment stolen = steal();
+        if (stolen == null) {
+            HostPermits.release(host);
+            return null;
+        }
+        synchronized (adaptLock) {
+            activeWorkers.incrementAndGet();
+            targetWorkers++;
+        }
+        return stolen;
+    }
+
+    /**
+     * Takes over the second half of the largest remaining range. Returns
+     * null if no range is worth splitting.
+     */
+    private Segment steal() {
+        synchronized (segments) {
+            Segment victim = null;
+            long largest = 0;
+            for (Segment segment : segments) {
+                long remaining = segment.remaining();
+                if (remaining > largest) {
+                    largest = remaining;
+                    victim = segment;
+                }
+            }
+            if (victim == null || largest < MIN_STEAL_BYTES) {
+                return null;
+            }
+
+            synchronized (victim) {
+                long middle = victim.position + (victim.end - victim.position) / 2;
+                if (chunks != null) {
+                    middle = (middle + chunks.getChunkSize() - 1) / chunks.getChunkSize() * chunks.getChunkSize();
+                }
+                if (middle <= victim.position || middle >= victim.end) {
+                    return null;
+                }
+                Segment stolen = new Segment(middle, victim.end);
+                victim.end = middle;
+                segments.add(stolen);
+                return stolen;
+            }
+        }
+    }
+
+    private void downloadSegment(int index, Segment segment, SocketHttpClient.Response initial) throws IOException {
+        long position = segment.start;
+        int attempts = 0;
+        SocketHttpClient.Response connection = initial;
+        ProxySettings proxy = initial != null ? proxySettings : selectProxy(index);
+        InterfacePool.Uplink uplink = interfacePool != null ? interfacePool.forSegment(index) : null;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        ChunkManifest.Tracker tracker = chunks != null ? chunks.track(segment.start) : null;
+
+        while (position < segment.getEnd()) {
+            long transferStart = System.nanoTime();
+            long transferred = 0;
+            EngineEvents.SegmentTransfer transfer = new EngineEvents.SegmentTransfer();
+            transfer.begin();
+            transfer.start = position;
+            try {
+                if (connection == null) {
+                    connection = openRange(proxy, uplink, position, segment.getEnd());
+                }
+
+                try (InputStream in = connection.getInputStream();
+                     ReadableByteChannel rbc = Channels.newChannel(in)) {
+                    while (true) {
+                        if (cancelled.getAsBoolean() || aborted) {
+                            return;
+                        }
+                        long end = segment.getEnd();
+                        if (position >= end) {
+                            break;
+                        }
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                        int bytesRead = rbc.read(buffer);
+                        if (bytesRead == -1) {
+                            throw new IOException("Connection closed early at byte " + position);
+                        }
+                        buffer.flip();
+
+                        // The end may have moved down while reading, if another worker took over the rest
+                        int written;
+                        synchronized (segment) {
+                            long allowed = segment.end - position;
+                            if (allowed <= 0) {
+                                break;
+                            }
+                            if (buffer.remaining() > allowed) {
+                                buffer.limit(buffer.position() + (int) allowed);
+                            }
+                            written = buffer.remaining();
+                            // Hash only what reached the file, so a failed write leaves the chunk unhashed
+                            ByteBuffer data = buffer.duplicate();
+                            EngineEvents.DiskFlush flush = new EngineEvents.DiskFlush();
+                            flush.begin();
+                            flush.position = position;
+                            if (tee != null) {
+                                tee.write(position, buffer);
+                            }
+                            while (buffer.hasRemaining()) {
+                                position += channel.write(buffer, position);
+                            }
+                            if (tracker != null) {
+                                tracker.update(data);
+                            }
+                            flush.end();
+                            if (flush.shouldCommit()) {
+                                flush.channel = channelName;
+                                flush.host = host;
+                                flush.bytes = written;
+                                flush.commit();
+                            }
+                            segment.position = position;
+                        }
+                        transferred += written;
+                        bytesWritten.addAndGet(written);
+                    }
+                }
+
+                if (proxyPool != null) {
+                    proxyPool.recordTransfer(proxy, transferred, System.nanoTime() - transferStart);
+                }
+                if (uplink != null) {
+                    uplink.recordTransfer(transferred, System.nanoTime() - transferStart);
+                }
+            } catch (IOException e) {
+                if (cancelled.getAsBoolean() || aborted) {
+                    return;
+                }
+                attempts++;
+                if (proxyPool != null) {
+                    proxyPool.recordFailure(proxy);
+                }
+                if (attempts >= MAX_SEGMENT_ATTEMPTS) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                EngineMetrics.get().increment(EngineMetrics.SEGMENT_RETRIES);
+                System.err.println("Segment " + index + " failed at byte " + position + ", retrying: " + e.getMessage());
+                proxy = selectProxy(index);
+                if (uplink != null) {
+                    uplink = interfacePool.next(uplink);
+                }
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                    connection = null;
+                }
+                transfer.end();
+                if (transfer.shouldCommit()) {
+                    transfer.channel = channelName;
+                    transfer.host = host;
+                    transfer.proxyType = EngineEvents.proxyType(proxy);
+                    transfer.uplink = uplink != null ? uplink.toString() : null;
+                    transfer.segment = index;
+                    transfer.bytes = transferred;
+                    transfer.commit();
+                }
+            }
+        }
+    }
+
+    private ProxySettings selectProxy(int index) {
+        return proxyPool != null ? proxyPool.selectForSegment(index) : proxySettings;
+    }
+
+    /**
+     * Opens a request for [start, end) and checks the server honours it.
+     */
+    private SocketHttpClient.Response openRange(ProxySettings proxy, InterfacePool.Uplink uplink,
+                                                long start, long end) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
+        headers.put("Range", "bytes=" + start + "-" + (end - 1));
+        if (validator != null) {
+            headers.put("If-Range", validator);
+        }
+        SocketHttpClient client = uplink != null ? uplink.getHttpClient() : httpClient;
+        SocketHttpClient.Response connection = client.get(url, headers, proxy);
+
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            String errorMsg = connection.getResponseMessage();
+            connection.disconnect();
+            throw new IOException(I18n.format("error.http", responseCode, errorMsg));
+        }
+        if (parseContentRangeStart(connection.getHeaderField("Content-Range")) != start) {
+            connection.disconnect();
+            throw new IOException("Unexpected Content-Range: " + connection.getHeaderField("Content-Range"));
+        }
+        return connection;
+    }
+
+    /**
+     * A range [start, end) of the file and how far it is written. The end
+     * moves down when another worker takes over the rest of the range.
+     */
+    private static final class Segment {
+        private final long start;
+        private long position;
+        private long end;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.position = start;
+            this.end = end;
+        }
+
+        synchronized long getEnd() {
+            return end;
+        }
+
+        synchronized long remaining() {
+            return end - position;
+        }
+    }
+
+    /**
+     * Hill climbing on the connection count: every interval, if the last
+     * added connection raised the throughput by less than the minimum
+     * gain, one connection is given up and growth pauses for a while;
+     * otherwise another one is tried.
+     */
+    private final class Adaptation {
+        private long lastCheck = System.currentTimeMillis();
+        private long lastBytes;
+        private double lastRate = -1;
+        private boolean justGrew;
+        private long holdUntil;
+
+        Adaptation() {
+            // Let the initial connections ramp up before measuring
+            this.holdUntil = lastCheck + ADAPT_INTERVAL_MILLIS;
+        }
+
+        boolean isDue() {
+            return System.currentTimeMillis() - lastCheck >= ADAPT_INTERVAL_MILLIS;
+        }
+
+        /**
+         * Measures the last interval and decides whether to add a connection.
+         */
+        boolean shouldGrow() {
+            long now = System.currentTimeMillis();
+            long bytes = bytesWritten.get();
+            double rate = (bytes - lastBytes) * 1000.0 / Math.max(1, now - lastCheck);
+            boolean grow = false;
+
+            if (justGrew && lastRate > 0 && rate < lastRate * (1 + MIN_MARGINAL_GAIN)) {
+                synchronized (adaptLock) {
+                    if (targetWorkers > 1) {
+                        targetWorkers--;
+                    }
+                }
+                holdUntil = now + 5 * ADAPT_INTERVAL_MILLIS;
+            } else if (now >= holdUntil) {
+                grow = true;
+            }
+
+            justGrew = false;
+            lastCheck = now;
+            lastBytes = bytes;
+            lastRate = rate;
+            return grow;
+        }
+
+        void grew() {
+            justGrew = true;
+        }
+    }
+
+    /**
+     * Parses the first byte position from a "bytes start-end/total" header.
+     */
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
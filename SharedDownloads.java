@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Makes concurrent downloads of the same file share one transfer. The
+ * first caller for a (URL, SHA-256) pair downloads to its own output;
+ * callers arriving meanwhile receive its progress and, when it finishes,
+ * a copy of the file. The leader holds on to its file until every
+ * follower has copied it or stopped waiting. A cancelled leader makes
+ * followers start over.
+ */
+public final class SharedDownloads {
+    private static final long COPY_WAIT_MILLIS = 60 * 1000;
+
+    private static final SingleFlight<String, SharedFile> FLIGHTS = new SingleFlight<>();
+
+    private SharedDownloads() {
+    }
+
+    /**
+     * Downloads a file into an output path.
+     */
+    public interface Downloader {
+        /**
+         * Downloads to the output, passing the bytes written so far and the
+         * file size, or -1 while unknown, to the consumer. Returns the size,
+         * or -1 if cancelled.
+         */
+        long download(SingleFlight.Progress progress) throws Exception;
+    }
+
+    /**
+     * Runs the download unless the same file is already being downloaded,
+     * in which case waits for it and copies the result to the output.
+     * Waiting ends early once the cancel signal completes. Returns the
+     * size, or -1 if this caller's download was cancelled.
+     */
+    public static long download(String url, String sha256, Path output, SingleFlight.Progress progress,
+                                CompletableFuture<?> cancelled, Downloader downloader) throws Exception {
+        String key = url + "|" + (sha256 != null ? sha256.toLowerCase() : "");
+        while (true) {
+            SingleFlight.Call<SharedFile> call;
+            try {
+                call = FLIGHTS.execute(key,
+                    publish -> new SharedFile(output, downloader.download(publish)), progress, cancelled);
+            } catch (CancellationException e) {
+                return -1;
+            }
+            SharedFile shared = call.getValue();
+
+            if (call.isLeader()) {
+                try {
+                    if (!call.awaitFollowers(COPY_WAIT_MILLIS)) {
+                        System.err.println("Gave up waiting for shared download copies of " + url);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while sharing download", e);
+                }
+                return shared.size;
+            }
+
+            try {
+                if (shared.size < 0) {
+                    // The leader was cancelled; try again, possibly as the new leader
+                    continue;
+                }
+                if (!shared.file.toAbsolutePath().normalize().equals(output.toAbsolutePath().normalize())) {
+                    Files.copy(shared.file, output, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return shared.size;
+            } finally {
+                call.release();
+            }
+        }
+    }
+
+    public static boolean isDownloading(String url, String sha256) {
+        return FLIGHTS.isInFlight(url + "|" + (sha256 != null ? sha256.toLowerCase() : ""));
+    }
+
+    private static final class SharedFile {
+        private final Path file;
+        private final long size;
+
+        SharedFile(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces identical concurrent operations: the first caller for a key
+ * runs the work, and callers arriving while it is in flight attach to it
+ * and receive its result (or exception) and its progress instead of doing
+ * the work again. Once the work completes the key is free for a new call.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * Work that can report progress to every attached caller.
+     */
+    public interface Work<V> {
+        V call(Progress progress) throws Exception;
+    }
+
+    /**
+     * Receives the progress of a flight: the amount done so far and the
+     * total, or -1 while the total is unknown.
+     */
+    public interface Progress {
+        void accept(long done, long total);
+    }
+
+    private final Map<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the work in the calling thread, or waits for the identical call
+     * already in flight.
+     */
+    public V execute(K key, Callable<V> work) throws Exception {
+        return execute(key, progress -> work.call(), null).getValue();
+    }
+
+    /**
+     * Runs the work in the calling thread, or waits for the identical call
+     * already in flight. Progress of the work is passed to the consumer of
+     * every caller; a caller that attaches late first gets the latest value.
+     */
+    public Call<V> execute(K key, Work<V> work, Progress progress) throws Exception {
+        return execute(key, work, progress, null);
+    }
+
+    /**
+     * Like {@link #execute(Object, Work, Progress)}, but a caller that waits
+     * for another caller's work stops waiting with a
+     * {@link CancellationException} once the abandon signal completes.
+     */
+    public Call<V> execute(K key, Work<V> work, Progress progress, CompletableFuture<?> abandon) throws Exception {
+        boolean[] leader = new boolean[1];
+        Flight<V> flight = join(key, progress, leader);
+        if (!leader[0]) {
+            try {
+                if (abandon != null) {
+                    CompletableFuture.anyOf(flight.future, abandon).get();
+                    if (!flight.future.isDone()) {
+                        leave(key, flight, progress);
+                        throw new CancellationException("Stopped waiting for the shared call");
+                    }
+                }
+                return new Call<>(flight.future.get(), flight, false);
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } catch (InterruptedException e) {
+                leave(key, flight, progress);
+                throw e;
+            }
+        }
+
+        try {
+            V value = work.call(flight::publish);
+            land(key, flight);
+            flight.future.complete(value);
+            return new Call<>(value, flight, true);
+        } catch (Throwable t) {
+            land(key, flight);
+            flight.future.completeExceptionally(t);
+            throw t instanceof Exception ? (Exception) t : new ExecutionException(t);
+        }
+    }
+
+    /**
+     * Starts the work on the executor, or returns the future of the
+     * identical call already in flight.
+     */
+    public CompletableFuture<V> submit(K key, Callable<V> work, Executor executor) {
+        boolean[] leader = new boolean[1];
+        Flight<V> flight = join(key, null, leader);
+        if (leader[0]) {
+            executor.execute(() -> {
+                try {
+                    V value = work.call();
+                    land(key, flight);
+                    flight.future.complete(value);
+                } catch (Throwable t) {
+                    land(key, flight);
+                    flight.future.completeExceptionally(t);
+                }
+            });
+        }
+        return flight.future;
+    }
+
+    public boolean isInFlight(K key) {
+        return flights.containsKey(key);
+    }
+
+    /**
+     * Attaches to the flight of a key, or starts one if there is none, in
+     * which case the caller becomes its leader. A late caller's consumer
+     * gets the latest progress once the map is no longer locked, so
+     * callbacks never run inside it.
+     */
+    private Flight<V> join(K key, Progress progress, boolean[] leader) {
+        Flight<V> joined = flights.compute(key, (k, existing) -> {
+            Flight<V> flight = existing != null ? existing : new Flight<>();
+            if (existing != null) {
+                flight.participants++;
+            }
+            leader[0] = existing == null;
+            if (progress != null) {
+                flight.listeners.add(progress);
+            }
+            return flight;
+        });
+        long[] latest = joined.lastProgress;
+        if (progress != null && !leader[0] && latest != null) {
+            progress.accept(latest[0], latest[1]);
+        }
+        return joined;
+    }
+
+    /**
+     * Detaches a caller that stopped waiting. Before the flight finished it
+     * is no longer counted; after that its share is released, so a leader
+     * waiting for the followers does not wait for it.
+     */
+    private void leave(K key, Flight<V> flight, Progress progress) {
+        flight.listeners.remove(progress);
+        boolean[] uncounted = new boolean[1];
+        flights.computeIfPresent(key, (k, existing) -> {
+            if (existing == flight) {
+                flight.participants--;
+                uncounted[0] = true;
+            }
+            return existing;
+        });
+        if (!uncounted[0]) {
+            flight.release();
+        }
+    }
+
+    /**
+     * Removes a finished flight; from then on the participant count is final.
+     */
+    private void land(K key, Flight<V> flight) {
+        flights.compute(key, (k, existing) -> existing == flight ? null : existing);
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    /**
+     * The result of one caller's {@link #execute} call.
+     */
+    public static class Call<V> {
+        private final V value;
+        private final Flight<V> flight;
+        private final boolean leader;
+        private final int participants;
+
+        Call(V value, Flight<V> flight, boolean leader) {
+            this.value = value;
+            this.flight = flight;
+            this.leader = leader;
+            this.participants = flight.participants;
+        }
+
+        public V getValue() { return value; }
+
+        /** Whether this caller ran the work itself. */
+        public boolean isLeader() { return leader; }
+
+        /** How many callers shared the work, including the leader. */
+        public int getParticipants() { return participants; }
+
+        /**
+         * Tells the leader this follower is done with the shared value.
+         */
+        public void release() {
+            if (!leader) {
+                flight.release();
+            }
+        }
+
+        /**
+         * Waits until every follower released the shared value or stopped
+         * waiting for it. Returns false if the timeout passed first.
+         */
+        public boolean awaitFollowers(long timeoutMillis) throws InterruptedException {
+            return flight.awaitReleased(participants - 1, timeoutMillis);
+        }
+    }
+
+    private static final class Flight<V> {
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        private final List<Progress> listeners = new CopyOnWriteArrayList<>();
+        private volatile long[] lastProgress;
+        private int participants = 1;
+        private int released;
+
+        void publish(long done, long total) {
+            lastProgress = new long[] {done, total};
+            for (Progress listener : listeners) {
+                listener.accept(done, total);
+            }
+        }
+
+        synchronized void release() {
+            released++;
+            notifyAll();
+        }
+
+        synchronized boolean awaitReleased(int followers, long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (released < followers) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Minimal HTTP/1.1 client on plain sockets, used for the download path so
+ * that connection setup is under our control: addresses come from the
+ * {@link DnsCache} and are raced by the {@link HappyEyeballsConnector}, for
+ * the origin host as well as for HTTP and SOCKS5 proxies. One request is
+ * sent per connection.
+ */
+public class SocketHttpClient {
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_HEADER_LINE = 16 * 1024;
+
+    private final HappyEyeballsConnector connector;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public SocketHttpClient(int connectTimeoutMillis, int readTimeoutMillis) {
+        this(new HappyEyeballsConnector(), connectTimeoutMillis, readTimeoutMillis);
+    }
+
+    public SocketHttpClient(HappyEyeballsConnector connector, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connector = connector;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Sends a GET request, following redirects, and returns the response
+     * with its body unread. Like HttpURLConnection it refuses a redirect
+     * from HTTPS to plain HTTP. A host whose mirror circuit is open fails
+     * at once instead of waiting for the connect timeout.
+     */
+    public Response get(String url, Map<String, String> headers, ProxySettings proxySettings) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IOException(I18n.format("error.invalidURL", url), e);
+        }
+
+        for (int redirects = 0; ; redirects++) {
+            if (MirrorHealth.getDefault().isOpen(uri.getHost())) {
+                throw new IOException("Mirror " + uri.getHost() + " is skipped after repeated failures");
+            }
+            long start = System.nanoTime();
+            Response response;
+            try {
+                response = execute("GET", uri, headers, proxySettings);
+            } catch (IOException e) {
+                MirrorHealth.getDefault().recordFailure(uri.getHost());
+                throw e;
+            }
+            int code = response.getResponseCode();
+            if (code >= 500) {
+                MirrorHealth.getDefault().recordFailure(uri.getHost());
+            } else {
+                MirrorHealth.getDefault().recordLatency(uri.getHost(), (System.nanoTime() - start) / 1_000_000.0);
+            }
+            boolean redirect = code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+            String location = response.getHeaderField("Location");
+            if (!redirect || location == null || redirects >= MAX_REDIRECTS) {
+                return response;
+            }
+            response.disconnect();
+            URI next = uri.resolve(location);
+            if ("https".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(next.getScheme())) {
+                throw new IOException("Refusing redirect from HTTPS to " + next);
+            }
+            uri = next;
+        }
+    }
+
+    private Response execute(String method, URI uri, Map<String, String> headers,
+                             ProxySettings proxySettings) throws IOException {
+        String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : "";
+        boolean https = scheme.equals("https");
+        if (!https && !scheme.equals("http")) {
+            throw new IOException(I18n.format("error.invalidURL", uri));
+        }
+        String host = uri.getHost();
+        int port = uri.getPort() > 0 ? uri.getPort() : (https ? 443 : 80);
+        boolean viaHttpProxy = proxySettings != null && proxySettings.isUseProxy()
+            && proxySettings.getProxyType() != ProxyType.SOCKS5;
+
+        Socket socket = openSocket(host, port, https, proxySettings);
+        try {
+            socket.setSoTimeout(readTimeoutMillis);
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                path += "?" + uri.getRawQuery();
+            }
+            // Plain HTTP through an HTTP proxy uses the absolute form; everything else is tunnelled
+            String target = viaHttpProxy && !https ? uri.toASCIIString() : path;
+
+            StringBuilder request = new StringBuilder();
+            request.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(hostHeader(host, port, https)).append("\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (viaHttpProxy && !https && proxySettings.hasAuthentication()) {
+                request.append("Proxy-Authorization: Basic ").append(proxySettings.getProxyAuthorization()).append("\r\n");
+            }
+            request.append("Connection: close\r\n\r\n");
+
+            OutputStream out = socket.getOutputStream();
+            out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            return Response.read(socket, method, host);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private Socket openSocket(String host, int port, boolean https, ProxySettings proxySettings) throws IOException {
+        EngineEvents.ConnectionSetup event = new EngineEvents.ConnectionSetup();
+        event.begin();
+        Socket socket = null;
+        try {
+            socket = connectSocket(host, port, https, proxySettings);
+            return socket;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.host = host;
+                event.port = port;
+                event.proxyType = EngineEvents.proxyType(proxySettings);
+                event.tls = https;
+                if (socket != null) {
+                    event.localAddress = String.valueOf(socket.getLocalSocketAddress());
+                    event.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+                }
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Opens a connected socket to the origin, directly or through the proxy,
+     * with TLS already negotiated for https.
+     */
+    private Socket connectSocket(String host, int port, boolean https, ProxySettings proxySettings) throws IOException {
+        Socket socket;
+        if (proxySettings == null || !proxySettings.isUseProxy()) {
+            socket = connector.connect(host, port, connectTimeoutMillis);
+        } else {
+            try {
+                socket = connector.connect(proxySettings.getProxyHost(), proxySettings.getProxyPort(),
+                    connectTimeoutMillis);
+            } catch (ConnectException e) {
+                throw new ConnectException(I18n.format("error.connectToProxy",
+                    proxySettings.getProxyHost(), proxySettings.getProxyPort()));
+            }
+            try {
+                socket.setSoTimeout(readTimeoutMillis);
+                if (proxySettings.getProxyType() == ProxyType.SOCKS5) {
+                    socks5Connect(socket, host, port, proxySettings);
+                } else if (https) {
+                    httpConnect(socket, host, port, proxySettings);
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        if (!https) {
+            return socket;
+        }
+        SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+            .createSocket(socket, host, port, true);
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslSocket.setSSLParameters(parameters);
+        sslSocket.setSoTimeout(readTimeoutMillis);
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    /**
+     * Opens a tunnel through an HTTP proxy with the CONNECT method.
+     */
+    private static void httpConnect(Socket socket, String host, int port, ProxySettings proxySettings) throws IOException {
+        StringBuilder request = new StringBuilder();
+        request.append("CONNECT ").append(host).append(':').append(port).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        if (proxySettings.hasAuthentication()) {
+            request.append("Proxy-Authorization: Basic ").append(proxySettings.getProxyAuthorization()).append("\r\n");
+        }
+        request.append("\r\n");
+        socket.getOutputStream().write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+
+        // Read the reply byte by byte so nothing of the tunnelled stream is consumed
+        InputStream in = socket.getInputStream();
+        String statusLine = readLine(in);
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            // Skip proxy response headers
+        }
+        int code = parseStatusCode(statusLine);
+        if (code != 200) {
+            throw new IOException(I18n.format("error.httpViaProxy", code, statusLine));
+        }
+    }
+
+    /**
+     * Performs the SOCKS5 handshake (RFC 1928/1929) and connects by host name,
+     * so the proxy resolves the origin.
+     */
+    private static void socks5Connect(Socket socket, String host, int port, ProxySettings proxySettings) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        boolean auth = proxySettings.hasAuthentication();
+
+        out.write(auth ? new byte[] {5, 2, 0, 2} : new byte[] {5, 1, 0});
+        out.flush();
+        byte[] choice = readFully(in, 2);
+        if (choice[0] != 5 || (choice[1] & 0xff) == 0xff) {
+            throw new IOException("SOCKS5 proxy rejected authentication methods");
+        }
+        if (choice[1] != 0 && !(auth && choice[1] == 2)) {
+            throw new IOException("SOCKS5 proxy chose authentication method " + (choice[1] & 0xff) + ", which was not offered");
+        }
+        if (choice[1] == 2) {
+            byte[] user = proxySettings.getProxyUsername().getBytes(StandardCharsets.UTF_8);
+            String password = proxySettings.getProxyPassword() != null ? proxySettings.getProxyPassword() : "";
+            byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(1);
+            request.write(user.length);
+            request.write(user);
+            request.write(pass.length);
+            request.write(pass);
+            out.write(request.toByteArray());
+            out.flush();
+            if (readFully(in, 2)[1] != 0) {
+                throw new IOException("SOCKS5 authentication failed");
+            }
+        }
+
+        byte[] hostBytes = host.getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(new byte[] {5, 1, 0, 3});
+        request.write(hostBytes.length);
+        request.write(hostBytes);
+        request.write((port >> 8) & 0xff);
+        request.write(port & 0xff);
+        out.write(request.toByteArray());
+        out.flush();
+
+        byte[] reply = readFully(in, 4);
+        if (reply[1] != 0) {
+            throw new ConnectException("SOCKS5 connect failed with code " + reply[1]);
+        }
+        int addressLength;
+        switch (reply[3]) {
+            case 1: addressLength = 4; break;
+            case 4: addressLength = 16; break;
+            case 3: addressLength = readFully(in, 1)[0] & 0xff; break;
+            default: throw new IOException("Invalid SOCKS5 reply");
+        }
+        readFully(in, addressLength + 2);
+    }
+
+    private static String hostHeader(String host, int port, boolean https) {
+        String name = host.contains(":") ? "[" + host + "]" : host;
+        return port == (https ? 443 : 80) ? name : name + ":" + port;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(data, offset, length - offset);
+            if (read == -1) {
+                throw new IOException("Connection closed by proxy");
+            }
+            offset += read;
+        }
+        return data;
+    }
+
+    /**
+     * Reads a CRLF-terminated line, or null at end of stream.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_HEADER_LINE) {
+                throw new IOException("Header line too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static int parseStatusCode(String statusLine) throws IOException {
+        if (statusLine == null) {
+            throw new IOException("Empty response");
+        }
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine, e);
+        }
+    }
+
+    private static long parseContentLength(String contentLength) throws IOException {
+        try {
+            long length = Long.parseLong(contentLength.trim());
+            if (length >= 0) {
+                return length;
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + contentLength, e);
+        }
+        throw new IOException("Invalid Content-Length: " + contentLength);
+    }
+
+    /**
+     * A response whose body is read from the socket it arrived on. The
+     * accessors follow {@link java.net.HttpURLConnection} naming.
+     */
+    public static class Response {
+        private final Socket socket;
+        private final int responseCode;
+        private final String responseMessage;
+        private final Map<String, String> headers;
+        private final InputStream body;
+
+        private Response(Socket socket, int responseCode, String responseMessage,
+                         Map<String, String> headers, InputStream body) {
+            this.socket = socket;
+            this.responseCode = responseCode;
+            this.responseMessage = responseMessage;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        static Response read(Socket socket, String method, String host) throws IOException {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            String statusLine = readLine(in);
+            int code = parseStatusCode(statusLine);
+            String[] parts = statusLine.split(" ", 3);
+            String message = parts.length > 2 ? parts[2] : "";
+
+            Map<String, String> headers = new LinkedHashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+            }
+
+            InputStream body;
+            String contentLength = headers.get("content-length");
+            if (method.equals("HEAD") || code == 204 || code == 304 || (code >= 100 && code < 200)) {
+                body = new BoundedInputStream(in, 0);
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = new ChunkedInputStream(in);
+            } else if (contentLength != null) {
+                body = new BoundedInputStream(in, parseContentLength(contentLength));
+            } else {
+                body = in;
+            }
+            return new Response(socket, code, message, headers, new HealthTrackingInputStream(body, socket, host));
+        }
+
+        public int getResponseCode() { return responseCode; }
+        public String getResponseMessage() { return responseMessage; }
+        public InputStream getInputStream() { return body; }
+
+        public String getHeaderField(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public long getContentLengthLong() {
+            String value = headers.get("content-length");
+            try {
+                return value != null ? Long.parseLong(value.trim()) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Gets a validator usable in If-Range. Weak ETags are not allowed there.
+         */
+        public String getValidator() {
+            String etag = getHeaderField("ETag");
+            if (etag != null && !etag.startsWith("W/")) {
+                return etag;
+            }
+            return getHeaderField("Last-Modified");
+        }
+
+        public void disconnect() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Reports a body read to the end as a success of the mirror, and a body
+     * cut short by the server or a read that failed on a socket we did not
+     * close ourselves as a failure.
+     */
+    private static class HealthTrackingInputStream extends FilterInputStream {
+        private final Socket socket;
+        private final String host;
+        private boolean done;
+
+        HealthTrackingInputStream(InputStream in, Socket socket, String host) {
+            super(in);
+            this.socket = socket;
+            this.host = host;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return checkEnd(in.read());
+            } catch (IOException e) {
+                fail();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return checkEnd(in.read(b, off, len));
+            } catch (IOException e) {
+                fail();
+                throw e;
+            }
+        }
+
+        private int checkEnd(int read) {
+            if (read == -1 && !done) {
+                if (in instanceof BoundedInputStream && ((BoundedInputStream) in).remaining > 0) {
+                    fail();
+                } else {
+                    done = true;
+                    MirrorHealth.getDefault().recordSuccess(host);
+                }
+            }
+            return read;
+        }
+
+        private void fail() {
+            if (!done && !socket.isClosed()) {
+                done = true;
+                MirrorHealth.getDefault().recordFailure(host);
+            }
+        }
+    }
+
+    /**
+     * Stream limited to the Content-Length of a response.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int c = in.read();
+            if (c != -1) remaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * Decodes a chunked transfer-encoded body.
+     */
+    private static class ChunkedInputStream extends FilterInputStream {
+        private long chunkRemaining;
+        private boolean finished;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished) return -1;
+            if (chunkRemaining == 0) {
+                String sizeLine = readLine(in);
+                if (sizeLine != null && sizeLine.isEmpty()) {
+                    sizeLine = readLine(in);
+                }
+                if (sizeLine == null) {
+                    throw new IOException("Truncated chunked body");
+                }
+                int semicolon = sizeLine.indexOf(';');
+                try {
+                    chunkRemaining = Long.parseLong((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + sizeLine, e);
+                }
+                if (chunkRemaining < 0) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                if (chunkRemaining == 0) {
+                    finished = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read == -1) {
+                throw new IOException("Truncated chunked body");
+            }
+            chunkRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), chunkRemaining);
+        }
+    }
+}
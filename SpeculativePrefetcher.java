@@ -0,0 +1,283 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opt-in speculative work that hides network latency from the user:
+ * fetches the manifest as soon as a version is selected, pre-warms a
+ * connection to the top mirror, and buffers the first segment of a
+ * selected link to a temporary file before the download is confirmed.
+ */
+public class SpeculativePrefetcher {
+    private static final long MANIFEST_TTL_MILLIS = 2 * 60 * 1000;
+    private static final long FIRST_SEGMENT_BYTES = 4L * 1024 * 1024;
+    private static final int TIMEOUT_MILLIS = 15000;
+
+    private final ExecutorService executor;
+    private final Map<List<Object>, ManifestEntry> manifests = new ConcurrentHashMap<>();
+    private volatile boolean enabled;
+    private CompletableFuture<PrefetchedSegment> pendingSegment;
+    private String pendingSegmentUrl;
+    private AtomicBoolean pendingSegmentDiscarded;
+
+    public SpeculativePrefetcher(ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null");
+        }
+        this.executor = executor;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            manifests.clear();
+            discardFirstSegment();
+        }
+    }
+
+    /**
+     * Forgets the prefetched manifests, so the next fetch asks the service.
+     */
+    public void clearManifests() {
+        manifests.clear();
+    }
+
+    /**
+     * Starts fetching the manifest for a version in the background and
+     * pre-warms a connection to the first mirror once it arrives.
+     */
+    public void prefetchManifest(String versionLabel, TargetPlatform target, ProxySettings proxySettings) {
+        if (!enabled || versionLabel == null || target == null || proxySettings == null) {
+            return;
+        }
+
+        List<Object> key = manifestKey(versionLabel, target, proxySettings);
+        manifests.compute(key, (k, existing) -> {
+            if (existing != null && !existing.isStale()) {
+                return existing;
+            }
+            CompletableFuture<List<DownloadLink>> future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new UpdateServiceClient(proxySettings).fetchLinks(versionLabel, target);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, executor);
+            future.thenAcceptAsync(links -> {
+                if (!links.isEmpty()) {
+                    warmUpConnection(links.get(0), proxySettings);
+                }
+            }, executor);
+            return new ManifestEntry(future);
+        });
+    }
+
+    /**
+     * Gets the speculative manifest fetch for a version and target, or null
+     * if none is fresh. The returned future may still be in flight.
+     */
+    public CompletableFuture<List<DownloadLink>> getManifest(String versionLabel, TargetPlatform target,
+                                                             ProxySettings proxySettings) {
+        if (!enabled || versionLabel == null || target == null || proxySettings == null) {
+            return null;
+        }
+
+        ManifestEntry entry = manifests.get(manifestKey(versionLabel, target, proxySettings));
+        if (entry == null || entry.isStale() || entry.future.isCompletedExceptionally()) {
+            return null;
+        }
+        return entry.future;
+    }
+
+    /**
+     * Starts buffering the first segment of a link, replacing any segment
+     * buffered for a different link.
+     */
+    public synchronized void prefetchFirstSegment(DownloadLink link, ProxySettings proxySettings) {
+        if (!enabled || link == null || proxySettings == null) {
+            return;
+        }
+        if (link.getUrl().equals(pendingSegmentUrl)) {
+            return;
+        }
+
+        discardFirstSegment();
+        String url = link.getUrl();
+        AtomicBoolean discarded = new AtomicBoolean();
+        pendingSegmentUrl = url;
+        pendingSegmentDiscarded = discarded;
+        pendingSegment = CompletableFuture.supplyAsync(() -> {
+            try {
+                return downloadFirstSegment(url, proxySettings, discarded);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Hands over the buffered segment for a URL to the caller, who becomes
+     * responsible for deleting its file. A segment still being buffered keeps
+     * going; the caller waits for it. Returns null if nothing was buffered.
+     */
+    public synchronized CompletableFuture<PrefetchedSegment> takeFirstSegment(String url) {
+        if (pendingSegment == null || url == null || !url.equals(pendingSegmentUrl)) {
+            return null;
+        }
+
+        CompletableFuture<PrefetchedSegment> segment = pendingSegment;
+        pendingSegment = null;
+        pendingSegmentUrl = null;
+        pendingSegmentDiscarded = null;
+        return segment;
+    }
+
+    /**
+     * Stops and deletes the currently buffered segment, if any.
+     */
+    public synchronized void discardFirstSegment() {
+        CompletableFuture<PrefetchedSegment> segment = pendingSegment;
+        AtomicBoolean discarded = pendingSegmentDiscarded;
+        pendingSegment = null;
+        pendingSegmentUrl = null;
+        pendingSegmentDiscarded = null;
+
+        if (segment != null) {
+            discarded.set(true);
+            segment.thenAccept(PrefetchedSegment::delete);
+        }
+    }
+
+    public void shutdown() {
+        setEnabled(false);
+    }
+
+    /**
+     * Opens a HEAD request to the mirror and leaves the connection in the
+     * keep-alive pool, so DNS, TCP and TLS setup are already done later.
+     */
+    private void warmUpConnection(DownloadLink link, ProxySettings proxySettings) {
+        try {
+            HttpURLConnection connection = proxySettings.openConnection(new URI(link.getUrl()));
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
+            connection.getResponseCode();
+            connection.getInputStream().close();
+        } catch (Exception e) {
+            System.err.println("Failed to pre-warm connection to " + link.getHost() + ": " + e.getMessage());
+        }
+    }
+
+    private PrefetchedSegment downloadFirstSegment(String url, ProxySettings proxySettings,
+                                                   AtomicBoolean discarded) throws Exception {
+        HttpURLConnection connection = proxySettings.openConnection(new URI(url));
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
+        connection.setRequestProperty("Range", "bytes=0-" + (FIRST_SEGMENT_BYTES - 1));
+
+        File file = File.createTempFile("chromedl-", ".part");
+        file.deleteOnExit();
+        long length = 0;
+
+        try {
+            int responseCode = connection.getResponseCode();
+            long totalSize;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                totalSize = parseContentRangeTotal(connection.getHeaderField("Content-Range"));
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                totalSize = connection.getContentLengthLong();
+            } else {
+                throw new IOException(I18n.format("error.http", responseCode, connection.getResponseMessage()));
+            }
+
+            try (InputStream in = connection.getInputStream();
+                 FileOutputStream out = new FileOutputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                int bytesRead;
+                while (length < FIRST_SEGMENT_BYTES && (bytesRead = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, FIRST_SEGMENT_BYTES - length))) != -1) {
+                    if (discarded.get()) {
+                        throw new IOException("Speculative segment discarded");
+                    }
+                    out.write(buffer, 0, bytesRead);
+                    length += bytesRead;
+                }
+            }
+
+            return new PrefetchedSegment(url, file, length, totalSize, getValidator(connection));
+        } catch (Exception e) {
+            file.delete();
+            throw e;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Gets a validator usable in If-Range. Weak ETags are not allowed there.
+     */
+    static String getValidator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Parses the total length from a "bytes start-end/total" header.
+     */
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || contentRange.endsWith("*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The proxy settings themselves are part of the key: their string form
+     * masks the password, so routes that differ only in it would share an entry.
+     */
+    private static List<Object> manifestKey(String versionLabel, TargetPlatform target, ProxySettings proxySettings) {
+        return Arrays.asList(versionLabel, target.getId(), proxySettings);
+    }
+
+    private static final class ManifestEntry {
+        private final CompletableFuture<List<DownloadLink>> future;
+        private final long createdAt;
+
+        ManifestEntry(CompletableFuture<List<DownloadLink>> future) {
+            this.future = future;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() - createdAt > MANIFEST_TTL_MILLIS;
+        }
+    }
+}
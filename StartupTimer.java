@@ -0,0 +1,75 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the time from process start to the first frame into named phases.
+ * The first mark covers JVM startup up to {@code main}; each later mark
+ * covers the time since the previous one. With
+ * {@code -Dchromedownloader.startupTiming=true} the breakdown is printed
+ * when startup finishes.
+ */
+public final class StartupTimer {
+    private static final List<String> PHASES = new ArrayList<>();
+    private static final List<Long> MILLIS = new ArrayList<>();
+
+    private static long lastNanos;
+    private static boolean finished;
+
+    private StartupTimer() {
+    }
+
+    /**
+     * Ends the current phase under the given name.
+     */
+    public static synchronized void mark(String phase) {
+        if (finished) {
+            return;
+        }
+        long millis;
+        if (lastNanos == 0) {
+            Instant processStart = ProcessHandle.current().info().startInstant().orElse(null);
+            millis = processStart != null ? Math.max(0, System.currentTimeMillis() - processStart.toEpochMilli()) : 0;
+            lastNanos = System.nanoTime();
+        } else {
+            long now = System.nanoTime();
+            millis = (now - lastNanos) / 1_000_000;
+            lastNanos = now;
+        }
+        PHASES.add(phase);
+        MILLIS.add(millis);
+    }
+
+    /**
+     * Ends the last phase and prints the breakdown if it was asked for.
+     * Later marks are ignored.
+     */
+    public static void finish(String phase) {
+        mark(phase);
+        String report;
+        synchronized (StartupTimer.class) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            report = getReport();
+        }
+        if (Boolean.getBoolean("chromedownloader.startupTiming")) {
+            System.err.print(report);
+        }
+    }
+
+    /**
+     * Gets one line per phase with its milliseconds, and the total.
+     */
+    public static synchronized String getReport() {
+        StringBuilder report = new StringBuilder("Startup timing:\n");
+        long total = 0;
+        for (int i = 0; i < PHASES.size(); i++) {
+            report.append(String.format("  %-14s %6d ms%n", PHASES.get(i), MILLIS.get(i)));
+            total += MILLIS.get(i);
+        }
+        report.append(String.format("  %-14s %6d ms%n", "total", total));
+        return report.toString();
+    }
+}
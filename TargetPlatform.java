@@ -0,0 +1,122 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Platform and architecture an installer is fetched for. This is chosen
+ * explicitly instead of being derived from the host, so any host (including
+ * Linux mirror servers) can fetch installers for every supported target.
+ */
+public enum TargetPlatform {
+    WIN_X64("win", "x64", "10.0", "Windows"),
+    WIN_X86("win", "x86", "10.0", "Windows"),
+    WIN_ARM64("win", "arm64", "10.0", "Windows"),
+    MAC_X64("mac", "x64", "13.0", "macOS"),
+    MAC_ARM64("mac", "arm64", "13.0", "macOS");
+
+    private static final String WIN_STABLE_APPID = "{8A69D345-D564-463C-AFF1-A69D9E530F96}";
+    private static final String WIN_CANARY_APPID = "{4EA16AC7-FD5A-47C3-875B-DBF4A2008C20}";
+
+    private final String platform;
+    private final String arch;
+    private final String osVersion;
+    private final String osDisplayName;
+
+    TargetPlatform(String platform, String arch, String osVersion, String osDisplayName) {
+        this.platform = platform;
+        this.arch = arch;
+        this.osVersion = osVersion;
+        this.osDisplayName = osDisplayName;
+    }
+
+    /**
+     * Gets the target matching the host, or Windows x64 on hosts that
+     * have no installer of their own (e.g. Linux).
+     */
+    public static TargetPlatform fromHost() {
+        String arch = System.getProperty("os.arch").toLowerCase();
+        boolean arm = arch.contains("aarch64") || arch.contains("arm");
+
+        if (PlatformUtils.isMac()) {
+            return arm ? MAC_ARM64 : MAC_X64;
+        }
+        if (PlatformUtils.isWindows()) {
+            if (arm) return WIN_ARM64;
+            if (arch.equals("x86") || arch.equals("i386") || arch.equals("i686")) return WIN_X86;
+        }
+        return WIN_X64;
+    }
+
+    /**
+     * Parses a target from its id, e.g. "win-x64" or "mac-arm64".
+     */
+    public static TargetPlatform fromString(String id) {
+        if (id == null) return null;
+
+        for (TargetPlatform target : values()) {
+            if (target.getId().equalsIgnoreCase(id.trim())) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    public String getId() {
+        return platform + "-" + arch;
+    }
+
+    public String getPlatform() { return platform; }
+    public String getArch() { return arch; }
+    public String getOsVersion() { return osVersion; }
+    public String getOSDisplayName() { return osDisplayName; }
+
+    public boolean isWindows() {
+        return "win".equals(platform);
+    }
+
+    /**
+     * Gets the channel (ap) and appid of each version label for this target.
+     */
+    public Map<String, Map<String, String>> getVersionMapping() {
+        Map<String, Map<String, String>> map = new HashMap<>();
+        switch (this) {
+            case WIN_X64:
+                map.put("Stable", Map.of("channel", "x64-stable-multi-chrome", "appid", WIN_STABLE_APPID));
+                map.put("Beta", Map.of("channel", "x64-beta-multi-chrome", "appid", WIN_STABLE_APPID));
+                map.put("Dev", Map.of("channel", "x64-dev-statsdef_1", "appid", WIN_STABLE_APPID));
+                map.put("Canary", Map.of("channel", "x64-canary", "appid", WIN_CANARY_APPID));
+                break;
+            case WIN_X86:
+                map.put("Stable", Map.of("channel", "-multi-chrome", "appid", WIN_STABLE_APPID));
+                map.put("Beta", Map.of("channel", "1.1-beta", "appid", WIN_STABLE_APPID));
+                map.put("Dev", Map.of("channel", "2.0-dev", "appid", WIN_STABLE_APPID));
+                map.put("Canary", Map.of("channel", "", "appid", WIN_CANARY_APPID));
+                break;
+            case WIN_ARM64:
+                map.put("Stable", Map.of("channel", "arm64-stable-multi-chrome", "appid", WIN_STABLE_APPID));
+                map.put("Beta", Map.of("channel", "arm64-beta-multi-chrome", "appid", WIN_STABLE_APPID));
+                map.put("Dev", Map.of("channel", "arm64-dev-statsdef_1", "appid", WIN_STABLE_APPID));
+                map.put("Canary", Map.of("channel", "arm64-canary", "appid", WIN_CANARY_APPID));
+                break;
+            case MAC_X64:
+            case MAC_ARM64:
+                map.put("Stable", Map.of("channel", "", "appid", "com.google.Chrome"));
+                map.put("Beta", Map.of("channel", "betachannel", "appid", "com.google.Chrome.Beta"));
+                map.put("Dev", Map.of("channel", "devchannel", "appid", "com.google.Chrome.Dev"));
+                map.put("Canary", Map.of("channel", "canarychannel", "appid", "com.google.Chrome.Canary"));
+                break;
+        }
+        return map;
+    }
+
+    /**
+     * Gets the localized display name, e.g. "Windows x64".
+     */
+    public String getDisplayName() {
+        return I18n.getLocalizedOSName(osDisplayName) + " " + arch;
+    }
+
+    @Override
+    public String toString() {
+        return getId();
+    }
+}
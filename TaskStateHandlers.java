@@ -1,3 +1,4 @@
+import javafx.application.Platform;
 import javafx.event.EventHandler;
 import javafx.concurrent.WorkerStateEvent;
 import javafx.scene.control.Label;
@@ -38,27 +39,28 @@ public class TaskStateHandlers {
     }
     
     public static EventHandler<WorkerStateEvent> createFetchLinksSucceededHandler(
-            Label progressLabel, ListView<String> linkListView,
-            List<String> currentDownloadLinks, Button fetchButton) {
+            Label progressLabel, ListView<DownloadLink> linkListView,
+            List<DownloadLink> currentDownloadLinks, Button fetchButton,
+            LinkProber linkProber, ProxySettings proxySettings) {
         
         if (progressLabel == null || linkListView == null || 
-            currentDownloadLinks == null || fetchButton == null) {
+            currentDownloadLinks == null || fetchButton == null || linkProber == null) {
             throw new IllegalArgumentException("All parameters must not be null");
         }
         
         WeakReference<Label> labelRef = new WeakReference<>(progressLabel);
-        WeakReference<ListView<String>> listRef = new WeakReference<>(linkListView);
+        WeakReference<ListView<DownloadLink>> listRef = new WeakReference<>(linkListView);
         WeakReference<Button> buttonRef = new WeakReference<>(fetchButton);
         
         return event -> {
             Label label = labelRef.get();
-            ListView<String> listView = listRef.get();
+            ListView<DownloadLink> listView = listRef.get();
             Button button = buttonRef.get();
             
             if (label != null && listView != null && button != null) {
                 try {
                     @SuppressWarnings("unchecked")
-                    List<String> links = (List<String>) event.getSource().getValue();
+                    List<DownloadLink> links = (List<DownloadLink>) event.getSource().getValue();
                     
                     if (links == null) {
                         throw new ClassCastException("Download links are null");
@@ -69,15 +71,14 @@ public class TaskStateHandlers {
                     
                     listView.getItems().clear();
                     if (currentDownloadLinks.isEmpty()) {
-                        listView.getItems().add("No download links found.");
+                        listView.setPlaceholder(new Label("No download links found."));
                         label.setVisible(true);
                         label.setText("No download links found. Please try again later.");
                         label.setStyle("-fx-text-fill: red;");
                     } else {
-                        for (int i = 0; i < currentDownloadLinks.size(); i++) {
-                            listView.getItems().add((i + 1) + ". " + currentDownloadLinks.get(i));
-                        }
+                        listView.getItems().addAll(currentDownloadLinks);
                         label.setVisible(false);
+                        probeLinks(listView, currentDownloadLinks, linkProber, proxySettings);
                     }
                     button.setDisable(false);
                 } catch (ClassCastException e) {
@@ -85,27 +86,43 @@ public class TaskStateHandlers {
                     label.setText("Failed to fetch links: Invalid response format");
                     label.setStyle("-fx-text-fill: red;");
                     listView.getItems().clear();
-                    listView.getItems().add("Error: Invalid response format.");
+                    listView.setPlaceholder(new Label("Error: Invalid response format."));
                     button.setDisable(false);
                 }
             }
         };
     }
     
+    /**
+     * Starts HEAD probes for all links and refreshes the list as results arrive.
+     */
+    private static void probeLinks(ListView<DownloadLink> listView, List<DownloadLink> links,
+                                   LinkProber linkProber, ProxySettings proxySettings) {
+        WeakReference<ListView<DownloadLink>> listRef = new WeakReference<>(listView);
+        for (DownloadLink link : links) {
+            linkProber.probe(link, proxySettings).thenRun(() -> Platform.runLater(() -> {
+                ListView<DownloadLink> view = listRef.get();
+                if (view != null) {
+                    view.refresh();
+                }
+            }));
+        }
+    }
+    
     public static EventHandler<WorkerStateEvent> createFetchLinksFailedHandler(
-            Label progressLabel, ListView<String> linkListView, Button fetchButton) {
+            Label progressLabel, ListView<DownloadLink> linkListView, Button fetchButton) {
         
         if (progressLabel == null || linkListView == null || fetchButton == null) {
             throw new IllegalArgumentException("All parameters must not be null");
         }
         
         WeakReference<Label> labelRef = new WeakReference<>(progressLabel);
-        WeakReference<ListView<String>> listRef = new WeakReference<>(linkListView);
+        WeakReference<ListView<DownloadLink>> listRef = new WeakReference<>(linkListView);
         WeakReference<Button> buttonRef = new WeakReference<>(fetchButton);
         
         return event -> {
             Label label = labelRef.get();
-            ListView<String> listView = listRef.get();
+            ListView<DownloadLink> listView = listRef.get();
             Button button = buttonRef.get();
             
             if (label != null && listView != null && button != null) {
@@ -115,7 +132,7 @@ public class TaskStateHandlers {
                     (ex != null ? ex.getLocalizedMessage() : "Unknown error"));
                 label.setStyle("-fx-text-fill: red;");
                 listView.getItems().clear();
-                listView.getItems().add("Error occurred while fetching links.");
+                listView.setPlaceholder(new Label("Error occurred while fetching links."));
                 button.setDisable(false);
             }
         };
@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes the buffers of a download to extra destinations as they arrive, so
+ * the file is not read back and copied afterwards. Each destination has its
+ * own writer thread and a bounded buffer: a slow destination holds back the
+ * download only once its buffer is full, and a failing one is dropped
+ * without affecting the others. Ranges the download did not pass through
+ * (a resumed part, a rebuilt delta) are copied from the finished file.
+ * Destinations are written as ".part" files and renamed when complete.
+ */
+public class TeeWriter {
+    static final int DEFAULT_BUFFER_BYTES = 16 * 1024 * 1024;
+
+    private static final int COPY_BLOCK_BYTES = 1024 * 1024;
+    private static final Block END = new Block(-1, new byte[0]);
+
+    private final List<Target> targets = new ArrayList<>();
+    private final TreeMap<Long, Long> written = new TreeMap<>();
+    private final int bufferBytes;
+    private volatile boolean closed;
+
+    public TeeWriter(List<Path> destinations) {
+        this(destinations, DEFAULT_BUFFER_BYTES);
+    }
+
+    public TeeWriter(List<Path> destinations, int bufferBytes) {
+        if (destinations == null || destinations.isEmpty()) {
+            throw new IllegalArgumentException("At least one destination is required");
+        }
+        if (bufferBytes <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.bufferBytes = bufferBytes;
+        for (Path destination : destinations) {
+            Target target = new Target(destination);
+            targets.add(target);
+            target.start();
+        }
+    }
+
+    /**
+     * Queues the remaining bytes of a buffer, which belong at the given file
+     * position, for every destination still working. The buffer itself is
+     * not consumed. Blocks while a destination's buffer is full.
+     */
+    public void write(long position, ByteBuffer data) throws IOException {
+        if (closed || !data.hasRemaining()) {
+            return;
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        Block block = new Block(position, bytes);
+        synchronized (written) {
+            addRange(position, position + bytes.length);
+        }
+        for (Target target : targets) {
+            target.enqueue(block);
+        }
+    }
+
+    /**
+     * Copies the ranges the download did not write through from the finished
+     * file, waits for every destination and renames it into place. Returns
+     * one result per destination.
+     */
+    public List<Result> finish(Path source) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long[] gap : gaps(size)) {
+                for (long position = gap[0]; position < gap[1]; ) {
+                    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BLOCK_BYTES, gap[1] - position));
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer, position + buffer.position()) == -1) {
+                            throw new IOException("Source ended early at byte " + (position + buffer.position()));
+                        }
+                    }
+                    buffer.flip();
+                    write(position, buffer);
+                    position += buffer.limit();
+                }
+            }
+            closed = true;
+            List<Result> results = new ArrayList<>();
+            for (Target target : targets) {
+                results.add(target.complete(size));
+            }
+            return results;
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stops every destination that has not completed and deletes its partial file.
+     */
+    public void abort() {
+        closed = true;
+        for (Target target : targets) {
+            target.abort();
+        }
+    }
+
+    private void addRange(long start, long end) {
+        Map.Entry<Long, Long> before = written.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = written.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            written.remove(next.getKey());
+        }
+        written.put(start, end);
+    }
+
+    private List<long[]> gaps(long size) {
+        List<long[]> gaps = new ArrayList<>();
+        long position = 0;
+        synchronized (written) {
+            for (Map.Entry<Long, Long> range : written.entrySet()) {
+                if (range.getKey() > position) {
+                    gaps.add(new long[] {position, Math.min(range.getKey(), size)});
+                }
+                position = Math.max(position, range.getValue());
+            }
+        }
+        if (position < size) {
+            gaps.add(new long[] {position, size});
+        }
+        gaps.removeIf(gap -> gap[0] >= gap[1]);
+        return gaps;
+    }
+
+    /**
+     * The outcome for one destination.
+     */
+    public static class Result {
+        private final Path destination;
+        private final long bytes;
+        private final Throwable error;
+
+        Result(Path destination, long bytes, Throwable error) {
+            this.destination = destination;
+            this.bytes = bytes;
+            this.error = error;
+        }
+
+        public Path getDestination() { return destination; }
+        public long getBytes() { return bytes; }
+        public Throwable getError() { return error; }
+        public boolean isSuccessful() { return error == null; }
+    }
+
+    private static class Block {
+        private final long position;
+        private final byte[] bytes;
+
+        Block(long position, byte[] bytes) {
+            this.position = position;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * One destination with its queue and writer thread.
+     */
+    private class Target {
+        private final Path destination;
+        private final Path part;
+        private final LinkedBlockingQueue<Block> queue = new LinkedBlockingQueue<>();
+        private final Semaphore space = new Semaphore(bufferBytes);
+        private final Thread writer;
+        private volatile Throwable error;
+        private volatile boolean done;
+        private long size = -1;
+
+        Target(Path destination) {
+            this.destination = destination;
+            this.part = destination.resolveSibling(destination.getFileName() + ".part");
+            this.writer = new Thread(this::run, "tee-writer");
+            this.writer.setDaemon(true);
+        }
+
+        void start() {
+            writer.start();
+        }
+
+        void enqueue(Block block) throws IOException {
+            if (error != null || done) {
+                return;
+            }
+            try {
+                space.acquire(permits(block));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + destination);
+            }
+            queue.add(block);
+        }
+
+        private int permits(Block block) {
+            return Math.min(block.bytes.length, bufferBytes);
+        }
+
+        private void run() {
+            try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (true) {
+                    Block block = queue.take();
+                    if (block == END) {
+                        out.truncate(size);
+                        out.force(true);
+                        break;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(block.bytes);
+                    long position = block.position;
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                    space.release(permits(block));
+                }
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Copy to " + destination + " stopped");
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            try {
+                if (error == null) {
+                    Files.move(part, destination, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.deleteIfExists(part);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            if (error != null) {
+                // Let a producer blocked on this destination carry on without it
+                queue.clear();
+                space.release(bufferBytes);
+            }
+        }
+
+        Result complete(long size) {
+            if (error == null) {
+                this.size = size;
+                queue.add(END);
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writer.interrupt();
+                return new Result(destination, size, new InterruptedIOException("Interrupted"));
+            }
+            done = true;
+            return new Result(destination, size, error);
+        }
+
+        void abort() {
+            if (!done) {
+                done = true;
+                writer.interrupt();
+                space.release(bufferBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes update2 request bodies. The constant parts of the request are
+ * encoded to UTF-8 once; a request only writes them and the escaped values
+ * between them into a buffer that each thread reuses, so a batch of checks
+ * does not format and re-encode the whole template every time.
+ */
+public final class UpdateRequestEncoder {
+    private static final byte[] START = utf8(
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<request protocol=\"3.0\" version=\"1.3.23.9\" shell_version=\"1.3.21.103\" ismachine=\"0\" sessionid=\"");
+    private static final byte[] AFTER_SESSION_ID = utf8("\" installsource=\"ondemandcheckforupdate\" requestid=\"");
+    private static final byte[] AFTER_REQUEST_ID = utf8("\" dedup=\"cr\">"
+        + "<hw physmemory=\"1200000\" sse=\"1\" sse2=\"1\" sse3=\"1\" ssse3=\"1\" sse41=\"1\" sse42=\"1\" avx=\"1\"/>"
+        + "<os platform=\"");
+    private static final byte[] AFTER_PLATFORM = utf8("\" version=\"");
+    private static final byte[] AFTER_OS_VERSION = utf8("\" arch=\"");
+    private static final byte[] AFTER_ARCH = utf8("\"/><app appid=\"");
+    private static final byte[] AFTER_APP_ID = utf8("\" version=\"");
+    private static final byte[] AFTER_VERSION = utf8("\" nextversion=\"\" ap=\"");
+    private static final byte[] AFTER_AP = utf8("\" lang=\"en-US\"><updatecheck/>");
+    private static final byte[] PACKAGE_START = utf8("<packages><package fp=\"");
+    private static final byte[] PACKAGE_END = utf8("\"/></packages>");
+    private static final byte[] END = utf8("</app></request>");
+    private static final byte[] AMP = utf8("&amp;");
+    private static final byte[] LT = utf8("&lt;");
+    private static final byte[] GT = utf8("&gt;");
+    private static final byte[] QUOT = utf8("&quot;");
+
+    private static final int INITIAL_BUFFER_BYTES = 1024;
+
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFERS =
+        ThreadLocal.withInitial(() -> new ByteArrayOutputStream(INITIAL_BUFFER_BYTES));
+
+    private UpdateRequestEncoder() {
+    }
+
+    /**
+     * Encodes an update check for an app on a platform. A prior version and
+     * fingerprint, if given, ask for a differential package from that build.
+     * The returned buffer belongs to the calling thread and is overwritten
+     * by its next request.
+     */
+    public static ByteArrayOutputStream encode(String sessionId, String requestId, TargetPlatform target,
+                                               String appId, String ap, String priorVersion,
+                                               String priorFingerprint) {
+        ByteArrayOutputStream out = BUFFERS.get();
+        out.reset();
+        out.writeBytes(START);
+        writeEscaped(out, sessionId);
+        out.writeBytes(AFTER_SESSION_ID);
+        writeEscaped(out, requestId);
+        out.writeBytes(AFTER_REQUEST_ID);
+        writeEscaped(out, target.getPlatform());
+        out.writeBytes(AFTER_PLATFORM);
+        writeEscaped(out, target.getOsVersion());
+        out.writeBytes(AFTER_OS_VERSION);
+        writeEscaped(out, target.getArch());
+        out.writeBytes(AFTER_ARCH);
+        writeEscaped(out, appId);
+        out.writeBytes(AFTER_APP_ID);
+        writeEscaped(out, priorVersion);
+        out.writeBytes(AFTER_VERSION);
+        writeEscaped(out, ap);
+        out.writeBytes(AFTER_AP);
+        if (priorFingerprint != null) {
+            out.writeBytes(PACKAGE_START);
+            writeEscaped(out, priorFingerprint);
+            out.writeBytes(PACKAGE_END);
+        }
+        out.writeBytes(END);
+        return out;
+    }
+
+    /**
+     * Writes an attribute value, escaping markup. ASCII, which all the
+     * usual values are, is written byte by byte without encoding a string.
+     */
+    private static void writeEscaped(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Encode the rest as a string, which keeps surrogate pairs together
+                out.writeBytes(utf8(escape(value.substring(i))));
+                return;
+            }
+            switch (c) {
+                case '&': out.writeBytes(AMP); break;
+                case '<': out.writeBytes(LT); break;
+                case '>': out.writeBytes(GT); break;
+                case '"': out.writeBytes(QUOT); break;
+                default: out.write(c);
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
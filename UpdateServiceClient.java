@@ -0,0 +1,464 @@
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Client for the Google Update (update2) service. Has no JavaFX dependency,
+ * so it is shared by the UI tasks and headless use. A check that has not
+ * been answered within the route's usual latency is hedged with a duplicate,
+ * and the first response wins; timeouts also follow the route's latencies.
+ */
+public class UpdateServiceClient {
+    static final String UPDATE_SERVICE_URL = "https://tools.google.com/service/update2";
+
+    private static final int MAX_ATTEMPTS = 2;
+    private static final int GZIP_BUFFER_BYTES = 8192;
+
+    private static final SingleFlight<List<Object>, List<DownloadLink>> FETCHES = new SingleFlight<>();
+
+    private static final ExecutorService CHECK_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "update-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EngineManagement.registerExecutor("updateChecks", CHECK_EXECUTOR);
+    }
+
+    private static final ThreadLocal<DocumentBuilder> PARSERS = ThreadLocal.withInitial(() -> {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("No XML parser available", e);
+        }
+    });
+
+    private final ProxySettings proxySettings;
+    private final String serviceUrl;
+    private boolean coalescing = true;
+
+    public UpdateServiceClient() {
+        this(new ProxySettings());
+    }
+
+    public UpdateServiceClient(ProxySettings proxySettings) {
+        this(proxySettings, getDefaultServiceUrl());
+    }
+
+    public UpdateServiceClient(ProxySettings proxySettings, String serviceUrl) {
+        if (serviceUrl == null || serviceUrl.trim().isEmpty()) {
+            throw new IllegalArgumentException("Service URL cannot be null or empty");
+        }
+        this.proxySettings = proxySettings != null ? proxySettings : new ProxySettings();
+        this.serviceUrl = serviceUrl.trim();
+    }
+
+    /**
+     * Gets the update service URL, which the system property
+     * {@code chromedownloader.updateServiceUrl} can point at a stand-in.
+     */
+    public static String getDefaultServiceUrl() {
+        return System.getProperty("chromedownloader.updateServiceUrl", UPDATE_SERVICE_URL);
+    }
+
+    public ProxySettings getProxySettings() {
+        return proxySettings;
+    }
+
+    public String getServiceUrl() {
+        return serviceUrl;
+    }
+
+    /**
+     * Sets whether identical concurrent checks share one request. Load
+     * tests turn this off so every session sends its own.
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Sends an update check for a version label and target, and returns the
+     * download links from the response manifest.
+     */
+    public List<DownloadLink> fetchLinks(String versionLabel, TargetPlatform target) throws Exception {
+        return fetchLinks(versionLabel, target, null);
+    }
+
+    /**
+     * Sends an update check that advertises a prior build, so the service
+     * may offer a differential package next to the full installer. The
+     * links then carry a {@link DeltaPackage} from that build. Identical
+     * checks running concurrently share one request.
+     */
+    public List<DownloadLink> fetchLinks(String versionLabel, TargetPlatform target,
+                                         LocalBuildStore.Build prior) throws Exception {
+        if (versionLabel == null || versionLabel.trim().isEmpty()) {
+            throw new IllegalArgumentException("Version label cannot be null or empty");
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("Target platform cannot be null");
+        }
+
+        EngineMetrics.get().increment(EngineMetrics.FETCHES);
+        if (!coalescing) {
+            return requestLinks(versionLabel, target, prior);
+        }
+        // The proxy settings themselves are part of the key, so routes that differ only in credentials stay apart
+        List<Object> key = Arrays.asList(serviceUrl, versionLabel, target.getId(), proxySettings,
+            prior != null ? prior.getVersion() : null, prior != null ? prior.getFingerprint() : null);
+        SingleFlight.Call<List<DownloadLink>> call = FETCHES.execute(key,
+            progress -> requestLinks(versionLabel, target, prior), null);
+        if (!call.isLeader()) {
+            EngineMetrics.get().increment(EngineMetrics.FETCH_CACHE_HITS);
+        }
+        return new ArrayList<>(call.getValue());
+    }
+
+    private List<DownloadLink> requestLinks(String versionLabel, TargetPlatform target,
+                                            LocalBuildStore.Build prior) throws Exception {
+        EngineEvents.ManifestFetch event = new EngineEvents.ManifestFetch();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            List<DownloadLink> links = sendHedged(versionLabel, target, prior, event);
+            event.links = links.size();
+            EngineMetrics.get().recordLatency(EngineMetrics.FETCH, (System.nanoTime() - start) / 1_000_000.0);
+            return links;
+        } catch (Exception e) {
+            EngineMetrics.get().increment(EngineMetrics.FETCH_FAILURES);
+            throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.channel = versionLabel;
+                event.target = target.getId();
+                event.host = URI.create(serviceUrl).getHost();
+                event.proxyType = EngineEvents.proxyType(proxySettings);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Sends an update check and, if it is still unanswered after the route's
+     * hedge delay, a duplicate. Returns the first successful response and
+     * fails only when every attempt has failed.
+     */
+    private List<DownloadLink> sendHedged(String versionLabel, TargetPlatform target,
+                                          LocalBuildStore.Build prior,
+                                          EngineEvents.ManifestFetch event) throws Exception {
+        String route = RouteLatencies.routeOf(proxySettings, URI.create(serviceUrl));
+        long hedgeDelay = RouteLatencies.getDefault().getHedgeDelayMillis(route);
+        LinkedBlockingQueue<UpdateCheck> finished = new LinkedBlockingQueue<>();
+        List<UpdateCheck> started = new ArrayList<>();
+        Exception firstError = null;
+        int failures = 0;
+
+        try {
+            while (true) {
+                if (started.isEmpty() || (started.size() < MAX_ATTEMPTS && failures == 0)) {
+                    UpdateCheck check = new UpdateCheck(versionLabel, target, prior, route);
+                    if (!started.isEmpty()) {
+                        EngineMetrics.get().increment(EngineMetrics.FETCH_HEDGES);
+                    }
+                    started.add(check);
+                    CHECK_EXECUTOR.execute(() -> {
+                        check.run();
+                        finished.add(check);
+                    });
+                }
+
+                UpdateCheck done = started.size() < MAX_ATTEMPTS
+                    ? finished.poll(hedgeDelay, TimeUnit.MILLISECONDS)
+                    : finished.take();
+                if (done == null) {
+                    continue;
+                }
+                if (done.error == null) {
+                    if (done != started.get(0)) {
+                        EngineMetrics.get().increment(EngineMetrics.FETCH_HEDGE_WINS);
+                    }
+                    started.remove(done);
+                    event.bytes = done.responseBytes;
+                    return done.links;
+                }
+                // A fast failure is an answer too, so only slowness is hedged
+                firstError = firstError != null ? firstError : done.error;
+                if (++failures == started.size()) {
+                    throw firstError;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Update check interrupted", e);
+        } finally {
+            for (UpdateCheck loser : started) {
+                loser.abandon();
+            }
+        }
+    }
+
+    private List<DownloadLink> sendUpdateCheck(String versionLabel, TargetPlatform target,
+                                               LocalBuildStore.Build prior,
+                                               UpdateCheck check) throws Exception {
+
+        String sessionid = UUID.randomUUID().toString().toUpperCase();
+        String requestid = UUID.randomUUID().toString().toUpperCase();
+
+        Map<String, String> config = target.getVersionMapping().get(versionLabel);
+        if (config == null) {
+            throw new IllegalArgumentException("Unsupported version: " + versionLabel);
+        }
+
+        ByteArrayOutputStream requestBody = UpdateRequestEncoder.encode(sessionid, requestid, target,
+            config.get("appid"), config.get("channel"), prior != null ? prior.getVersion() : "",
+            prior != null ? prior.getFingerprint() : null);
+
+        URI serviceUri = new URI(serviceUrl);
+        HttpURLConnection connection = proxySettings.openConnection(serviceUri);
+        if (!check.attach(connection)) {
+            throw new IOException("Update check abandoned");
+        }
+        
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("User-Agent", "Google Update/1.3.32.7;winhttp;cup-ecdsa");
+        connection.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        connection.setRequestProperty("Host", serviceUri.getPort() > 0
+            ? serviceUri.getHost() + ":" + serviceUri.getPort() : serviceUri.getHost());
+        connection.setConnectTimeout(RouteLatencies.getDefault().getConnectTimeoutMillis(check.route));
+        connection.setReadTimeout(RouteLatencies.getDefault().getReadTimeoutMillis(check.route));
+        connection.setDoOutput(true);
+
+        connection.setFixedLengthStreamingMode(requestBody.size());
+        try (OutputStream os = connection.getOutputStream()) {
+            requestBody.writeTo(os);
+        }
+
+        int responseCode = connection.getResponseCode();
+        if (responseCode != 200) {
+            String errorMessage = connection.getResponseMessage();
+            connection.disconnect();
+            throw new IOException(I18n.format("error.http", responseCode, errorMessage));
+        }
+
+        // The parser reads straight from the (decompressing) stream instead of a copy of the body
+        Document doc;
+        try (CountingInputStream wire = new CountingInputStream(connection.getInputStream())) {
+            InputStream body = "gzip".equalsIgnoreCase(connection.getContentEncoding())
+                ? new GZIPInputStream(wire, GZIP_BUFFER_BYTES) : wire;
+            DocumentBuilder builder = PARSERS.get();
+            builder.reset();
+            doc = builder.parse(body);
+            check.responseBytes = wire.count;
+            EngineMetrics.get().add(EngineMetrics.FETCH_BYTES, wire.count);
+        } finally {
+            connection.disconnect();
+        }
+
+        NodeList appNodes = doc.getElementsByTagName("app");
+        if (appNodes.getLength() == 0) {
+            throw new RuntimeException(I18n.get("error.noAppElement"));
+        }
+        
+        Element appElement = (Element) appNodes.item(0);
+        NodeList urlNodes = appElement.getElementsByTagName("url");
+        NodeList packageNodes = appElement.getElementsByTagName("package");
+        NodeList manifestNodes = appElement.getElementsByTagName("manifest");
+        String version = manifestNodes.getLength() > 0
+            ? ((Element) manifestNodes.item(0)).getAttribute("version") : null;
+
+        // Diff codebases come as separate <url codebasediff="..."/> elements
+        List<String> diffCodebases = new ArrayList<>();
+        for (int i = 0; i < urlNodes.getLength(); i++) {
+            String codebaseDiff = ((Element) urlNodes.item(i)).getAttribute("codebasediff");
+            if (!codebaseDiff.isEmpty()) {
+                diffCodebases.add(codebaseDiff.endsWith("/") ? codebaseDiff : codebaseDiff + "/");
+            }
+        }
+
+        List<DownloadLink> links = new ArrayList<>();
+        for (int i = 0; i < urlNodes.getLength(); i++) {
+            Element urlEl = (Element) urlNodes.item(i);
+            String codebase = urlEl.getAttribute("codebase");
+            if (codebase.isEmpty()) {
+                continue;
+            }
+            if (!codebase.endsWith("/")) {
+                codebase += "/";
+            }
+            for (int j = 0; j < packageNodes.getLength(); j++) {
+                Element pkgEl = (Element) packageNodes.item(j);
+                String name = pkgEl.getAttribute("name");
+                if (name != null && !name.isEmpty()) {
+                    String fullUrl = codebase + name;
+                    if (!fullUrl.startsWith("https://www.google.com/dl/") && 
+                        !fullUrl.startsWith("http://www.google.com/dl/")) {
+                        links.add(new DownloadLink(fullUrl, version,
+                            parseSize(pkgEl.getAttribute("size")), pkgEl.getAttribute("hash_sha256"),
+                            pkgEl.getAttribute("fp"), parseDelta(pkgEl, diffCodebases, prior)));
+                    }
+                }
+            }
+        }
+        
+        if (links.isEmpty()) {
+            throw new RuntimeException(I18n.get("error.noLinks"));
+        }
+        
+        return MirrorRewriter.getDefault().apply(links);
+    }
+    
+    /**
+     * Gets the differential package of a manifest package, or null if the
+     * service offered none for the advertised prior build.
+     */
+    private static DeltaPackage parseDelta(Element pkgEl, List<String> diffCodebases, LocalBuildStore.Build prior) {
+        String nameDiff = pkgEl.getAttribute("namediff");
+        if (prior == null || nameDiff.isEmpty() || diffCodebases.isEmpty()) {
+            return null;
+        }
+
+        List<String> urls = new ArrayList<>();
+        for (String codebaseDiff : diffCodebases) {
+            urls.add(codebaseDiff + nameDiff);
+        }
+        urls = MirrorRewriter.getDefault().applyUrls(urls);
+        return new DeltaPackage(urls, parseSize(pkgEl.getAttribute("sizediff")),
+            pkgEl.getAttribute("hashdiff_sha256"), prior.getVersion(), prior.getFingerprint());
+    }
+    
+    private static long parseSize(String size) {
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Counts the bytes read from the connection, before any decompression.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * One attempt of a hedged update check.
+     */
+    private final class UpdateCheck {
+        private final String versionLabel;
+        private final TargetPlatform target;
+        private final LocalBuildStore.Build prior;
+        private final String route;
+        private HttpURLConnection connection;
+        private boolean abandoned;
+        private volatile List<DownloadLink> links;
+        private volatile Exception error;
+        private volatile long responseBytes;
+        private volatile long startNanos;
+        private final AtomicBoolean measured = new AtomicBoolean();
+
+        UpdateCheck(String versionLabel, TargetPlatform target, LocalBuildStore.Build prior, String route) {
+            this.versionLabel = versionLabel;
+            this.target = target;
+            this.prior = prior;
+            this.route = route;
+        }
+
+        void run() {
+            startNanos = System.nanoTime();
+            try {
+                links = sendUpdateCheck(versionLabel, target, prior, this);
+                recordLatency();
+            } catch (Exception e) {
+                error = e;
+                if (e instanceof SocketTimeoutException) {
+                    // Timeouts count as samples, so a route that slowed down gets longer timeouts
+                    recordLatency();
+                }
+            } finally {
+                measured.set(true);
+            }
+        }
+
+        /**
+         * Records the time since the attempt started, once per attempt.
+         */
+        private void recordLatency() {
+            if (measured.compareAndSet(false, true)) {
+                RouteLatencies.getDefault().record(route, (System.nanoTime() - startNanos) / 1_000_000.0);
+            }
+        }
+
+        synchronized boolean attach(HttpURLConnection connection) {
+            this.connection = connection;
+            return !abandoned;
+        }
+
+        /**
+         * Disconnects a losing attempt, which also aborts a pending read. An
+         * attempt still waiting records its time so far as a lower bound,
+         * so the route's latencies are not only those of the winners.
+         */
+        synchronized void abandon() {
+            if (startNanos != 0) {
+                recordLatency();
+            }
+            abandoned = true;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,540 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * In-process stand-in for the update2 service and the download CDN, for
+ * load and regression tests that must not hit Google. It answers update
+ * checks with a manifest, gzipped if the client accepts it, whose packages
+ * it serves itself, with Range and If-Range support, from two mirror paths.
+ * Package bytes are generated deterministically from the package name.
+ * {@link Faults} inject latency, bandwidth caps, connection resets,
+ * slow-drip bodies and HTTP errors. After {@link #publishRelease()} a check
+ * that advertises an earlier build of the stand-in is also offered a
+ * differential package, which {@link #applyPatch} turns back into the build.
+ */
+public class UpdateStandInServer {
+    public static final String SERVICE_PATH = "/service/update2";
+    public static final long DEFAULT_PACKAGE_SIZE = 8L * 1024 * 1024;
+
+    private static final int WRITE_SLICE = 16 * 1024;
+    private static final int RELEASE_CHANGE_BYTES = 64 * 1024;
+
+    private final long packageSize;
+    private final Faults updateFaults;
+    private final Faults downloadFaults;
+    private final Map<String, byte[]> packages = new ConcurrentHashMap<>();
+    private final AtomicLong updateRequests = new AtomicLong();
+    private final AtomicLong downloadRequests = new AtomicLong();
+    private final AtomicLong injectedFaults = new AtomicLong();
+    private volatile int release;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Creates a stand-in serving packages of the given size. Null faults inject nothing.
+     */
+    public UpdateStandInServer(long packageSize, Faults updateFaults, Faults downloadFaults) {
+        if (packageSize <= 0 || packageSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Package size must be between 1 byte and 2 GB");
+        }
+        this.packageSize = packageSize;
+        this.updateFaults = updateFaults != null ? updateFaults : new Faults();
+        this.downloadFaults = downloadFaults != null ? downloadFaults : new Faults();
+    }
+
+    /**
+     * Starts listening on the loopback address; port 0 picks a free port.
+     */
+    public synchronized void start(int port) throws IOException {
+        if (server != null) {
+            return;
+        }
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "standin-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        server.createContext(SERVICE_PATH, this::handleUpdateCheck);
+        server.createContext("/dl/", this::handleDownload);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getBaseUrl() {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + getPort();
+    }
+
+    public String getServiceUrl() {
+        return getBaseUrl() + SERVICE_PATH;
+    }
+
+    public long getUpdateRequests() { return updateRequests.get(); }
+    public long getDownloadRequests() { return downloadRequests.get(); }
+    public long getInjectedFaults() { return injectedFaults.get(); }
+
+    /**
+     * Publishes a new build of every app. Later update checks get the next
+     * version, which differs from the one before in one block of bytes.
+     * Returns the number of releases published so far.
+     */
+    public synchronized int publishRelease() {
+        return ++release;
+    }
+
+    private void handleUpdateCheck(HttpExchange exchange) throws IOException {
+        try {
+            updateRequests.incrementAndGet();
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Document request;
+            try (InputStream in = exchange.getRequestBody()) {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                request = factory.newDocumentBuilder().parse(in);
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (injectBeforeResponse(exchange, updateFaults)) {
+                return;
+            }
+
+            byte[] body = manifest(request).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                body = compressed.toByteArray();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            writeBody(exchange, body, 0, body.length, updateFaults);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Builds an update2 response for the app in the request. The version
+     * and package name depend only on the app, channel, platform and the
+     * number of releases. A request whose prior version is an earlier
+     * release of the same app also gets a differential package from it.
+     */
+    private String manifest(Document request) {
+        Element app = (Element) request.getElementsByTagName("app").item(0);
+        NodeList osNodes = request.getElementsByTagName("os");
+        Element os = osNodes.getLength() > 0 ? (Element) osNodes.item(0) : null;
+        String appid = app != null ? app.getAttribute("appid") : "";
+        String ap = app != null ? app.getAttribute("ap") : "";
+        String platform = os != null ? os.getAttribute("platform") : "";
+        String arch = os != null ? os.getAttribute("arch") : "";
+
+        String lineage = appid + "|" + ap + "|" + platform + "|" + arch;
+        int hash = lineage.hashCode() & 0x7fffffff;
+        String versionPrefix = "130.0." + (6000 + hash % 1000) + ".";
+        int firstBuild = hash / 1000 % 200;
+        int current = release;
+        String version = versionPrefix + (firstBuild + current);
+        String name = version + "_" + platform + "_" + arch + "_installer.exe";
+        byte[] data = packageBytes(name, lineage, current);
+
+        String base = getBaseUrl();
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<response protocol=\"3.0\" server=\"standin\">")
+            .append("<app appid=\"").append(escape(appid)).append("\" status=\"ok\">")
+            .append("<updatecheck status=\"ok\"><urls>")
+            .append("<url codebase=\"").append(base).append("/dl/mirror1/\"/>")
+            .append("<url codebase=\"").append(base).append("/dl/mirror2/\"/>");
+
+        int prior = priorRelease(app, request, versionPrefix, firstBuild, current);
+        String delta = "";
+        if (prior >= 0) {
+            String nameDiff = version + "_from_" + versionPrefix + (firstBuild + prior) + "_" + platform + "_" + arch + "_patch.diff";
+            byte[] patch = packages.computeIfAbsent(nameDiff, k -> patchBytes(lineage, prior, current, data));
+            xml.append("<url codebasediff=\"").append(base).append("/dl/diff/\"/>");
+            delta = "\" namediff=\"" + nameDiff + "\" sizediff=\"" + patch.length + "\" hashdiff_sha256=\""
+                + HexFormat.of().formatHex(Metalink.newSha256().digest(patch));
+        }
+
+        return xml.append("</urls><manifest version=\"").append(version).append("\"><packages>")
+            .append("<package name=\"").append(name).append("\" size=\"").append(data.length)
+            .append("\" hash_sha256=\"").append(HexFormat.of().formatHex(Metalink.newSha256().digest(data)))
+            .append("\" fp=\"1.").append(version).append(delta).append("\" required=\"true\"/>")
+            .append("</packages></manifest></updatecheck></app></response>")
+            .toString();
+    }
+
+    /**
+     * Gets the release the request advertises as its prior build, or -1 if
+     * it is not an earlier release of this app or its fingerprint does not
+     * match the one the stand-in gave that release.
+     */
+    private static int priorRelease(Element app, Document request, String versionPrefix, int firstBuild, int current) {
+        String priorVersion = app != null ? app.getAttribute("version") : "";
+        if (!priorVersion.startsWith(versionPrefix)) {
+            return -1;
+        }
+        int prior;
+        try {
+            prior = Integer.parseInt(priorVersion.substring(versionPrefix.length())) - firstBuild;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (prior < 0 || prior >= current) {
+            return -1;
+        }
+        NodeList priorPackages = request.getElementsByTagName("package");
+        if (priorPackages.getLength() > 0
+                && !("1." + priorVersion).equals(((Element) priorPackages.item(0)).getAttribute("fp"))) {
+            return -1;
+        }
+        return prior;
+    }
+
+    private void handleDownload(HttpExchange exchange) throws IOException {
+        try {
+            downloadRequests.incrementAndGet();
+            String path = exchange.getRequestURI().getPath();
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            byte[] data = packages.get(name);
+            if (data == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (injectBeforeResponse(exchange, downloadFaults)) {
+                return;
+            }
+
+            String etag = "\"" + Integer.toHexString(name.hashCode()) + "\"";
+            long start = 0;
+            long end = data.length - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(etag))) {
+                long[] parsed = parseRange(range.substring(6), data.length);
+                if (parsed == null) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + data.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                start = parsed[0];
+                end = parsed[1];
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+            }
+
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(status, end - start + 1);
+            if (!"HEAD".equals(exchange.getRequestMethod())) {
+                writeBody(exchange, data, (int) start, (int) (end + 1), downloadFaults);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Waits out the configured latency and answers with an injected error
+     * if one is due. Returns true if the response was sent.
+     */
+    private boolean injectBeforeResponse(HttpExchange exchange, Faults faults) throws IOException {
+        sleep(faults.latencyMillis + (faults.jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(faults.jitterMillis + 1) : 0));
+        if (chance(faults.errorRate)) {
+            injectedFaults.incrementAndGet();
+            exchange.sendResponseHeaders(faults.errorStatus, -1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes [from, to) of the data, capped to the bandwidth, or dripped
+     * slowly, or cut off part way to emulate a reset connection.
+     */
+    private void writeBody(HttpExchange exchange, byte[] data, int from, int to, Faults faults) throws IOException {
+        long rate = faults.bandwidthBytesPerSecond;
+        if (chance(faults.dripRate)) {
+            injectedFaults.incrementAndGet();
+            rate = faults.dripBytesPerSecond;
+        }
+        int cutOff = to;
+        if (chance(faults.resetRate)) {
+            injectedFaults.incrementAndGet();
+            cutOff = from + (int) ((to - from) * ThreadLocalRandom.current().nextDouble());
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        long started = System.nanoTime();
+        int position = from;
+        try {
+            while (position < cutOff) {
+                int slice = rate > 0 ? (int) Math.max(1, Math.min(WRITE_SLICE, rate / 10)) : WRITE_SLICE;
+                int length = Math.min(slice, cutOff - position);
+                out.write(data, position, length);
+                out.flush();
+                position += length;
+                if (rate > 0) {
+                    long due = TimeUnit.SECONDS.toNanos(position - from) / rate;
+                    sleep(TimeUnit.NANOSECONDS.toMillis(due - (System.nanoTime() - started)));
+                }
+            }
+        } catch (IOException e) {
+            // The client went away
+            return;
+        }
+        if (cutOff < to) {
+            // A handler that throws makes the server drop the connection mid-body
+            throw new IOException("Injected reset");
+        }
+    }
+
+    /**
+     * Gets the package of a release: the app's first build with one block
+     * replaced for each release since.
+     */
+    private byte[] packageBytes(String name, String lineage, int release) {
+        return packages.computeIfAbsent(name, k -> {
+            byte[] data = new byte[(int) packageSize];
+            fill(data, 0, data.length, lineage.hashCode());
+            for (int r = 1; r <= release; r++) {
+                int offset = changeOffset(lineage, r);
+                fill(data, offset, Math.min(data.length - offset, RELEASE_CHANGE_BYTES), (lineage + "#" + r).hashCode());
+            }
+            return data;
+        });
+    }
+
+    private int changeOffset(String lineage, int release) {
+        int span = (int) Math.max(1, packageSize - RELEASE_CHANGE_BYTES + 1);
+        return Math.floorMod((lineage + "#" + release).hashCode(), span);
+    }
+
+    private static void fill(byte[] data, int from, int length, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < length; i += 8) {
+            long value = random.nextLong();
+            for (int j = 0; j < 8 && i + j < length; j++) {
+                data[from + i + j] = (byte) (value >>> (8 * j));
+            }
+        }
+    }
+
+    /**
+     * Builds the patch from one release to a later one: the output length,
+     * then each block changed since, as offset, length and the new bytes.
+     */
+    private byte[] patchBytes(String lineage, int prior, int current, byte[] data) {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(patch)) {
+            out.writeLong(data.length);
+            for (int r = prior + 1; r <= current; r++) {
+                int offset = changeOffset(lineage, r);
+                int length = Math.min(data.length - offset, RELEASE_CHANGE_BYTES);
+                out.writeLong(offset);
+                out.writeInt(length);
+                out.write(data, offset, length);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return patch.toByteArray();
+    }
+
+    /**
+     * Applies a differential package served by the stand-in. Has the shape
+     * of {@link PatchApplier#apply}, so tests can rebuild a release without
+     * an external patch tool.
+     */
+    public static void applyPatch(Path base, Path patch, Path output) throws IOException {
+        byte[] data = Files.readAllBytes(base);
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(patch))) {
+            long size = in.readLong();
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid patch output size " + size);
+            }
+            data = Arrays.copyOf(data, (int) size);
+            while (in.available() > 0) {
+                long offset = in.readLong();
+                int length = in.readInt();
+                if (offset < 0 || length < 0 || offset + length > data.length) {
+                    throw new IOException("Patch block outside the output: " + offset + "+" + length);
+                }
+                in.readFully(data, (int) offset, length);
+            }
+        }
+        Files.write(output, data);
+    }
+
+    /**
+     * Parses "start-end", "start-" or "-suffix" against the length, or returns null if unsatisfiable.
+     */
+    private static long[] parseRange(String spec, long length) {
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                start = Math.max(0, length - Long.parseLong(last));
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(length - 1, Long.parseLong(last));
+            }
+            return start <= end && start < length ? new long[] {start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean chance(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Faults to inject into responses. Rates are probabilities per response.
+     */
+    public static class Faults {
+        private long latencyMillis;
+        private long jitterMillis;
+        private long bandwidthBytesPerSecond;
+        private double resetRate;
+        private double dripRate;
+        private long dripBytesPerSecond = 1024;
+        private double errorRate;
+        private int errorStatus = 503;
+
+        public Faults setLatency(long latencyMillis, long jitterMillis) {
+            if (latencyMillis < 0 || jitterMillis < 0) {
+                throw new IllegalArgumentException("Latency cannot be negative");
+            }
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * Caps the bandwidth of each response; 0 means unlimited.
+         */
+        public Faults setBandwidth(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Bandwidth cannot be negative");
+            }
+            this.bandwidthBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Cuts off this share of response bodies at a random point.
+         */
+        public Faults setResetRate(double resetRate) {
+            this.resetRate = checkRate(resetRate);
+            return this;
+        }
+
+        /**
+         * Sends this share of response bodies at only a few bytes per second.
+         */
+        public Faults setDrip(double dripRate, long dripBytesPerSecond) {
+            if (dripBytesPerSecond <= 0) {
+                throw new IllegalArgumentException("Drip rate must be positive");
+            }
+            this.dripRate = checkRate(dripRate);
+            this.dripBytesPerSecond = dripBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Answers this share of requests with the given HTTP status.
+         */
+        public Faults setErrors(double errorRate, int errorStatus) {
+            if (errorStatus < 400 || errorStatus > 599) {
+                throw new IllegalArgumentException("Error status must be 4xx or 5xx");
+            }
+            this.errorRate = checkRate(errorRate);
+            this.errorStatus = errorStatus;
+            return this;
+        }
+
+        private static double checkRate(double rate) {
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("Rate must be between 0 and 1");
+            }
+            return rate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency=%d+%dms bandwidth=%d B/s reset=%.3f drip=%.3f@%d B/s error=%.3f(%d)",
+                latencyMillis, jitterMillis, bandwidthBytesPerSecond, resetRate, dripRate, dripBytesPerSecond,
+                errorRate, errorStatus);
+        }
+    }
+}